@@ -0,0 +1,153 @@
+package pl.mbdev.openstage.servlet;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import pl.mbdev.openstage.RenderedXml;
+import pl.mbdev.openstage.Xml;
+
+/**
+ * Sends XML from a servlet to the phone, as exact UTF-8 bytes written to the output stream
+ * of the response, with the content type, the exact length and an entity tag. Unlike
+ * {@link Xml#sendTo(java.io.PrintWriter)} with the writer of the response, this does not
+ * convert characters to bytes in the container, and the response is not chunked.<br />
+ * <br />
+ * When the phone sends back the entity tag of the XML it already has, it receives status
+ * 304 instead of the XML. With a version given by the application, such requests are
+ * answered without rendering the XML at all.
+ * 
+ * <pre>
+ * protected void doGet(HttpServletRequest request, HttpServletResponse response)
+ * 		throws IOException {
+ * 	XmlResponses.send(new IppAlert(...), request, response);
+ * }
+ * </pre>
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public final class XmlResponses {
+	
+	/**
+	 * Utility class.
+	 */
+	private XmlResponses() {
+	}
+	
+	/**
+	 * Sends the given XML, with an entity tag computed from its rendered bytes.
+	 * 
+	 * @param xml
+	 *           the XML
+	 * @param request
+	 *           request of the phone
+	 * @param response
+	 *           response to the phone
+	 * @throws IOException
+	 *            when the response cannot be written
+	 * @throws IllegalArgumentException
+	 *            when the object cannot be a root or cannot be "made" a root
+	 */
+	public static void send(Xml xml, HttpServletRequest request,
+			HttpServletResponse response) throws IOException, IllegalArgumentException {
+		send(RenderedXml.render(xml), request, response);
+	}
+	
+	/**
+	 * Sends the given XML, with an entity tag derived from the given version. If the phone
+	 * already has this version, the XML is not rendered.
+	 * 
+	 * @param xml
+	 *           the XML
+	 * @param version
+	 *           version of the XML, which changes whenever the rendered XML changes
+	 * @param request
+	 *           request of the phone
+	 * @param response
+	 *           response to the phone
+	 * @throws IOException
+	 *            when the response cannot be written
+	 * @throws IllegalArgumentException
+	 *            when the object cannot be a root or cannot be "made" a root
+	 */
+	public static void send(Xml xml, String version, HttpServletRequest request,
+			HttpServletResponse response) throws IOException, IllegalArgumentException {
+		String etag = RenderedXml.toETag(version);
+		if (isConditional(request)
+				&& RenderedXml.matches(etag, request.getHeader("If-None-Match"))) {
+			sendNotModified(etag, response);
+			return;
+		}
+		send(RenderedXml.render(xml, version), request, response);
+	}
+	
+	/**
+	 * Sends the XML that was already rendered, for example by a cache.
+	 * 
+	 * @param xml
+	 *           the rendered XML
+	 * @param request
+	 *           request of the phone
+	 * @param response
+	 *           response to the phone
+	 * @throws IOException
+	 *            when the response cannot be written
+	 */
+	public static void send(RenderedXml xml, HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		if (isConditional(request) && xml.matches(request.getHeader("If-None-Match"))) {
+			sendNotModified(xml.getETag(), response);
+			return;
+		}
+		response.setContentType(RenderedXml.CONTENT_TYPE);
+		response.setContentLength(xml.getLength());
+		response.setHeader("ETag", xml.getETag());
+		if (!"HEAD".equals(request.getMethod()))
+			xml.writeTo(response.getOutputStream());
+	}
+	
+	/**
+	 * Checks if the request may be answered with status 304, which is only the case for
+	 * GET and HEAD requests.
+	 * 
+	 * @param request
+	 *           request of the phone
+	 * @return true if the "If-None-Match" header should be checked
+	 */
+	private static boolean isConditional(HttpServletRequest request) {
+		String method = request.getMethod();
+		return "GET".equals(method) || "HEAD".equals(method);
+	}
+	
+	/**
+	 * Tells the phone that the XML it has is still valid.
+	 * 
+	 * @param etag
+	 *           entity tag of the XML
+	 * @param response
+	 *           response to the phone
+	 */
+	private static void sendNotModified(String etag, HttpServletResponse response) {
+		response.setHeader("ETag", etag);
+		response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+	}
+	
+}
@@ -0,0 +1,8 @@
+/**
+ * XML can be sent from Java servlets with the exact length and entity tags, with use of
+ * {@link pl.mbdev.openstage.servlet.XmlResponses} class. This package needs the servlet
+ * API, which is provided by the servlet container, so it is compiled separately from the
+ * rest of the SDK, see README.
+ */
+
+package pl.mbdev.openstage.servlet;
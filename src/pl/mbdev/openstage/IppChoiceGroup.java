@@ -109,6 +109,15 @@ public class IppChoiceGroup extends XmlFormItem {
 		optionCount++;
 	}
 	
+	/**
+	 * Returns the type of this choice group.
+	 * 
+	 * @return value from {@link IppChoiceGroup.Type}
+	 */
+	public Type getType() {
+		return type;
+	}
+	
 	protected StringBuffer attributesToXmlString() {
 		StringBuffer sb = new StringBuffer();
 		if (type != null)
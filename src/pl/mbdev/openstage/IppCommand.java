@@ -296,6 +296,38 @@ public class IppCommand extends Xml {
 			this.add("ScreenID", screenID);
 	}
 	
+	/**
+	 * Returns the type of this command.
+	 * 
+	 * @return value from {@link IppCommand.Type}
+	 */
+	public Type getType() {
+		return type;
+	}
+	
+	/**
+	 * Returns the key sent back to the server when this command is selected. Only
+	 * commands of type {@link IppCommand.Type#SELECT} send a key-value pair.
+	 * 
+	 * @return key from the key-value pair, or null if this command does not send one
+	 */
+	public String getKey() {
+		if (!type.equals(Type.SELECT) || (key == null && value == null))
+			return null;
+		return key == null ? "key" : key;
+	}
+	
+	/**
+	 * Returns the value sent back to the server when this command is selected.
+	 * 
+	 * @return value from the key-value pair, or null if this command does not send one
+	 */
+	public String getValue() {
+		if (!type.equals(Type.SELECT) || (key == null && value == null))
+			return null;
+		return value == null ? "" : value;
+	}
+	
 	protected StringBuffer attributesToXmlString() {
 		StringBuffer sb = new StringBuffer();
 		sb.append(attributeToXml("Type", type));
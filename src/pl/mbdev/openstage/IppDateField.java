@@ -144,6 +144,35 @@ public class IppDateField extends XmlFormItem {
 		add("Time", time);
 	}
 	
+	/**
+	 * Returns the mode of this date field.
+	 * 
+	 * @return value from {@link IppDateField.Mode}
+	 */
+	public Mode getMode() {
+		return mode;
+	}
+	
+	/**
+	 * Returns the key that identifies the date from this field when the form is
+	 * submitted.
+	 * 
+	 * @return key of the date
+	 */
+	public String getDateKey() {
+		return dateKey;
+	}
+	
+	/**
+	 * Returns the key that identifies the time from this field when the form is
+	 * submitted.
+	 * 
+	 * @return key of the time
+	 */
+	public String getTimeKey() {
+		return timeKey;
+	}
+	
 	protected StringBuffer attributesToXmlString() {
 		StringBuffer sb = new StringBuffer();
 		sb.append(attributeToXml("Mode", mode));
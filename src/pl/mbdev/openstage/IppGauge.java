@@ -51,6 +51,11 @@ public class IppGauge extends XmlFormItem {
 	 */
 	private final String key;
 	
+	/**
+	 * Maximum value of the gauge.
+	 */
+	private final String maximum;
+	
 	/**
 	 * Creates an automated gauge, with start and end time.
 	 * 
@@ -116,12 +121,31 @@ public class IppGauge extends XmlFormItem {
 						"'Key' attributte of IppGauge cannot be null, "
 								+ "when 'Interactive' attribute is set to USER");
 		this.key = key;
+		this.maximum = maximum;
 		
 		add("Label", label);
 		add("Maximum", maximum);
 		add("Initial", initial);
 	}
 	
+	/**
+	 * Returns the maximum value of this gauge.
+	 * 
+	 * @return maximum value, for an automated gauge in minutes:seconds format
+	 */
+	public String getMaximum() {
+		return maximum;
+	}
+	
+	/**
+	 * Returns the key of the value of this gauge, as sent back to the server.
+	 * 
+	 * @return key from the key-value pair
+	 */
+	public String getKey() {
+		return key;
+	}
+	
 	/**
 	 * Returns the value from {@link IppGauge.Interactive}, the gauge's interactivity.
 	 * 
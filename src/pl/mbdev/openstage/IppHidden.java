@@ -109,6 +109,24 @@ public class IppHidden extends Xml {
 					+ "'value' attribute cannot be null");
 	}
 	
+	/**
+	 * Returns the type of this hidden field.
+	 * 
+	 * @return value from {@link IppHidden.Type}
+	 */
+	public Type getType() {
+		return type;
+	}
+	
+	/**
+	 * Returns the key of the value of this hidden field, as sent back to the server.
+	 * 
+	 * @return key from the key-value pair
+	 */
+	public String getKey() {
+		return key;
+	}
+	
 	protected StringBuffer attributesToXmlString() {
 		StringBuffer sb = new StringBuffer();
 		sb.append(attributeToXml("Type", type));
@@ -104,6 +104,7 @@ public class IppList extends Xml {
 		if (columns < 1 || columns > 3)
 			throw new IllegalArgumentException(
 					"number of columns of IppList must be 1, 2 or 3");
+		this.columns = columns;
 		
 		add("Title", title);
 		add("Url", url);
@@ -128,6 +129,15 @@ public class IppList extends Xml {
 		optionsCount++;
 	}
 	
+	/**
+	 * Returns the type of this list.
+	 * 
+	 * @return value from {@link IppList.Type}
+	 */
+	public Type getType() {
+		return type;
+	}
+	
 	protected StringBuffer attributesToXmlString() {
 		StringBuffer sb = new StringBuffer();
 		sb.append(attributeToXml("Type", type));
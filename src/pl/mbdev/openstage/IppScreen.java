@@ -1,5 +1,7 @@
 package pl.mbdev.openstage;
 
+import java.io.IOException;
+
 /**
  * Sub-node of {@link IppDisplay} object. The IppDisplay may contain up to 5 IppScreens.
  * IppScreen cannot be a root node, but this SDK will wrap IppScreen with {@link IppPhone}
@@ -217,18 +219,16 @@ public class IppScreen extends Xml {
 	}
 	
 	@Override
-	protected StringBuffer subObjectsToXmlString(int indent) {
-		StringBuffer sb = new StringBuffer();
+	protected void writeSubObjects(Appendable out, int indent) throws IOException {
 		if (uniqueIndex < 0)
 			throw new IllegalArgumentException("IppScreen must contain "
 					+ "one of the required items when it is sent to the OpenStage phone; "
 					+ "add IppList, IppTextBox, IppAlert, IppPlayer or IppForm");
 		Xml uniqueNode = this.getSubNode(uniqueIndex);
-		sb.append(uniqueNode.toXmlString(indent));
+		uniqueNode.writeXml(out, indent);
 		for (Xml o : getSubNodes())
 			if (!o.equals(uniqueNode))
-				sb.append(o.toXmlString(indent));
-		return sb;
+				o.writeXml(out, indent);
 	}
 	
 	@Override
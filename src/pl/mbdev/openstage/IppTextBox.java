@@ -181,6 +181,25 @@ public class IppTextBox extends XmlText {
 			this.add("Url", this.url);
 	}
 	
+	/**
+	 * Returns the key of the value of this text box, as sent back to the server.
+	 * 
+	 * @return key from the key-value pair
+	 */
+	public String getKey() {
+		return key;
+	}
+	
+	/**
+	 * Returns the value from {@link IppTextBox.Constraint}, which narrows the set of
+	 * possible characters.
+	 * 
+	 * @return constraint of this text box
+	 */
+	public Constraint getConstraint() {
+		return constraint;
+	}
+	
 	protected StringBuffer attributesToXmlString() {
 		StringBuffer sb = super.attributesToXmlString();
 		sb.append(attributeToXml("Constraint", constraint));
@@ -179,6 +179,34 @@ public class IppTextField extends XmlFormItem {
 		this.add("Text", this.xmlText.text);
 	}
 	
+	/**
+	 * Returns the key of the value of this field, as sent back to the server.
+	 * 
+	 * @return key from the key-value pair
+	 */
+	public String getKey() {
+		return key;
+	}
+	
+	/**
+	 * Returns the value from {@link IppTextField.Constraint}, which narrows the set of
+	 * possible characters.
+	 * 
+	 * @return constraint of this field
+	 */
+	public Constraint getConstraint() {
+		return constraint;
+	}
+	
+	/**
+	 * Returns the maximum length of the input.
+	 * 
+	 * @return maximum length, or a non-positive number if the length is not limited
+	 */
+	public int getMaxSize() {
+		return xmlText.getMaxSize();
+	}
+	
 	protected StringBuffer attributesToXmlString() {
 		StringBuffer sb = xmlText.attributesToXmlString();
 		sb.append(attributeToXml("Constraint", constraint));
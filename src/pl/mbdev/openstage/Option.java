@@ -177,6 +177,33 @@ public class Option extends Xml {
 		return optionTextCount;
 	}
 	
+	/**
+	 * Checks if this option is selected by default.
+	 * 
+	 * @return true if this option is selected by default
+	 */
+	public boolean isSelected() {
+		return selected;
+	}
+	
+	/**
+	 * Returns the key sent back to the server when this option is chosen.
+	 * 
+	 * @return key from the key-value pair, "key" if none was given
+	 */
+	public String getKey() {
+		return key.equals("") ? "key" : key;
+	}
+	
+	/**
+	 * Returns the value sent back to the server when this option is chosen.
+	 * 
+	 * @return value from the key-value pair
+	 */
+	public String getValue() {
+		return value;
+	}
+	
 	protected StringBuffer attributesToXmlString() {
 		StringBuffer sb = new StringBuffer();
 		if (selected)
@@ -0,0 +1,297 @@
+package pl.mbdev.openstage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * XML rendered to the exact bytes that are sent to the phone, together with their length
+ * and an entity tag. The entity tag lets the phone, or a proxy, ask for the XML only if it
+ * changed since the last time, by sending it back in the "If-None-Match" header; see
+ * {@link #matches(String, String)}.<br />
+ * <br />
+ * The entity tag is either a hash of the rendered bytes, or is derived from a version
+ * given by the application, which must then change whenever the rendered XML changes. The
+ * latter lets the application answer conditional requests without rendering anything.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public final class RenderedXml {
+	
+	/**
+	 * Content type of the XML sent to the phone.
+	 */
+	public static final String CONTENT_TYPE = "text/xml; charset=UTF-8";
+	
+	/**
+	 * Hexadecimal digits.
+	 */
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	
+	/**
+	 * Number of the bytes of the hash that are used in the entity tag.
+	 */
+	private static final int HASH_LENGTH = 16;
+	
+	/**
+	 * Buffer that gives access to its contents without copying them.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private static class Buffer extends ByteArrayOutputStream {
+		
+		/**
+		 * Creates new buffer.
+		 */
+		Buffer() {
+			super(4096);
+		}
+		
+		/**
+		 * Returns the internal array of this buffer.
+		 * 
+		 * @return the array, valid up to size()
+		 */
+		byte[] array() {
+			return buf;
+		}
+		
+	}
+	
+	/**
+	 * Rendered bytes, valid up to the length.
+	 */
+	private final byte[] bytes;
+	
+	/**
+	 * Number of the rendered bytes.
+	 */
+	private final int length;
+	
+	/**
+	 * Entity tag, with quotes.
+	 */
+	private final String etag;
+	
+	/**
+	 * Creates new rendered XML.
+	 * 
+	 * @param bytes
+	 *           rendered bytes, valid up to the length
+	 * @param length
+	 *           number of the rendered bytes
+	 * @param etag
+	 *           entity tag, with quotes
+	 */
+	private RenderedXml(byte[] bytes, int length, String etag) {
+		this.bytes = bytes;
+		this.length = length;
+		this.etag = etag;
+	}
+	
+	/**
+	 * Renders the given XML, in the same way as {@link Xml#sendTo(OutputStream)}, with an
+	 * entity tag computed from the rendered bytes.
+	 * 
+	 * @param xml
+	 *           the XML
+	 * @return the rendered XML
+	 * @throws IllegalArgumentException
+	 *            when the object cannot be a root or cannot be "made" a root
+	 */
+	public static RenderedXml render(Xml xml) throws IllegalArgumentException {
+		Buffer buffer = renderToBuffer(xml);
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-256 is always available", e);
+		}
+		digest.update(buffer.array(), 0, buffer.size());
+		byte[] hash = digest.digest();
+		char[] etag = new char[HASH_LENGTH * 2 + 2];
+		etag[0] = '"';
+		for (int i = 0; i < HASH_LENGTH; i++) {
+			etag[i * 2 + 1] = HEX[(hash[i] >> 4) & 0xF];
+			etag[i * 2 + 2] = HEX[hash[i] & 0xF];
+		}
+		etag[etag.length - 1] = '"';
+		return new RenderedXml(buffer.array(), buffer.size(), new String(etag));
+	}
+	
+	/**
+	 * Renders the given XML, with an entity tag derived from the given version.
+	 * 
+	 * @param xml
+	 *           the XML
+	 * @param version
+	 *           version of the XML, which changes whenever the rendered XML changes
+	 * @return the rendered XML
+	 * @throws IllegalArgumentException
+	 *            when the object cannot be a root or cannot be "made" a root
+	 */
+	public static RenderedXml render(Xml xml, String version)
+			throws IllegalArgumentException {
+		String etag = toETag(version);
+		Buffer buffer = renderToBuffer(xml);
+		return new RenderedXml(buffer.array(), buffer.size(), etag);
+	}
+	
+	/**
+	 * Wraps XML that was rendered before, for example read back from memory outside of
+	 * the heap.
+	 * 
+	 * @param bytes
+	 *           the rendered bytes, which must not be modified afterwards
+	 * @param etag
+	 *           entity tag, with quotes
+	 * @return the rendered XML
+	 */
+	public static RenderedXml of(byte[] bytes, String etag) {
+		if (bytes == null)
+			throw new NullPointerException("bytes cannot be null");
+		if (etag == null)
+			throw new NullPointerException("entity tag cannot be null");
+		return new RenderedXml(bytes, bytes.length, etag);
+	}
+	
+	/**
+	 * Renders the given XML into a new buffer.
+	 * 
+	 * @param xml
+	 *           the XML
+	 * @return buffer with the rendered XML
+	 */
+	private static Buffer renderToBuffer(Xml xml) {
+		if (xml == null)
+			throw new NullPointerException("rendered XML cannot be null");
+		Buffer buffer = new Buffer();
+		try {
+			xml.sendTo(buffer);
+		} catch (IOException e) {
+			throw new RuntimeException("ByteArrayOutputStream cannot fail", e);
+		}
+		return buffer;
+	}
+	
+	/**
+	 * Converts a version of the XML to an entity tag. Characters that are not allowed in
+	 * entity tags are replaced with '_'.
+	 * 
+	 * @param version
+	 *           version of the XML
+	 * @return the entity tag, with quotes
+	 */
+	public static String toETag(String version) {
+		if (version == null)
+			throw new NullPointerException("version cannot be null");
+		char[] etag = new char[version.length() + 2];
+		etag[0] = '"';
+		for (int i = 0; i < version.length(); i++) {
+			char c = version.charAt(i);
+			etag[i + 1] = c > 0x20 && c < 0x7F && c != '"' ? c : '_';
+		}
+		etag[etag.length - 1] = '"';
+		return new String(etag);
+	}
+	
+	/**
+	 * Checks if the given entity tag is listed in the value of the "If-None-Match" header,
+	 * which means that the phone already has the XML and should receive status 304. Weak
+	 * entity tags in the header are compared as if they were strong, as required for this
+	 * header.
+	 * 
+	 * @param etag
+	 *           entity tag, with quotes
+	 * @param ifNoneMatch
+	 *           value of the header, may be null
+	 * @return true if the tag is listed, or the header is "*"
+	 */
+	public static boolean matches(String etag, String ifNoneMatch) {
+		if (ifNoneMatch == null)
+			return false;
+		int pos = 0;
+		int end = ifNoneMatch.length();
+		while (pos < end) {
+			int next = ifNoneMatch.indexOf(',', pos);
+			if (next < 0)
+				next = end;
+			int start = pos;
+			int stop = next;
+			while (start < stop && ifNoneMatch.charAt(start) <= ' ')
+				start++;
+			while (stop > start && ifNoneMatch.charAt(stop - 1) <= ' ')
+				stop--;
+			if (ifNoneMatch.startsWith("W/", start))
+				start += 2;
+			if (stop - start == 1 && ifNoneMatch.charAt(start) == '*')
+				return true;
+			if (stop - start == etag.length() && ifNoneMatch.startsWith(etag, start))
+				return true;
+			pos = next + 1;
+		}
+		return false;
+	}
+	
+	/**
+	 * Checks if the entity tag of this XML is listed in the value of the "If-None-Match"
+	 * header.
+	 * 
+	 * @param ifNoneMatch
+	 *           value of the header, may be null
+	 * @return true if the phone already has this XML
+	 */
+	public boolean matches(String ifNoneMatch) {
+		return matches(etag, ifNoneMatch);
+	}
+	
+	/**
+	 * Returns the entity tag of this XML.
+	 * 
+	 * @return the entity tag, with quotes, ready to be sent in the "ETag" header
+	 */
+	public String getETag() {
+		return etag;
+	}
+	
+	/**
+	 * Returns the exact number of bytes of this XML.
+	 * 
+	 * @return value of the "Content-Length" header
+	 */
+	public int getLength() {
+		return length;
+	}
+	
+	/**
+	 * Writes the bytes of this XML to the given stream.
+	 * 
+	 * @param out
+	 *           stream that receives the XML
+	 * @throws IOException
+	 *            when the stream cannot be written
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(bytes, 0, length);
+	}
+	
+}
@@ -0,0 +1,512 @@
+package pl.mbdev.openstage;
+
+import java.util.Arrays;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import pl.mbdev.openstage.push.FormEncoding;
+
+/**
+ * Key-value pairs sent back by the phone, decoded by {@link SubmissionDecoder}. The
+ * values are not copied out of the encoded data: only their positions are remembered, and
+ * each value is converted to the requested type when it is read. Numbers, dates and
+ * times are read directly from the encoded bytes.<br />
+ * <br />
+ * Values can be read by key, or by slot, as given by {@link SubmissionSchema#slotOf(String)}.
+ * Reading by slot does not look up the key, and should be preferred when the same values
+ * are read from many submissions.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public class Submission {
+	
+	/**
+	 * Decoder that created this submission.
+	 */
+	private final SubmissionDecoder decoder;
+	
+	/**
+	 * Buffer with the encoded data.
+	 */
+	private final byte[] src;
+	
+	/**
+	 * Index of the first value of each slot, or -1 if the slot has no values.
+	 */
+	private final int[] first;
+	
+	/**
+	 * Index of the last value of each slot, or -1 if the slot has no values.
+	 */
+	private final int[] last;
+	
+	/**
+	 * Number of the values of each slot.
+	 */
+	private final int[] counts;
+	
+	/**
+	 * Offsets of the encoded values in the buffer.
+	 */
+	private int[] offsets;
+	
+	/**
+	 * Lengths of the encoded values.
+	 */
+	private int[] lengths;
+	
+	/**
+	 * Index of the next value of the same slot, or -1.
+	 */
+	private int[] next;
+	
+	/**
+	 * Number of the values.
+	 */
+	private int count = 0;
+	
+	/**
+	 * Creates new, empty submission.
+	 * 
+	 * @param decoder
+	 *           decoder that creates this submission
+	 * @param src
+	 *           buffer with the encoded data
+	 */
+	Submission(SubmissionDecoder decoder, byte[] src) {
+		this.decoder = decoder;
+		this.src = src;
+		this.first = new int[decoder.size()];
+		this.last = new int[decoder.size()];
+		this.counts = new int[decoder.size()];
+		Arrays.fill(first, -1);
+		Arrays.fill(last, -1);
+		int capacity = Math.max(4, decoder.size());
+		this.offsets = new int[capacity];
+		this.lengths = new int[capacity];
+		this.next = new int[capacity];
+	}
+	
+	/**
+	 * Adds a value of the given slot.
+	 * 
+	 * @param slot
+	 *           number of the slot
+	 * @param off
+	 *           offset of the encoded value
+	 * @param len
+	 *           length of the encoded value
+	 * @return number of the values of the slot, including the added one
+	 */
+	int add(int slot, int off, int len) {
+		if (count == offsets.length) {
+			offsets = Arrays.copyOf(offsets, count * 2);
+			lengths = Arrays.copyOf(lengths, count * 2);
+			next = Arrays.copyOf(next, count * 2);
+		}
+		offsets[count] = off;
+		lengths[count] = len;
+		next[count] = -1;
+		if (last[slot] < 0)
+			first[slot] = count;
+		else
+			next[last[slot]] = count;
+		last[slot] = count;
+		count++;
+		return ++counts[slot];
+	}
+	
+	/**
+	 * Returns the decoder that created this submission.
+	 * 
+	 * @return the decoder
+	 */
+	public SubmissionDecoder getDecoder() {
+		return decoder;
+	}
+	
+	/**
+	 * Returns the index of the first value of the given slot.
+	 * 
+	 * @param slot
+	 *           number of the slot, or -1
+	 * @return index of the value, or -1 if there is none
+	 */
+	private int firstValue(int slot) {
+		return slot < 0 ? -1 : first[slot];
+	}
+	
+	/**
+	 * Checks if the phone sent a value with the given key.
+	 * 
+	 * @param key
+	 *           key of the field
+	 * @return true if there is at least one value
+	 */
+	public boolean contains(String key) {
+		return contains(decoder.indexOf(key));
+	}
+	
+	/**
+	 * Checks if the phone sent a value of the given slot.
+	 * 
+	 * @param slot
+	 *           number of the slot
+	 * @return true if there is at least one value
+	 */
+	public boolean contains(int slot) {
+		return firstValue(slot) >= 0;
+	}
+	
+	/**
+	 * Returns the number of values sent with the given key, which may be more than one
+	 * for choices of many options.
+	 * 
+	 * @param key
+	 *           key of the field
+	 * @return number of the values
+	 */
+	public int getCount(String key) {
+		return getCount(decoder.indexOf(key));
+	}
+	
+	/**
+	 * Returns the number of values of the given slot.
+	 * 
+	 * @param slot
+	 *           number of the slot
+	 * @return number of the values
+	 */
+	public int getCount(int slot) {
+		return slot < 0 ? 0 : counts[slot];
+	}
+	
+	/**
+	 * Returns the value with the given key as text.
+	 * 
+	 * @param key
+	 *           key of the field
+	 * @return the first value, or null if there is none
+	 * @throws IllegalArgumentException
+	 *            when the value contains illegal escape sequences
+	 */
+	public String getString(String key) {
+		return getString(decoder.indexOf(key));
+	}
+	
+	/**
+	 * Returns the value of the given slot as text.
+	 * 
+	 * @param slot
+	 *           number of the slot
+	 * @return the first value, or null if there is none
+	 * @throws IllegalArgumentException
+	 *            when the value contains illegal escape sequences
+	 */
+	public String getString(int slot) {
+		int i = firstValue(slot);
+		return i < 0 ? null : FormEncoding.decode(src, offsets[i], lengths[i]);
+	}
+	
+	/**
+	 * Returns all values with the given key as text, for example the values of all chosen
+	 * options.
+	 * 
+	 * @param key
+	 *           key of the field
+	 * @return the values in the order in which they were sent, empty if there are none
+	 * @throws IllegalArgumentException
+	 *            when a value contains illegal escape sequences
+	 */
+	public Set<String> getValues(String key) {
+		return getValues(decoder.indexOf(key));
+	}
+	
+	/**
+	 * Returns all values of the given slot as text.
+	 * 
+	 * @param slot
+	 *           number of the slot
+	 * @return the values in the order in which they were sent, empty if there are none
+	 * @throws IllegalArgumentException
+	 *            when a value contains illegal escape sequences
+	 */
+	public Set<String> getValues(int slot) {
+		LinkedHashSet<String> values = new LinkedHashSet<String>();
+		for (int i = firstValue(slot); i >= 0; i = next[i])
+			values.add(FormEncoding.decode(src, offsets[i], lengths[i]));
+		return values;
+	}
+	
+	/**
+	 * Checks if any of the values with the given key is equal to the given value, for
+	 * example if an option was chosen. The values are compared without decoding them.
+	 * 
+	 * @param key
+	 *           key of the field
+	 * @param value
+	 *           value to look for
+	 * @return true if the value was sent
+	 */
+	public boolean isSelected(String key, String value) {
+		return isSelected(decoder.indexOf(key), value);
+	}
+	
+	/**
+	 * Checks if any of the values of the given slot is equal to the given value.
+	 * 
+	 * @param slot
+	 *           number of the slot
+	 * @param value
+	 *           value to look for
+	 * @return true if the value was sent
+	 */
+	public boolean isSelected(int slot, String value) {
+		byte[] bytes = value.getBytes(FormEncoding.UTF8);
+		for (int i = firstValue(slot); i >= 0; i = next[i])
+			if (FormEncoding.matches(src, offsets[i], lengths[i], bytes))
+				return true;
+		return false;
+	}
+	
+	/**
+	 * Returns the value with the given key as a number.
+	 * 
+	 * @param key
+	 *           key of the field
+	 * @param defaultValue
+	 *           returned if there is no value, or the value is empty
+	 * @return the first value
+	 * @throws NumberFormatException
+	 *            when the value is not a decimal integer
+	 */
+	public int getInt(String key, int defaultValue) {
+		return getInt(decoder.indexOf(key), defaultValue);
+	}
+	
+	/**
+	 * Returns the value of the given slot as a number.
+	 * 
+	 * @param slot
+	 *           number of the slot
+	 * @param defaultValue
+	 *           returned if there is no value, or the value is empty
+	 * @return the first value
+	 * @throws NumberFormatException
+	 *            when the value is not a decimal integer
+	 */
+	public int getInt(int slot, int defaultValue) {
+		int i = firstValue(slot);
+		if (i < 0 || lengths[i] == 0)
+			return defaultValue;
+		long value = parseInt(src, offsets[i], lengths[i]);
+		if (value == Long.MIN_VALUE)
+			throw new NumberFormatException("value of " + decoder.getKey(slot)
+					+ " is not a number");
+		return (int) value;
+	}
+	
+	/**
+	 * Returns the value with the given key as a date, at midnight in the default time
+	 * zone.
+	 * 
+	 * @param key
+	 *           key of the field
+	 * @return the first value, or null if there is none or it is empty
+	 * @throws IllegalArgumentException
+	 *            when the value is not a date in YYYY-MM-DD format
+	 */
+	public GregorianCalendar getDate(String key) {
+		return getDate(decoder.indexOf(key));
+	}
+	
+	/**
+	 * Returns the value of the given slot as a date, at midnight in the default time zone.
+	 * 
+	 * @param slot
+	 *           number of the slot
+	 * @return the first value, or null if there is none or it is empty
+	 * @throws IllegalArgumentException
+	 *            when the value is not a date in YYYY-MM-DD format
+	 */
+	public GregorianCalendar getDate(int slot) {
+		int i = firstValue(slot);
+		if (i < 0 || lengths[i] == 0)
+			return null;
+		int date = parseDate(src, offsets[i], lengths[i]);
+		if (date < 0)
+			throw new IllegalArgumentException("value of " + decoder.getKey(slot)
+					+ " is not a date");
+		return new GregorianCalendar(date / 10000, date / 100 % 100 - 1, date % 100);
+	}
+	
+	/**
+	 * Returns the value with the given key as the time of the day.
+	 * 
+	 * @param key
+	 *           key of the field
+	 * @param defaultValue
+	 *           returned if there is no value, or the value is empty
+	 * @return the first value, in milliseconds since midnight
+	 * @throws IllegalArgumentException
+	 *            when the value is not a time in HH:MM, HH:MM:SS or HH:MM:SS.mmm format
+	 */
+	public int getTime(String key, int defaultValue) {
+		return getTime(decoder.indexOf(key), defaultValue);
+	}
+	
+	/**
+	 * Returns the value of the given slot as the time of the day.
+	 * 
+	 * @param slot
+	 *           number of the slot
+	 * @param defaultValue
+	 *           returned if there is no value, or the value is empty
+	 * @return the first value, in milliseconds since midnight
+	 * @throws IllegalArgumentException
+	 *            when the value is not a time in HH:MM, HH:MM:SS or HH:MM:SS.mmm format
+	 */
+	public int getTime(int slot, int defaultValue) {
+		int i = firstValue(slot);
+		if (i < 0 || lengths[i] == 0)
+			return defaultValue;
+		int time = parseTime(src, offsets[i], lengths[i]);
+		if (time < 0)
+			throw new IllegalArgumentException("value of " + decoder.getKey(slot)
+					+ " is not a time");
+		return time;
+	}
+	
+	/**
+	 * Reads a decimal integer from encoded data.
+	 * 
+	 * @param src
+	 *           buffer with encoded data
+	 * @param off
+	 *           offset of the encoded value
+	 * @param len
+	 *           length of the encoded value
+	 * @return the number, or Long.MIN_VALUE if the value is not a decimal integer that
+	 *         fits in an int
+	 */
+	static long parseInt(byte[] src, int off, int len) {
+		int pos = off;
+		int end = off + len;
+		boolean negative = pos < end && src[pos] == '-';
+		if (negative)
+			pos++;
+		if (pos == end)
+			return Long.MIN_VALUE;
+		long value = 0;
+		for (; pos < end; pos++) {
+			int digit = src[pos] - '0';
+			if (digit < 0 || digit > 9)
+				return Long.MIN_VALUE;
+			value = value * 10 + digit;
+			if (value > Integer.MAX_VALUE + 1L)
+				return Long.MIN_VALUE;
+		}
+		if (negative)
+			value = -value;
+		return value > Integer.MAX_VALUE ? Long.MIN_VALUE : value;
+	}
+	
+	/**
+	 * Reads the numbers of a date or time value, separated by any characters other than
+	 * digits.
+	 * 
+	 * @param src
+	 *           buffer with encoded data
+	 * @param off
+	 *           offset of the encoded value
+	 * @param len
+	 *           length of the encoded value
+	 * @param parts
+	 *           receives the numbers
+	 * @return number of the numbers read, or -1 if there are too many of them
+	 */
+	private static int readParts(byte[] src, int off, int len, int[] parts) {
+		int end = off + len;
+		int n = 0;
+		boolean inNumber = false;
+		for (int pos = off; pos < end; pos++) {
+			int digit = src[pos] - '0';
+			if (src[pos] == '%') {
+				// an escaped character is never a digit, for example %3A is a colon
+				pos += 2;
+				digit = -1;
+			}
+			if (digit >= 0 && digit <= 9) {
+				if (!inNumber) {
+					if (n == parts.length)
+						return -1;
+					parts[n++] = 0;
+				}
+				if (parts[n - 1] > 99999)
+					return -1;
+				parts[n - 1] = parts[n - 1] * 10 + digit;
+				inNumber = true;
+			} else {
+				inNumber = false;
+			}
+		}
+		return n;
+	}
+	
+	/**
+	 * Reads a date in YYYY-MM-DD format from encoded data.
+	 * 
+	 * @param src
+	 *           buffer with encoded data
+	 * @param off
+	 *           offset of the encoded value
+	 * @param len
+	 *           length of the encoded value
+	 * @return the date as YYYYMMDD number, or -1 if the value is not a date
+	 */
+	static int parseDate(byte[] src, int off, int len) {
+		int[] parts = new int[3];
+		if (readParts(src, off, len, parts) != 3 || parts[0] > 9999 || parts[1] < 1
+				|| parts[1] > 12 || parts[2] < 1 || parts[2] > 31)
+			return -1;
+		return parts[0] * 10000 + parts[1] * 100 + parts[2];
+	}
+	
+	/**
+	 * Reads a time in HH:MM, HH:MM:SS or HH:MM:SS.mmm format from encoded data.
+	 * 
+	 * @param src
+	 *           buffer with encoded data
+	 * @param off
+	 *           offset of the encoded value
+	 * @param len
+	 *           length of the encoded value
+	 * @return the time in milliseconds since midnight, or -1 if the value is not a time
+	 */
+	static int parseTime(byte[] src, int off, int len) {
+		int[] parts = new int[4];
+		int n = readParts(src, off, len, parts);
+		if (n < 2 || parts[0] > 23 || parts[1] > 59 || parts[2] > 59 || parts[3] > 999)
+			return -1;
+		return ((parts[0] * 60 + parts[1]) * 60 + parts[2]) * 1000 + parts[3];
+	}
+	
+}
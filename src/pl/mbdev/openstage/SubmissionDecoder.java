@@ -0,0 +1,227 @@
+package pl.mbdev.openstage;
+
+import pl.mbdev.openstage.push.FormEncoding;
+
+/**
+ * Decodes the key-value pairs that the phone sends back when the user confirms a screen,
+ * for example an {@link IppForm}, an {@link IppList} or an {@link IppTextBox}. The decoder
+ * is created from the same objects that were sent to the phone, so it knows every key that
+ * can come back and the type of its value, see {@link SubmissionSchema}. The encoded data
+ * is scanned only once, and is validated during the scan; the values stay in it, see
+ * {@link Submission}.<br />
+ * <br />
+ * A decoder does not change after it is created, so a single decoder may be shared by
+ * many threads, and should be created once for each kind of screen.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public class SubmissionDecoder {
+	
+	/**
+	 * Types of the values sent back by the phone.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	public enum FieldType {
+		/**
+		 * Text from {@link IppTextField} or {@link IppTextBox}.
+		 */
+		TEXT,
+		/**
+		 * Number from {@link IppTextField} or {@link IppTextBox} with numeric constraint.
+		 */
+		NUMERIC,
+		/**
+		 * Date from {@link IppDateField}, in YYYY-MM-DD format.
+		 */
+		DATE,
+		/**
+		 * Time from {@link IppDateField}, in HH:MM:SS format, possibly with milliseconds.
+		 */
+		TIME,
+		/**
+		 * Value of an interactive {@link IppGauge}.
+		 */
+		GAUGE,
+		/**
+		 * Value of the chosen {@link Option}, when at most one option can be chosen.
+		 */
+		CHOICE,
+		/**
+		 * Values of the chosen {@link Option}s, when many options can be chosen.
+		 */
+		MULTIPLE_CHOICE,
+		/**
+		 * Value of the selected {@link IppCommand}.
+		 */
+		COMMAND,
+		/**
+		 * Value of {@link IppHidden}.
+		 */
+		HIDDEN;
+	}
+	
+	/**
+	 * Compiled schema of the screen.
+	 */
+	private final SubmissionSchema schema;
+	
+	/**
+	 * Creates new decoder for the submissions of the given screen, with default limits.
+	 * 
+	 * @param definition
+	 *           screen, or a part of it, whose submissions will be decoded
+	 */
+	public SubmissionDecoder(Xml definition) {
+		this(new SubmissionSchema(definition));
+	}
+	
+	/**
+	 * Creates new decoder for the submissions described by the given schema.
+	 * 
+	 * @param schema
+	 *           compiled schema of the screen
+	 */
+	public SubmissionDecoder(SubmissionSchema schema) {
+		if (schema == null)
+			throw new NullPointerException("schema cannot be null");
+		this.schema = schema;
+	}
+	
+	/**
+	 * Returns the schema used by this decoder.
+	 * 
+	 * @return compiled schema of the screen
+	 */
+	public SubmissionSchema getSchema() {
+		return schema;
+	}
+	
+	/**
+	 * Returns the number of fields.
+	 * 
+	 * @return number of distinct keys that the phone may send back
+	 */
+	public int size() {
+		return schema.size();
+	}
+	
+	/**
+	 * Returns the key of the field at the given position.
+	 * 
+	 * @param index
+	 *           position of the field, from 0 to size() - 1
+	 * @return key of the field
+	 */
+	public String getKey(int index) {
+		return schema.getKey(index);
+	}
+	
+	/**
+	 * Returns the type of the field at the given position.
+	 * 
+	 * @param index
+	 *           position of the field, from 0 to size() - 1
+	 * @return type of the field
+	 */
+	public FieldType getType(int index) {
+		return schema.getType(index);
+	}
+	
+	/**
+	 * Returns the position of the field with the given key, which is its slot in the
+	 * schema.
+	 * 
+	 * @param key
+	 *           key of the field
+	 * @return position of the field, or -1 if there is no such field
+	 */
+	public int indexOf(String key) {
+		return schema.slotOf(key);
+	}
+	
+	/**
+	 * Decodes the submission from the "application/x-www-form-urlencoded" format, in which
+	 * the phone sends it in the query string or in the body of the request. The given
+	 * buffer is not copied, and must not be modified while the submission is used.
+	 * 
+	 * @param src
+	 *           buffer with encoded data
+	 * @param off
+	 *           offset of the encoded data in the buffer
+	 * @param len
+	 *           length of the encoded data
+	 * @return decoded submission; pairs with unknown keys are ignored
+	 * @throws IllegalArgumentException
+	 *            when the submission is too long, or has a value that is malformed, too
+	 *            long, not allowed by the screen, or repeated too many times
+	 */
+	public Submission decode(byte[] src, int off, int len) {
+		if (len > schema.getMaxLength())
+			throw new IllegalArgumentException("submission is too long");
+		Submission submission = new Submission(this, src);
+		int unknown = 0;
+		int end = off + len;
+		int start = off;
+		while (start < end) {
+			int separator = start;
+			int equals = -1;
+			while (separator < end && src[separator] != '&') {
+				if (equals < 0 && src[separator] == '=')
+					equals = separator;
+				separator++;
+			}
+			if (separator > start) {
+				int keyEnd = equals < 0 ? separator : equals;
+				int slot = schema.slotOf(src, start, keyEnd - start);
+				if (slot >= 0) {
+					int valueStart = equals < 0 ? separator : equals + 1;
+					schema.check(slot, src, valueStart, separator - valueStart);
+					if (submission.add(slot, valueStart, separator - valueStart) > schema
+							.getMaxCount(slot))
+						throw new IllegalArgumentException("too many values of "
+								+ schema.getKey(slot));
+				} else if (++unknown > SubmissionSchema.MAX_UNKNOWN) {
+					throw new IllegalArgumentException("too many unknown keys");
+				}
+			}
+			start = separator + 1;
+		}
+		return submission;
+	}
+	
+	/**
+	 * Decodes the submission from the "application/x-www-form-urlencoded" format, for
+	 * example from the query string of the request. A leading '?' is ignored.
+	 * 
+	 * @param encoded
+	 *           encoded data
+	 * @return decoded submission; pairs with unknown keys are ignored
+	 * @throws IllegalArgumentException
+	 *            when the submission is not allowed by the schema of the screen
+	 */
+	public Submission decode(String encoded) {
+		byte[] bytes = encoded.getBytes(FormEncoding.UTF8);
+		if (bytes.length > 0 && bytes[0] == '?')
+			return decode(bytes, 1, bytes.length - 1);
+		return decode(bytes, 0, bytes.length);
+	}
+	
+}
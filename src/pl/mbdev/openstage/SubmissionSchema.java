@@ -0,0 +1,550 @@
+package pl.mbdev.openstage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import pl.mbdev.openstage.SubmissionDecoder.FieldType;
+import pl.mbdev.openstage.push.FormEncoding;
+
+/**
+ * Compiled description of everything the phone may send back from a screen: the key of
+ * each field, the type of its value and the constraints on it, such as the maximum length
+ * of a text, the maximum value of a gauge or the values of the options of a choice. Each
+ * key is given a slot, numbered from 0, and keys are mapped to slots by a perfect hash
+ * function found when the schema is compiled, so finding the slot of a key in the encoded
+ * data takes a single comparison.<br />
+ * <br />
+ * The schema is used by {@link SubmissionDecoder} to reject malformed or oversized
+ * submissions while they are decoded, before any of their values is read.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public final class SubmissionSchema {
+	
+	/**
+	 * Default maximum length of the whole encoded submission, in bytes.
+	 */
+	public static final int DEFAULT_MAX_LENGTH = 16384;
+	
+	/**
+	 * Default maximum length of a value whose length is not limited by the screen, in
+	 * characters.
+	 */
+	public static final int DEFAULT_MAX_VALUE_LENGTH = 1024;
+	
+	/**
+	 * Number of pairs with unknown keys that are ignored before the submission is
+	 * rejected.
+	 */
+	static final int MAX_UNKNOWN = 32;
+	
+	/**
+	 * Field found in the definition of the screen, while the schema is compiled.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private static class Field {
+		
+		/**
+		 * Key of the field.
+		 */
+		final String key;
+		
+		/**
+		 * Type of the field.
+		 */
+		FieldType type;
+		
+		/**
+		 * Maximum length of the value, in characters, or a non-positive number if it is
+		 * not limited by the screen.
+		 */
+		int maxSize = -1;
+		
+		/**
+		 * Maximum value of a gauge, or -1 if it is not known.
+		 */
+		int maximum = -1;
+		
+		/**
+		 * Allowed values of a choice or a command.
+		 */
+		final ArrayList<String> values = new ArrayList<String>();
+		
+		/**
+		 * Creates new field.
+		 * 
+		 * @param key
+		 *           key of the field
+		 * @param type
+		 *           type of the field
+		 */
+		Field(String key, FieldType type) {
+			this.key = key;
+			this.type = type;
+		}
+		
+	}
+	
+	/**
+	 * Keys of the slots.
+	 */
+	private final String[] keys;
+	
+	/**
+	 * Keys of the slots, encoded as UTF-8.
+	 */
+	private final byte[][] keyBytes;
+	
+	/**
+	 * Types of the slots.
+	 */
+	private final FieldType[] types;
+	
+	/**
+	 * Maximum length of the value of each slot, in characters.
+	 */
+	private final int[] maxSizes;
+	
+	/**
+	 * Maximum value of each gauge slot, or -1.
+	 */
+	private final int[] maximums;
+	
+	/**
+	 * Maximum number of values of each slot.
+	 */
+	private final int[] maxCounts;
+	
+	/**
+	 * Allowed values of each slot, encoded as UTF-8, or null if any value is allowed.
+	 */
+	private final byte[][][] allowed;
+	
+	/**
+	 * Slots by the keys, for reading the values by key.
+	 */
+	private final HashMap<String, Integer> slots;
+	
+	/**
+	 * Seed of the perfect hash function.
+	 */
+	private final int seed;
+	
+	/**
+	 * Slot for each value of the hash function, or -1.
+	 */
+	private final int[] table;
+	
+	/**
+	 * Maximum length of the whole encoded submission, in bytes.
+	 */
+	private final int maxLength;
+	
+	/**
+	 * Compiles the schema of the given screen, with default limits.
+	 * 
+	 * @param definition
+	 *           screen, or a part of it, whose submissions will be decoded
+	 */
+	public SubmissionSchema(Xml definition) {
+		this(definition, DEFAULT_MAX_LENGTH, DEFAULT_MAX_VALUE_LENGTH);
+	}
+	
+	/**
+	 * Compiles the schema of the given screen.
+	 * 
+	 * @param definition
+	 *           screen, or a part of it, whose submissions will be decoded
+	 * @param maxLength
+	 *           maximum length of the whole encoded submission, in bytes
+	 * @param maxValueLength
+	 *           maximum length of a value whose length is not limited by the screen, in
+	 *           characters
+	 */
+	public SubmissionSchema(Xml definition, int maxLength, int maxValueLength) {
+		if (definition == null)
+			throw new NullPointerException("definition of the screen cannot be null");
+		if (maxLength < 1 || maxValueLength < 1)
+			throw new IllegalArgumentException("maximum lengths must be positive");
+		this.maxLength = maxLength;
+		
+		ArrayList<Field> fields = new ArrayList<Field>();
+		collect(definition.getLogicalRoot(), false, fields);
+		
+		int n = fields.size();
+		keys = new String[n];
+		keyBytes = new byte[n][];
+		types = new FieldType[n];
+		maxSizes = new int[n];
+		maximums = new int[n];
+		maxCounts = new int[n];
+		allowed = new byte[n][][];
+		slots = new HashMap<String, Integer>();
+		for (int i = 0; i < n; i++) {
+			Field field = fields.get(i);
+			keys[i] = field.key;
+			keyBytes[i] = field.key.getBytes(FormEncoding.UTF8);
+			types[i] = field.type;
+			maxSizes[i] = field.maxSize > 0 ? Math.min(field.maxSize, maxValueLength)
+					: maxValueLength;
+			maximums[i] = field.maximum;
+			maxCounts[i] = field.type == FieldType.MULTIPLE_CHOICE ? Math.max(1,
+					field.values.size()) : 1;
+			if (field.type == FieldType.CHOICE || field.type == FieldType.MULTIPLE_CHOICE
+					|| field.type == FieldType.COMMAND) {
+				allowed[i] = new byte[field.values.size()][];
+				for (int v = 0; v < allowed[i].length; v++)
+					allowed[i][v] = field.values.get(v).getBytes(FormEncoding.UTF8);
+			}
+			slots.put(field.key, i);
+		}
+		
+		// the table is at most half full, and grows if no seed separates all the keys
+		int size = Integer.highestOneBit(Math.max(1, n) * 2 - 1) * 2;
+		int s = 0;
+		int[] candidate = null;
+		while (candidate == null) {
+			if (++s > 1024) {
+				s = 1;
+				size *= 2;
+			}
+			candidate = buildTable(s, size);
+		}
+		this.seed = s;
+		this.table = candidate;
+	}
+	
+	/**
+	 * Tries to build the table of the perfect hash function with the given seed.
+	 * 
+	 * @param s
+	 *           seed of the hash function
+	 * @param size
+	 *           size of the table, a power of two
+	 * @return the table, or null if two keys have the same hash
+	 */
+	private int[] buildTable(int s, int size) {
+		int[] candidate = new int[size];
+		Arrays.fill(candidate, -1);
+		for (int i = 0; i < keyBytes.length; i++) {
+			int bucket = hash(s, keyBytes[i], 0, keyBytes[i].length, false) & (size - 1);
+			if (candidate[bucket] >= 0)
+				return null;
+			candidate[bucket] = i;
+		}
+		return candidate;
+	}
+	
+	/**
+	 * Computes the hash of the given bytes, which may be encoded.
+	 * 
+	 * @param s
+	 *           seed of the hash function
+	 * @param src
+	 *           buffer with the bytes
+	 * @param off
+	 *           offset of the bytes
+	 * @param len
+	 *           number of the bytes
+	 * @param encoded
+	 *           true if the bytes are in the "application/x-www-form-urlencoded" format,
+	 *           and the hash of the decoded bytes is computed
+	 * @return the hash
+	 */
+	private static int hash(int s, byte[] src, int off, int len, boolean encoded) {
+		int h = 0x811C9DC5 ^ (s * 0x9E3779B9);
+		int end = off + len;
+		for (int i = off; i < end; i++) {
+			int b = src[i];
+			if (encoded && b == '+') {
+				b = ' ';
+			} else if (encoded && b == '%' && i + 2 < end) {
+				b = (Character.digit(src[i + 1], 16) << 4) | Character.digit(src[i + 2], 16);
+				i += 2;
+			}
+			h = (h ^ (b & 0xFF)) * 0x01000193;
+		}
+		return h ^ (h >>> 16);
+	}
+	
+	/**
+	 * Finds the fields in the given node and all its sub-nodes.
+	 * 
+	 * @param node
+	 *           XML node
+	 * @param multiple
+	 *           true if many options of the enclosing choice can be chosen
+	 * @param fields
+	 *           fields found so far
+	 */
+	private static void collect(Xml node, boolean multiple, ArrayList<Field> fields) {
+		if (node instanceof IppTextField) {
+			IppTextField textField = (IppTextField) node;
+			Field field = addField(textField.getKey(),
+					textField.getConstraint() == IppTextField.Constraint.NUMERIC
+							? FieldType.NUMERIC : FieldType.TEXT, fields);
+			if (field != null)
+				field.maxSize = textField.getMaxSize();
+		} else if (node instanceof IppTextBox) {
+			IppTextBox box = (IppTextBox) node;
+			Field field = addField(box.getKey(),
+					box.getConstraint() == IppTextBox.Constraint.NUMERIC ? FieldType.NUMERIC
+							: FieldType.TEXT, fields);
+			if (field != null)
+				field.maxSize = box.getMaxSize();
+		} else if (node instanceof IppDateField) {
+			IppDateField dateField = (IppDateField) node;
+			if (dateField.getMode() != IppDateField.Mode.TIME)
+				addField(dateField.getDateKey(), FieldType.DATE, fields);
+			if (dateField.getMode() != IppDateField.Mode.DATE)
+				addField(dateField.getTimeKey(), FieldType.TIME, fields);
+		} else if (node instanceof IppGauge) {
+			IppGauge gauge = (IppGauge) node;
+			if (gauge.getInteractive() == IppGauge.Interactive.USER) {
+				Field field = addField(gauge.getKey(), FieldType.GAUGE, fields);
+				if (field != null) {
+					try {
+						field.maximum = Integer.parseInt(gauge.getMaximum().trim());
+					} catch (NumberFormatException e) {
+						field.maximum = -1;
+					}
+				}
+			}
+		} else if (node instanceof Option) {
+			Option option = (Option) node;
+			Field field = addField(option.getKey(), multiple ? FieldType.MULTIPLE_CHOICE
+					: FieldType.CHOICE, fields);
+			if (field != null && option.getValue() != null)
+				field.values.add(option.getValue());
+		} else if (node instanceof IppCommand) {
+			IppCommand command = (IppCommand) node;
+			Field field = addField(command.getKey(), FieldType.COMMAND, fields);
+			if (field != null)
+				field.values.add(command.getValue());
+		} else if (node instanceof IppHidden) {
+			addField(((IppHidden) node).getKey(), FieldType.HIDDEN, fields);
+		} else if (node instanceof IppChoiceGroup) {
+			multiple = ((IppChoiceGroup) node).getType() == IppChoiceGroup.Type.MULTIPLE;
+		} else if (node instanceof IppList) {
+			multiple = ((IppList) node).getType() == IppList.Type.MULTIPLE;
+		}
+		for (Xml subNode : node.getSubNodes())
+			collect(subNode, multiple, fields);
+	}
+	
+	/**
+	 * Adds a field, or returns the field with the same key if it was already found.
+	 * Options of many choices, and many commands, may share a key; the values of all of
+	 * them are then allowed, and the field accepts many values if any of the choices does.
+	 * 
+	 * @param key
+	 *           key of the field, ignored if null or empty
+	 * @param type
+	 *           type of the field
+	 * @param fields
+	 *           fields found so far
+	 * @return the field, or null if the key was ignored
+	 */
+	private static Field addField(String key, FieldType type, ArrayList<Field> fields) {
+		if (key == null || key.length() == 0)
+			return null;
+		for (Field field : fields) {
+			if (field.key.equals(key)) {
+				if (type == FieldType.MULTIPLE_CHOICE && field.type == FieldType.CHOICE)
+					field.type = type;
+				return field;
+			}
+		}
+		Field field = new Field(key, type);
+		fields.add(field);
+		return field;
+	}
+	
+	/**
+	 * Returns the number of slots.
+	 * 
+	 * @return number of distinct keys that the phone may send back
+	 */
+	public int size() {
+		return keys.length;
+	}
+	
+	/**
+	 * Returns the key of the given slot.
+	 * 
+	 * @param slot
+	 *           number of the slot, from 0 to size() - 1
+	 * @return key of the slot
+	 */
+	public String getKey(int slot) {
+		return keys[slot];
+	}
+	
+	/**
+	 * Returns the type of the given slot.
+	 * 
+	 * @param slot
+	 *           number of the slot, from 0 to size() - 1
+	 * @return type of the values of the slot
+	 */
+	public FieldType getType(int slot) {
+		return types[slot];
+	}
+	
+	/**
+	 * Returns the maximum number of values of the given slot.
+	 * 
+	 * @param slot
+	 *           number of the slot, from 0 to size() - 1
+	 * @return the number of options for choices of many options, 1 for other slots
+	 */
+	public int getMaxCount(int slot) {
+		return maxCounts[slot];
+	}
+	
+	/**
+	 * Returns the maximum length of the whole encoded submission.
+	 * 
+	 * @return maximum length, in bytes
+	 */
+	public int getMaxLength() {
+		return maxLength;
+	}
+	
+	/**
+	 * Returns the slot of the given key. Applications should find the slots of their keys
+	 * once, and then read the values by slots.
+	 * 
+	 * @param key
+	 *           key of the field
+	 * @return number of the slot, or -1 if there is no such key
+	 */
+	public int slotOf(String key) {
+		Integer slot = slots.get(key);
+		return slot == null ? -1 : slot;
+	}
+	
+	/**
+	 * Returns the slot of the key that is the given fragment of encoded data.
+	 * 
+	 * @param src
+	 *           buffer with encoded data
+	 * @param off
+	 *           offset of the encoded key
+	 * @param len
+	 *           length of the encoded key
+	 * @return number of the slot, or -1 if there is no such key
+	 */
+	int slotOf(byte[] src, int off, int len) {
+		int slot = table[hash(seed, src, off, len, true) & (table.length - 1)];
+		if (slot >= 0 && FormEncoding.matches(src, off, len, keyBytes[slot]))
+			return slot;
+		return -1;
+	}
+	
+	/**
+	 * Checks if the given encoded value is allowed in the given slot.
+	 * 
+	 * @param slot
+	 *           number of the slot
+	 * @param src
+	 *           buffer with encoded data
+	 * @param off
+	 *           offset of the encoded value
+	 * @param len
+	 *           length of the encoded value
+	 * @throws IllegalArgumentException
+	 *            when the value is malformed, too long, or not allowed
+	 */
+	void check(int slot, byte[] src, int off, int len) {
+		int length = decodedLength(src, off, len);
+		if (length < 0)
+			throw new IllegalArgumentException("value of " + keys[slot]
+					+ " contains an illegal escape sequence");
+		if (length > maxSizes[slot])
+			throw new IllegalArgumentException("value of " + keys[slot] + " is too long");
+		if (allowed[slot] != null) {
+			for (byte[] value : allowed[slot])
+				if (FormEncoding.matches(src, off, len, value))
+					return;
+			throw new IllegalArgumentException("value of " + keys[slot] + " is not allowed");
+		}
+		if (len == 0)
+			return;
+		switch (types[slot]) {
+			case NUMERIC:
+				if (Submission.parseInt(src, off, len) == Long.MIN_VALUE)
+					throw new IllegalArgumentException("value of " + keys[slot]
+							+ " is not a number");
+				break;
+			case GAUGE:
+				long value = Submission.parseInt(src, off, len);
+				if (value < 0 || (maximums[slot] >= 0 && value > maximums[slot]))
+					throw new IllegalArgumentException("value of " + keys[slot]
+							+ " is out of range");
+				break;
+			case DATE:
+				if (Submission.parseDate(src, off, len) < 0)
+					throw new IllegalArgumentException("value of " + keys[slot]
+							+ " is not a date");
+				break;
+			case TIME:
+				if (Submission.parseTime(src, off, len) < 0)
+					throw new IllegalArgumentException("value of " + keys[slot]
+							+ " is not a time");
+				break;
+			default:
+				break;
+		}
+	}
+	
+	/**
+	 * Computes the number of characters of the given encoded text.
+	 * 
+	 * @param src
+	 *           buffer with encoded text
+	 * @param off
+	 *           offset of the encoded text
+	 * @param len
+	 *           length of the encoded text
+	 * @return number of characters, or -1 if the text contains an illegal escape sequence
+	 */
+	private static int decodedLength(byte[] src, int off, int len) {
+		int length = 0;
+		int end = off + len;
+		for (int i = off; i < end; i++) {
+			int b = src[i];
+			if (b == '%') {
+				if (i + 2 >= end || Character.digit(src[i + 1], 16) < 0
+						|| Character.digit(src[i + 2], 16) < 0)
+					return -1;
+				b = (Character.digit(src[i + 1], 16) << 4) | Character.digit(src[i + 2], 16);
+				i += 2;
+			}
+			// continuation bytes of UTF-8 sequences do not start new characters
+			if ((b & 0xC0) != 0x80)
+				length++;
+		}
+		return length;
+	}
+	
+}
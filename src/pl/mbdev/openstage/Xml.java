@@ -1,6 +1,12 @@
 package pl.mbdev.openstage;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
 
 import java.util.ArrayList;
 
@@ -30,6 +36,11 @@ import java.util.ArrayList;
  */
 public abstract class Xml {
 	
+	/**
+	 * Encoding of the XML sent to the phone.
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
 	/**
 	 * Name of this object in its XML-text form.
 	 */
@@ -328,11 +339,29 @@ public abstract class Xml {
 	 */
 	protected StringBuffer subObjectsToXmlString(int indent) {
 		StringBuffer sb = new StringBuffer();
-		for (Xml o : subObjects)
-			sb.append(o.toXmlString(indent));
+		try {
+			this.writeSubObjects(sb, indent);
+		} catch (IOException e) {
+			throw new RuntimeException("StringBuffer cannot fail", e);
+		}
 		return sb;
 	}
 	
+	/**
+	 * Writes XML-text representation of every sub-object of this object.
+	 * 
+	 * @param out
+	 *           receives the XML-text
+	 * @param indent
+	 *           indent of the output of this function, done by tab character
+	 * @throws IOException
+	 *            when the output cannot be written
+	 */
+	protected void writeSubObjects(Appendable out, int indent) throws IOException {
+		for (Xml o : subObjects)
+			o.writeXml(out, indent);
+	}
+	
 	/**
 	 * Returns full XML-text representation of this object, with all objects it contains
 	 * inside, attributes, and a XML header.
@@ -343,31 +372,50 @@ public abstract class Xml {
 	 */
 	protected StringBuffer toXmlString(int indent) {
 		StringBuffer sb = new StringBuffer();
-		
+		try {
+			this.writeXml(sb, indent);
+		} catch (IOException e) {
+			throw new RuntimeException("StringBuffer cannot fail", e);
+		}
+		return sb;
+	}
+	
+	/**
+	 * Writes full XML-text representation of this object, with all objects it contains
+	 * inside and attributes. Sub-objects are written one after another, so the whole text
+	 * is never held in memory at once.
+	 * 
+	 * @param out
+	 *           receives the XML-text
+	 * @param indent
+	 *           indent of the output of this function, done by tab character
+	 * @throws IOException
+	 *            when the output cannot be written
+	 */
+	protected void writeXml(Appendable out, int indent) throws IOException {
 		// adding indent
 		for (int i = 0; i < indent; i++)
-			sb.append("\t");
+			out.append('\t');
 		
-		sb.append("<").append(this.nodeName).append(this.firstAttributesToXmlString())
+		out.append('<').append(this.nodeName).append(this.firstAttributesToXmlString())
 				.append(this.attributesToXmlString());
 		
 		if (this.isEmpty()) {
-			sb.append(" />\n");
-			return sb;
+			out.append(" />\n");
+			return;
 		} else
-			sb.append(">");
+			out.append('>');
 		
 		if (this.subObjectsCount() > 0) {
-			sb.append("\n");
-			sb.append(this.subObjectsToXmlString(indent + 1));
+			out.append('\n');
+			this.writeSubObjects(out, indent + 1);
 			// adding indent
 			for (int i = 0; i < indent; i++)
-				sb.append("\t");
+				out.append('\t');
 		} else if (contents.length() > 0)
-			sb.append(contents);
+			out.append(contents);
 		
-		sb.append("</").append(this.nodeName).append(">\n");
-		return sb;
+		out.append("</").append(this.nodeName).append(">\n");
 	}
 	
 	/**
@@ -393,16 +441,14 @@ public abstract class Xml {
 	}
 	
 	/**
-	 * This method sends the XML to the receiving OpenStage device.
+	 * Returns the object that is sent to the phone instead of this one: this object itself
+	 * if it is an {@link IppPhone}, or a new IppPhone with this object wrapped inside.
 	 * 
-	 * @param out
-	 *           stream that receives sent content
+	 * @return root of the sent XML
 	 * @throws IllegalArgumentException
-	 *            when the server is trying to send an object that cannot be a root or
-	 *            cannot be "made" a root
+	 *            when this object cannot be a root or cannot be "made" a root
 	 */
-	public void sendTo(PrintWriter out) throws IllegalArgumentException {
-		out.println(this.getXmlHeader().toString());
+	private IppPhone toRoot() throws IllegalArgumentException {
 		IppPhone p = null;
 		if (this instanceof IppPhone) {
 			p = (IppPhone) this;
@@ -442,7 +488,42 @@ public abstract class Xml {
 			}
 			p.add(d);
 		}
-		out.println(p.toXmlString(0));
+		return p;
+	}
+	
+	/**
+	 * This method sends the XML to the receiving OpenStage device.
+	 * 
+	 * @param out
+	 *           stream that receives sent content
+	 * @throws IllegalArgumentException
+	 *            when the server is trying to send an object that cannot be a root or
+	 *            cannot be "made" a root
+	 */
+	public void sendTo(PrintWriter out) throws IllegalArgumentException {
+		out.println(this.getXmlHeader().toString());
+		out.println(this.toRoot().toXmlString(0));
+	}
+	
+	/**
+	 * Sends the XML to the receiving OpenStage device, encoded in UTF-8. The text is
+	 * encoded while the objects are visited, through a small buffer, instead of being
+	 * built as a whole first. The stream is flushed, but not closed.
+	 * 
+	 * @param out
+	 *           stream that receives sent content
+	 * @throws IOException
+	 *            when the stream cannot be written
+	 * @throws IllegalArgumentException
+	 *            when the server is trying to send an object that cannot be a root or
+	 *            cannot be "made" a root
+	 */
+	public void sendTo(OutputStream out) throws IOException, IllegalArgumentException {
+		IppPhone p = this.toRoot();
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF8), 4096);
+		writer.append(this.getXmlHeader()).append('\n');
+		p.writeXml(writer, 0);
+		writer.flush();
 	}
 	
 	/**
@@ -102,6 +102,15 @@ public abstract class XmlText extends Xml {
 		this.isUneditable = isUneditable;
 	}
 	
+	/**
+	 * Returns the maximum length of the input.
+	 * 
+	 * @return maximum length, or a non-positive number if the length is not limited
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+	
 	protected StringBuffer attributesToXmlString() {
 		StringBuffer sb = new StringBuffer();
 		if (maxSize > 0)
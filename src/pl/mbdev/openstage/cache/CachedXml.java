@@ -0,0 +1,107 @@
+package pl.mbdev.openstage.cache;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+
+import pl.mbdev.openstage.RenderedXml;
+
+/**
+ * Rendered XML held by a {@link RenderCache}, as returned by
+ * {@link RenderCache#acquire(String)}. When the cache keeps its XML outside of the heap,
+ * the bytes are written from there, and they stay valid even if the XML is evicted in the
+ * meantime, until {@link #release()} is called. Each acquired XML must be released exactly
+ * once, after it is written:
+ * 
+ * <pre>
+ * CachedXml xml = cache.acquire(key);
+ * if (xml != null) {
+ * 	try {
+ * 		xml.writeTo(channel);
+ * 	} finally {
+ * 		xml.release();
+ * 	}
+ * }
+ * </pre>
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public abstract class CachedXml {
+	
+	/**
+	 * Created only by the cache.
+	 */
+	CachedXml() {
+	}
+	
+	/**
+	 * Returns the entity tag of this XML.
+	 * 
+	 * @return the entity tag, with quotes, ready to be sent in the "ETag" header
+	 */
+	public abstract String getETag();
+	
+	/**
+	 * Returns the exact number of bytes of this XML.
+	 * 
+	 * @return value of the "Content-Length" header
+	 */
+	public abstract int getLength();
+	
+	/**
+	 * Checks if the entity tag of this XML is listed in the value of the "If-None-Match"
+	 * header.
+	 * 
+	 * @param ifNoneMatch
+	 *           value of the header, may be null
+	 * @return true if the phone already has this XML
+	 */
+	public boolean matches(String ifNoneMatch) {
+		return RenderedXml.matches(getETag(), ifNoneMatch);
+	}
+	
+	/**
+	 * Writes the bytes of this XML to the given stream.
+	 * 
+	 * @param out
+	 *           stream that receives the XML
+	 * @throws IOException
+	 *            when the stream cannot be written
+	 */
+	public abstract void writeTo(OutputStream out) throws IOException;
+	
+	/**
+	 * Writes the bytes of this XML to the given channel; XML kept outside of the heap is
+	 * written without copying it to the heap.
+	 * 
+	 * @param channel
+	 *           channel that receives the XML
+	 * @throws IOException
+	 *            when the channel cannot be written
+	 */
+	public abstract void writeTo(WritableByteChannel channel) throws IOException;
+	
+	/**
+	 * Tells the cache that this XML is no longer used by the caller. Calling this again
+	 * does nothing.
+	 */
+	public abstract void release();
+	
+}
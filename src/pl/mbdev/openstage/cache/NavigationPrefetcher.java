@@ -0,0 +1,543 @@
+package pl.mbdev.openstage.cache;
+
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Renders and caches in the background the screens that phones are likely to request
+ * next, so that the next request is answered from the {@link RenderCache} without waiting
+ * for the backend. The likely screens are learned from the observed navigation: for each
+ * screen, the prefetcher counts which screens were requested right after it, and
+ * prefetches the few most frequent ones.<br />
+ * <br />
+ * Screens are identified by the keys of the cache, which must contain everything the
+ * phone sends to get the screen, like the selected option of a list. The navigation is
+ * observed rather than read from the XML: a command of type
+ * {@link pl.mbdev.openstage.IppCommand.Type#SCREEN} switches to a screen that was already
+ * sent in the same XML, and the URL of a form or a list receives data that is known only
+ * when the user selects it.<br />
+ * <br />
+ * Prefetching never delays the phones: at most the given number of screens is rendered at
+ * the same time, by threads of the prefetcher, further screens are skipped when too many
+ * wait, and nothing is prefetched while the cache holds more than the given number of
+ * bytes. The statistics of the navigation are bounded as well.
+ * 
+ * <pre>
+ * NavigationPrefetcher prefetcher = new NavigationPrefetcher(cache, loader, 30, 60,
+ * 		TimeUnit.SECONDS, 3, 2, cache.getMaxBytes() / 2);
+ * ...
+ * String key = request.getRequestURI() + '?' + request.getQueryString();
+ * prefetcher.visited(request.getRemoteAddr(), key);
+ * XmlResponses.send(cache.get(key, loader, 30, 60, TimeUnit.SECONDS), request, response);
+ * </pre>
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public class NavigationPrefetcher {
+	
+	/**
+	 * Maximum number of screens whose successors are counted. When a new screen does not
+	 * fit, the numbers of all transitions are halved, and the screens left without any
+	 * are forgotten.
+	 */
+	public static final int MAX_SOURCES = 4096;
+	
+	/**
+	 * Maximum number of phones whose last screen is remembered.
+	 */
+	public static final int MAX_PHONES = 16384;
+	
+	/**
+	 * Minimum number of observed transitions to a screen before it is prefetched.
+	 */
+	public static final int MIN_TRANSITIONS = 2;
+	
+	/**
+	 * Number of the prefetches that may wait for a thread, per thread.
+	 */
+	private static final int QUEUE_PER_THREAD = 4;
+	
+	/**
+	 * Count of a transition at which all counts of its screen are halved, so that the
+	 * recent navigation outweighs the old one.
+	 */
+	private static final int MAX_COUNT = 1 << 16;
+	
+	/**
+	 * Screens requested after a single screen, with the numbers of the transitions. When
+	 * all slots are taken, a new screen replaces the least frequent one and inherits its
+	 * count, so that the frequent screens are never forgotten.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private static class Successors {
+		
+		/**
+		 * Keys of the screens, null in the free slots.
+		 */
+		private final String[] keys;
+		
+		/**
+		 * Numbers of the transitions to the screens.
+		 */
+		private final int[] counts;
+		
+		/**
+		 * Creates new, empty successors.
+		 * 
+		 * @param slots
+		 *           maximum number of the screens
+		 */
+		Successors(int slots) {
+			this.keys = new String[slots];
+			this.counts = new int[slots];
+		}
+		
+		/**
+		 * Counts a transition to the given screen.
+		 * 
+		 * @param key
+		 *           key of the screen
+		 */
+		synchronized void add(String key) {
+			int slot = 0;
+			for (int i = 0; i < keys.length; i++) {
+				if (key.equals(keys[i])) {
+					slot = i;
+					break;
+				}
+				if (keys[i] == null || counts[i] < counts[slot])
+					slot = i;
+			}
+			keys[slot] = key;
+			if (++counts[slot] >= MAX_COUNT)
+				for (int i = 0; i < counts.length; i++)
+					counts[i] /= 2;
+		}
+		
+		/**
+		 * Halves the numbers of the transitions, and forgets the screens whose number drops
+		 * to 0.
+		 * 
+		 * @return true if no screen is left
+		 */
+		synchronized boolean halve() {
+			boolean empty = true;
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] /= 2;
+				if (counts[i] == 0)
+					keys[i] = null;
+				else
+					empty = false;
+			}
+			return empty;
+		}
+		
+		/**
+		 * Returns the most frequent screens.
+		 * 
+		 * @param limit
+		 *           maximum number of the screens
+		 * @return keys of the screens, from the most frequent one
+		 */
+		synchronized String[] top(int limit) {
+			String[] top = new String[Math.min(limit, keys.length)];
+			int[] topCounts = new int[top.length];
+			int n = 0;
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] == null || counts[i] < MIN_TRANSITIONS)
+					continue;
+				int j;
+				if (n < top.length)
+					j = n++;
+				else if (topCounts[n - 1] < counts[i])
+					j = n - 1;
+				else
+					continue;
+				for (; j > 0 && topCounts[j - 1] < counts[i]; j--) {
+					top[j] = top[j - 1];
+					topCounts[j] = topCounts[j - 1];
+				}
+				top[j] = keys[i];
+				topCounts[j] = counts[i];
+			}
+			if (n == top.length)
+				return top;
+			String[] result = new String[n];
+			System.arraycopy(top, 0, result, 0, n);
+			return result;
+		}
+		
+	}
+	
+	/**
+	 * Cache of the prefetched screens.
+	 */
+	private final RenderCache cache;
+	
+	/**
+	 * Loader of the prefetched screens.
+	 */
+	private final XmlLoader loader;
+	
+	/**
+	 * Time after which the prefetched screens are refreshed in the background, or 0.
+	 */
+	private final long refresh;
+	
+	/**
+	 * Time to live of the prefetched screens.
+	 */
+	private final long ttl;
+	
+	/**
+	 * Unit of the refresh time and the time to live.
+	 */
+	private final TimeUnit unit;
+	
+	/**
+	 * Maximum number of screens prefetched after each screen.
+	 */
+	private final int targets;
+	
+	/**
+	 * Size of the cache above which nothing is prefetched, in bytes.
+	 */
+	private final long maxBytes;
+	
+	/**
+	 * Threads that render the prefetched screens.
+	 */
+	private final ThreadPoolExecutor workers;
+	
+	/**
+	 * Successors of the screens, by the keys of the screens.
+	 */
+	private final ConcurrentHashMap<String, Successors> sources =
+			new ConcurrentHashMap<String, Successors>();
+	
+	/**
+	 * Last screens requested by the phones, by the addresses of the phones.
+	 */
+	private final ConcurrentHashMap<String, String> phones =
+			new ConcurrentHashMap<String, String>();
+	
+	/**
+	 * True while a thread forgets the least frequent screens.
+	 */
+	private final AtomicBoolean forgetting = new AtomicBoolean();
+	
+	/**
+	 * Keys of the screens that are waiting to be prefetched or are being prefetched.
+	 */
+	private final ConcurrentHashMap<String, Boolean> pending =
+			new ConcurrentHashMap<String, Boolean>();
+	
+	/**
+	 * Number of the prefetched screens.
+	 */
+	private final LongAdder prefetches = new LongAdder();
+	
+	/**
+	 * Number of the screens not prefetched because of the limits.
+	 */
+	private final LongAdder skipped = new LongAdder();
+	
+	/**
+	 * Number of the screens that could not be loaded.
+	 */
+	private final LongAdder failures = new LongAdder();
+	
+	/**
+	 * Creates new prefetcher, whose screens are not refreshed in the background.
+	 * 
+	 * @param cache
+	 *           cache of the prefetched screens
+	 * @param loader
+	 *           loader of the screens, the same as the one used when phones request them
+	 * @param ttl
+	 *           time to live of the prefetched screens, or 0 if they never expire
+	 * @param unit
+	 *           unit of the time to live
+	 * @param targets
+	 *           maximum number of screens prefetched after each screen
+	 * @param threads
+	 *           maximum number of screens rendered at the same time
+	 * @param maxBytes
+	 *           size of the cache above which nothing is prefetched, in bytes, at most
+	 *           the size of the cache
+	 */
+	public NavigationPrefetcher(RenderCache cache, XmlLoader loader, long ttl,
+			TimeUnit unit, int targets, int threads, long maxBytes) {
+		this(cache, loader, 0, ttl, unit, targets, threads, maxBytes);
+	}
+	
+	/**
+	 * Creates new prefetcher. Prefetched screens older than the refresh time are served
+	 * and refreshed in the background, see
+	 * {@link RenderCache#get(String, XmlLoader, long, long, TimeUnit, String...)}.
+	 * 
+	 * @param cache
+	 *           cache of the prefetched screens
+	 * @param loader
+	 *           loader of the screens, the same as the one used when phones request them
+	 * @param refresh
+	 *           time after which the prefetched screens are refreshed in the background,
+	 *           or 0 if they are never refreshed; shorter than the time to live
+	 * @param ttl
+	 *           time to live of the prefetched screens, or 0 if they never expire
+	 * @param unit
+	 *           unit of the times
+	 * @param targets
+	 *           maximum number of screens prefetched after each screen
+	 * @param threads
+	 *           maximum number of screens rendered at the same time
+	 * @param maxBytes
+	 *           size of the cache above which nothing is prefetched, in bytes, at most
+	 *           the size of the cache
+	 */
+	public NavigationPrefetcher(RenderCache cache, XmlLoader loader, long refresh, long ttl,
+			TimeUnit unit, int targets, int threads, long maxBytes) {
+		if (cache == null)
+			throw new NullPointerException("cache cannot be null");
+		if (loader == null)
+			throw new NullPointerException("loader cannot be null");
+		RenderCache.checkTimes(refresh, ttl);
+		if (targets <= 0)
+			throw new IllegalArgumentException("number of targets must be positive");
+		if (threads <= 0)
+			throw new IllegalArgumentException("number of threads must be positive");
+		if (maxBytes <= 0 || maxBytes > cache.getMaxBytes())
+			throw new IllegalArgumentException(
+					"size limit must be positive and at most the size of the cache");
+		this.cache = cache;
+		this.loader = loader;
+		this.refresh = refresh;
+		this.ttl = ttl;
+		this.unit = unit;
+		this.targets = targets;
+		this.maxBytes = maxBytes;
+		this.workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(threads * QUEUE_PER_THREAD),
+				new ThreadFactory() {
+			
+					/**
+					 * Number of the last created thread.
+					 */
+					private final AtomicInteger number = new AtomicInteger();
+			
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r,
+								"NavigationPrefetcher-" + number.incrementAndGet());
+						thread.setDaemon(true);
+						// the phones are served first
+						thread.setPriority(Thread.MIN_PRIORITY);
+						return thread;
+					}
+			
+				});
+		this.workers.allowCoreThreadTimeOut(true);
+	}
+	
+	/**
+	 * Observes that the given phone requested the given screen, counts the transition
+	 * from the screen it requested before, and prefetches the likely next screens.
+	 * 
+	 * @param phone
+	 *           address of the phone
+	 * @param key
+	 *           key of the requested screen
+	 */
+	public void visited(String phone, String key) {
+		if (phone == null)
+			throw new NullPointerException("phone cannot be null");
+		if (phones.size() >= MAX_PHONES && !phones.containsKey(phone))
+			// phones that keep navigating are tracked again from their next request
+			phones.clear();
+		navigated(phones.put(phone, key), key);
+	}
+	
+	/**
+	 * Counts a transition between the given screens, and prefetches the likely screens
+	 * after the second one.
+	 * 
+	 * @param from
+	 *           key of the previous screen, or null if there was none
+	 * @param to
+	 *           key of the requested screen
+	 */
+	public void navigated(String from, String to) {
+		if (to == null)
+			throw new NullPointerException("key cannot be null");
+		if (from != null && !from.equals(to)) {
+			Successors successors = sources.get(from);
+			if (successors == null) {
+				if (sources.size() >= MAX_SOURCES)
+					forget();
+				if (sources.size() < MAX_SOURCES) {
+					Successors created = new Successors(Math.max(targets * 2, 4));
+					successors = sources.putIfAbsent(from, created);
+					if (successors == null)
+						successors = created;
+				}
+			}
+			if (successors != null)
+				successors.add(to);
+		}
+		prefetch(to);
+	}
+	
+	/**
+	 * Halves the numbers of the transitions of all screens, and forgets the screens left
+	 * without any, until there is room for a new screen. The frequent screens stay in the
+	 * same order, while the ones visited rarely make room for the recent navigation. Only
+	 * one thread does it at a time, the others do not wait for it.
+	 */
+	private void forget() {
+		if (!forgetting.compareAndSet(false, true))
+			return;
+		try {
+			while (sources.size() >= MAX_SOURCES)
+				for (Iterator<Successors> i = sources.values().iterator(); i.hasNext();)
+					if (i.next().halve())
+						i.remove();
+		} finally {
+			forgetting.set(false);
+		}
+	}
+	
+	/**
+	 * Prefetches the likely screens after the given one, which are not cached yet.
+	 * 
+	 * @param key
+	 *           key of the screen
+	 */
+	public void prefetch(String key) {
+		Successors successors = sources.get(key);
+		if (successors == null)
+			return;
+		for (final String target : successors.top(targets)) {
+			if (cache.contains(target) || pending.containsKey(target))
+				continue;
+			if (cache.getSize() >= maxBytes) {
+				skipped.increment();
+				return;
+			}
+			if (pending.putIfAbsent(target, Boolean.TRUE) != null)
+				continue;
+			try {
+				workers.execute(new Runnable() {
+					
+					@Override
+					public void run() {
+						try {
+							load(target);
+						} finally {
+							pending.remove(target);
+						}
+					}
+					
+				});
+			} catch (RejectedExecutionException e) {
+				pending.remove(target);
+				skipped.increment();
+			}
+		}
+	}
+	
+	/**
+	 * Loads the given screen into the cache, unless the limit of its size was reached in
+	 * the meantime.
+	 * 
+	 * @param key
+	 *           key of the screen
+	 */
+	private void load(String key) {
+		if (cache.getSize() >= maxBytes) {
+			skipped.increment();
+			return;
+		}
+		try {
+			cache.prefetch(key, loader, refresh, ttl, unit, getTags(key));
+			prefetches.increment();
+		} catch (Exception e) {
+			// the phone did not ask for this screen, it gets the error if it ever does
+			failures.increment();
+		}
+	}
+	
+	/**
+	 * Returns the tags of the given prefetched screen. Override this when the screens are
+	 * invalidated by tags; by default they have none.
+	 * 
+	 * @param key
+	 *           key of the screen
+	 * @return the tags
+	 */
+	protected String[] getTags(String key) {
+		return new String[0];
+	}
+	
+	/**
+	 * Stops the threads of the prefetcher. Screens that were not prefetched yet are
+	 * skipped.
+	 */
+	public void stop() {
+		workers.shutdownNow();
+	}
+	
+	/**
+	 * Returns the number of the prefetched screens.
+	 * 
+	 * @return the number of the screens
+	 */
+	public long getPrefetches() {
+		return prefetches.sum();
+	}
+	
+	/**
+	 * Returns the number of the screens not prefetched because of the limits of the
+	 * prefetcher.
+	 * 
+	 * @return the number of the screens
+	 */
+	public long getSkipped() {
+		return skipped.sum();
+	}
+	
+	/**
+	 * Returns the number of the screens that could not be loaded.
+	 * 
+	 * @return the number of the screens
+	 */
+	public long getFailures() {
+		return failures.sum();
+	}
+	
+}
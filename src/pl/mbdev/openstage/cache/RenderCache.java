@@ -0,0 +1,1447 @@
+package pl.mbdev.openstage.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import pl.mbdev.openstage.RenderedXml;
+import pl.mbdev.openstage.Xml;
+
+/**
+ * Cache of fully rendered XML, shared by all phones, so that a screen requested by many
+ * phones at once, like a status board or a menu, is rendered only once. Entries are found
+ * by keys defined by the application, for example the name of the screen with its
+ * parameters, and hold the exact bytes that are sent to the phone, see
+ * {@link RenderedXml}.<br />
+ * <br />
+ * The cache is bounded by the total size of the entries in bytes. When it is full, the
+ * entries that were not read recently are evicted first; recency is tracked with the
+ * CLOCK algorithm, which approximates LRU but needs only a single flag per entry, so reads
+ * take no locks and do not write anything shared in the common case. Each entry may also
+ * expire after its time to live, and may be given tags: invalidating a tag removes all
+ * entries with that tag at once, for example all screens that show the state of a queue.<br />
+ * <br />
+ * The bytes of the XML may be kept in the heap, or outside of it, in a {@link SlabStore}.
+ * The latter keeps many large screens from filling the old generation of the heap; such
+ * XML is best read with {@link #acquire(String)}, which writes it without copying it to
+ * the heap.<br />
+ * <br />
+ * When the XML is given by an {@link XmlLoader}, concurrent requests for a key that is not
+ * cached are coalesced: only the first of them loads and renders the XML, and the others
+ * wait for it and receive the same bytes. Thousands of phones that fetch the same screen
+ * right after a broadcast then cause a single render. Such XML may also be refreshed in
+ * the background when it becomes stale, while the stale XML is still served, so that
+ * screens that are slow to build do not keep the phones waiting when they expire.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public class RenderCache {
+	
+	/**
+	 * Estimated size of an entry apart from its bytes and its key, in bytes.
+	 */
+	private static final int ENTRY_OVERHEAD = 128;
+	
+	/**
+	 * Number of threads of the default executor of the refreshes.
+	 */
+	public static final int DEFAULT_REFRESH_THREADS = 2;
+	
+	/**
+	 * Number of refreshes that may wait for the threads of the default executor.
+	 */
+	public static final int DEFAULT_REFRESH_QUEUE = 256;
+	
+	/**
+	 * Tag of the entries, which can be invalidated.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private static class Tag {
+		
+		/**
+		 * Incremented each time the tag is invalidated.
+		 */
+		volatile long version = 0;
+		
+	}
+	
+	/**
+	 * Single cached XML.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private abstract static class Entry extends CachedXml {
+		
+		/**
+		 * Key of the entry.
+		 */
+		final String key;
+		
+		/**
+		 * Size of the entry that counts towards the size of the cache, in bytes.
+		 */
+		final long size;
+		
+		/**
+		 * Time at which this entry expires, as given by {@link System#nanoTime()}.
+		 */
+		final long expiresAt;
+		
+		/**
+		 * False if the entry never expires.
+		 */
+		final boolean expires;
+		
+		/**
+		 * Time after which this entry is stale and is refreshed in the background, as given
+		 * by {@link System#nanoTime()}; moved forward after a failed refresh.
+		 */
+		volatile long refreshAt;
+		
+		/**
+		 * Time after which the entry is refreshed in the background, in nanoseconds, or 0
+		 * if it is never refreshed.
+		 */
+		final long refresh;
+		
+		/**
+		 * True while the entry is refreshed in the background.
+		 */
+		final AtomicBoolean refreshing = new AtomicBoolean();
+		
+		/**
+		 * Tags of the entry.
+		 */
+		final Tag[] tags;
+		
+		/**
+		 * Versions of the tags at the time the entry was created.
+		 */
+		final long[] versions;
+		
+		/**
+		 * True if the entry was read since the clock hand passed it.
+		 */
+		volatile boolean referenced = false;
+		
+		/**
+		 * True when the entry is no longer in the cache.
+		 */
+		volatile boolean removed = false;
+		
+		/**
+		 * Creates new entry.
+		 * 
+		 * @param key
+		 *           key of the entry
+		 * @param size
+		 *           size of the entry that counts towards the size of the cache
+		 * @param now
+		 *           current time, as given by {@link System#nanoTime()}
+		 * @param refresh
+		 *           time after which the entry is stale, in nanoseconds, or 0
+		 * @param ttl
+		 *           time to live of the entry, in nanoseconds, or 0
+		 * @param tags
+		 *           tags of the entry
+		 * @param versions
+		 *           versions of the tags from before the XML was rendered
+		 */
+		Entry(String key, long size, long now, long refresh, long ttl, Tag[] tags,
+				long[] versions) {
+			this.key = key;
+			this.size = size;
+			this.expiresAt = now + ttl;
+			this.expires = ttl > 0;
+			this.refreshAt = now + refresh;
+			this.refresh = refresh;
+			this.tags = tags;
+			this.versions = versions;
+		}
+		
+		/**
+		 * Checks if the entry is still valid: not expired, and none of its tags was
+		 * invalidated.
+		 * 
+		 * @param now
+		 *           current time, as given by {@link System#nanoTime()}
+		 * @return true if the entry may be used
+		 */
+		boolean isValid(long now) {
+			if (expires && now - expiresAt >= 0)
+				return false;
+			for (int i = 0; i < tags.length; i++)
+				if (tags[i].version != versions[i])
+					return false;
+			return true;
+		}
+		
+		/**
+		 * Keeps the bytes of the entry valid until it is released.
+		 * 
+		 * @return false if the bytes were already freed
+		 */
+		abstract boolean retain();
+		
+		/**
+		 * Called once, when the entry is removed from the cache.
+		 */
+		abstract void discard();
+		
+		/**
+		 * Returns the XML of the entry in the heap.
+		 * 
+		 * @return the XML
+		 */
+		abstract RenderedXml toRenderedXml();
+		
+	}
+	
+	/**
+	 * XML kept in the heap.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private static class HeapEntry extends Entry {
+		
+		/**
+		 * The rendered XML.
+		 */
+		final RenderedXml xml;
+		
+		/**
+		 * Creates new entry.
+		 * 
+		 * @param key
+		 *           key of the entry
+		 * @param xml
+		 *           the rendered XML
+		 * @param now
+		 *           current time, as given by {@link System#nanoTime()}
+		 * @param refresh
+		 *           time after which the entry is stale, in nanoseconds, or 0
+		 * @param ttl
+		 *           time to live of the entry, in nanoseconds, or 0
+		 * @param tags
+		 *           tags of the entry
+		 * @param versions
+		 *           versions of the tags from before the XML was rendered
+		 */
+		HeapEntry(String key, RenderedXml xml, long now, long refresh, long ttl, Tag[] tags,
+				long[] versions) {
+			super(key, xml.getLength() + key.length() * 2 + ENTRY_OVERHEAD, now, refresh, ttl,
+					tags, versions);
+			this.xml = xml;
+		}
+		
+		@Override
+		public String getETag() {
+			return xml.getETag();
+		}
+		
+		@Override
+		public int getLength() {
+			return xml.getLength();
+		}
+		
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			xml.writeTo(out);
+		}
+		
+		@Override
+		public void writeTo(WritableByteChannel channel) throws IOException {
+			xml.writeTo(Channels.newOutputStream(channel));
+		}
+		
+		@Override
+		public void release() {
+			// the garbage collector takes care of the bytes
+		}
+		
+		@Override
+		boolean retain() {
+			return true;
+		}
+		
+		@Override
+		void discard() {
+			// the garbage collector takes care of the bytes
+		}
+		
+		@Override
+		RenderedXml toRenderedXml() {
+			return xml;
+		}
+		
+	}
+	
+	/**
+	 * XML kept outside of the heap. The blocks are freed when the entry is removed from the
+	 * cache and released by all its readers.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private static class OffHeapEntry extends Entry {
+		
+		/**
+		 * Store of the blocks.
+		 */
+		final SlabStore store;
+		
+		/**
+		 * Blocks with the bytes of the XML.
+		 */
+		final int[] blocks;
+		
+		/**
+		 * Number of the bytes of the XML.
+		 */
+		final int length;
+		
+		/**
+		 * Entity tag of the XML.
+		 */
+		final String etag;
+		
+		/**
+		 * Number of the readers, plus one while the entry is in the cache.
+		 */
+		final AtomicInteger references = new AtomicInteger(1);
+		
+		/**
+		 * Creates new entry.
+		 * 
+		 * @param key
+		 *           key of the entry
+		 * @param store
+		 *           store of the blocks
+		 * @param blocks
+		 *           blocks with the bytes of the XML
+		 * @param xml
+		 *           the rendered XML, already copied to the blocks
+		 * @param now
+		 *           current time, as given by {@link System#nanoTime()}
+		 * @param refresh
+		 *           time after which the entry is stale, in nanoseconds, or 0
+		 * @param ttl
+		 *           time to live of the entry, in nanoseconds, or 0
+		 * @param tags
+		 *           tags of the entry
+		 * @param versions
+		 *           versions of the tags from before the XML was rendered
+		 */
+		OffHeapEntry(String key, SlabStore store, int[] blocks, RenderedXml xml, long now,
+				long refresh, long ttl, Tag[] tags, long[] versions) {
+			super(key, (long) blocks.length * store.getBlockSize(), now, refresh, ttl, tags,
+					versions);
+			this.store = store;
+			this.blocks = blocks;
+			this.length = xml.getLength();
+			this.etag = xml.getETag();
+		}
+		
+		@Override
+		public String getETag() {
+			return etag;
+		}
+		
+		@Override
+		public int getLength() {
+			return length;
+		}
+		
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			store.writeTo(blocks, length, out);
+		}
+		
+		@Override
+		public void writeTo(WritableByteChannel channel) throws IOException {
+			store.writeTo(blocks, length, channel);
+		}
+		
+		@Override
+		public void release() {
+			if (references.decrementAndGet() == 0)
+				store.free(blocks);
+		}
+		
+		@Override
+		boolean retain() {
+			for (;;) {
+				int count = references.get();
+				if (count == 0)
+					return false;
+				if (references.compareAndSet(count, count + 1))
+					return true;
+			}
+		}
+		
+		@Override
+		void discard() {
+			release();
+		}
+		
+		@Override
+		RenderedXml toRenderedXml() {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+			try {
+				store.writeTo(blocks, length, out);
+			} catch (IOException e) {
+				throw new RuntimeException("ByteArrayOutputStream cannot fail", e);
+			}
+			return RenderedXml.of(out.toByteArray(), etag);
+		}
+		
+	}
+	
+	/**
+	 * Cached XML acquired by a single caller. Releasing it more than once releases the
+	 * entry only once, so that the entry cannot be freed while the cache still serves it.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private static class Handle extends CachedXml {
+		
+		/**
+		 * The acquired entry.
+		 */
+		final Entry entry;
+		
+		/**
+		 * True after the first release.
+		 */
+		final AtomicBoolean released = new AtomicBoolean();
+		
+		/**
+		 * Creates new handle.
+		 * 
+		 * @param entry
+		 *           the entry, already retained for this handle
+		 */
+		Handle(Entry entry) {
+			this.entry = entry;
+		}
+		
+		@Override
+		public String getETag() {
+			return entry.getETag();
+		}
+		
+		@Override
+		public int getLength() {
+			return entry.getLength();
+		}
+		
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			entry.writeTo(out);
+		}
+		
+		@Override
+		public void writeTo(WritableByteChannel channel) throws IOException {
+			entry.writeTo(channel);
+		}
+		
+		@Override
+		public void release() {
+			if (released.compareAndSet(false, true))
+				entry.release();
+		}
+		
+	}
+	
+	/**
+	 * Render of a missing XML, which concurrent requests for the same key wait for.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private static class Flight {
+		
+		/**
+		 * Released when the render is over.
+		 */
+		final CountDownLatch done = new CountDownLatch(1);
+		
+		/**
+		 * The rendered XML, valid after the render succeeds.
+		 */
+		RenderedXml xml;
+		
+		/**
+		 * Reason why the render failed, or null.
+		 */
+		Throwable failure;
+		
+	}
+	
+	/**
+	 * Maximum total size of the entries, in bytes.
+	 */
+	private final long maxBytes;
+	
+	/**
+	 * Store in which the bytes of the XML are kept, or null if they are kept in the heap.
+	 */
+	private final SlabStore store;
+	
+	/**
+	 * Entries, by their keys.
+	 */
+	private final ConcurrentHashMap<String, Entry> entries;
+	
+	/**
+	 * Tags, by their names.
+	 */
+	private final ConcurrentHashMap<String, Tag> tags;
+	
+	/**
+	 * Entries in the order in which the clock hand visits them; guarded by itself.
+	 */
+	private final ArrayDeque<Entry> clock;
+	
+	/**
+	 * Renders in progress, by the keys of the XML.
+	 */
+	private final ConcurrentHashMap<String, Flight> flights =
+			new ConcurrentHashMap<String, Flight>();
+	
+	/**
+	 * Total size of the entries in the cache, in bytes.
+	 */
+	private final AtomicLong size = new AtomicLong();
+	
+	/**
+	 * Number of reads that found a valid entry.
+	 */
+	private final LongAdder hits = new LongAdder();
+	
+	/**
+	 * Number of reads that did not find a valid entry.
+	 */
+	private final LongAdder misses = new LongAdder();
+	
+	/**
+	 * Number of entries evicted because the cache was full.
+	 */
+	private final LongAdder evictions = new LongAdder();
+	
+	/**
+	 * Number of reads that waited for the render started by another read.
+	 */
+	private final LongAdder coalesced = new LongAdder();
+	
+	/**
+	 * Number of stale entries refreshed in the background.
+	 */
+	private final LongAdder refreshes = new LongAdder();
+	
+	/**
+	 * Number of refreshes of stale entries that failed.
+	 */
+	private final LongAdder refreshFailures = new LongAdder();
+	
+	/**
+	 * Executor of the refreshes of stale entries.
+	 */
+	private volatile Executor refresher = createRefresher();
+	
+	/**
+	 * Creates new, empty cache, which keeps the XML in the heap.
+	 * 
+	 * @param maxBytes
+	 *           maximum total size of the entries, in bytes
+	 */
+	public RenderCache(long maxBytes) {
+		if (maxBytes <= 0)
+			throw new IllegalArgumentException("size of the cache must be positive");
+		this.maxBytes = maxBytes;
+		this.store = null;
+		this.entries = new ConcurrentHashMap<String, Entry>();
+		this.tags = new ConcurrentHashMap<String, Tag>();
+		this.clock = new ArrayDeque<Entry>();
+	}
+	
+	/**
+	 * Creates new, empty cache, which keeps the bytes of the XML outside of the heap, in the
+	 * given store. The size of the cache is the capacity of the store, which must not be
+	 * used by anything else.
+	 * 
+	 * @param store
+	 *           the store
+	 */
+	public RenderCache(SlabStore store) {
+		if (store == null)
+			throw new NullPointerException("store cannot be null");
+		this.maxBytes = store.getCapacity();
+		this.store = store;
+		this.entries = new ConcurrentHashMap<String, Entry>();
+		this.tags = new ConcurrentHashMap<String, Tag>();
+		this.clock = new ArrayDeque<Entry>();
+	}
+	
+	/**
+	 * Creates the default executor of the refreshes, with a few daemon threads and a bounded
+	 * queue. When the queue is full, stale entries are refreshed by later requests.
+	 * 
+	 * @return the executor
+	 */
+	private static Executor createRefresher() {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(DEFAULT_REFRESH_THREADS,
+				DEFAULT_REFRESH_THREADS, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(DEFAULT_REFRESH_QUEUE), new ThreadFactory() {
+			
+					/**
+					 * Number of the last created thread.
+					 */
+					private final AtomicInteger number = new AtomicInteger();
+			
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r,
+								"RenderCache-" + number.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+			
+				});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+	
+	/**
+	 * Sets the executor of the refreshes of stale entries. It should be bounded, so that a
+	 * slow backend cannot pile up refreshes; refreshes it rejects are retried by later
+	 * requests.
+	 * 
+	 * @param executor
+	 *           the executor
+	 */
+	public void setRefreshExecutor(Executor executor) {
+		if (executor == null)
+			throw new NullPointerException("executor cannot be null");
+		this.refresher = executor;
+	}
+	
+	/**
+	 * Returns the XML cached under the given key. XML kept outside of the heap is copied
+	 * to the heap; {@link #acquire(String)} avoids that.
+	 * 
+	 * @param key
+	 *           key of the XML
+	 * @return the XML, or null if it is not cached, has expired or was invalidated
+	 */
+	public RenderedXml get(String key) {
+		Entry entry = find(key);
+		if (entry == null)
+			return null;
+		try {
+			return entry.toRenderedXml();
+		} finally {
+			entry.release();
+		}
+	}
+	
+	/**
+	 * Returns the XML cached under the given key, which must be released after it is
+	 * written. The XML stays valid until then, even if it is removed from the cache in the
+	 * meantime.
+	 * 
+	 * @param key
+	 *           key of the XML
+	 * @return the XML, or null if it is not cached, has expired or was invalidated
+	 */
+	public CachedXml acquire(String key) {
+		Entry entry = find(key);
+		return entry == null ? null : new Handle(entry);
+	}
+	
+	/**
+	 * Returns the XML cached under the given key, or loads, renders and caches it if it is
+	 * missing. If the XML is already being rendered for another request, this waits for it
+	 * instead of rendering it again.
+	 * 
+	 * @param key
+	 *           key of the XML
+	 * @param loader
+	 *           loader of the XML
+	 * @param ttl
+	 *           time to live of the new entry, or 0 if it never expires
+	 * @param unit
+	 *           unit of the time to live
+	 * @param tags
+	 *           tags of the new entry
+	 * @return the XML
+	 * @throws IOException
+	 *            when the loader fails, or the wait is interrupted
+	 * @throws IllegalArgumentException
+	 *            when the loader rejects the key, or the XML cannot be a root
+	 */
+	public RenderedXml get(String key, XmlLoader loader, long ttl, TimeUnit unit,
+			String... tags) throws IOException, IllegalArgumentException {
+		return get(key, loader, 0, ttl, unit, tags);
+	}
+	
+	/**
+	 * Returns the XML cached under the given key, or loads it, in the same way as
+	 * {@link #get(String, XmlLoader, long, TimeUnit, String...)}. When the XML is older than
+	 * the given refresh time, it is still returned at once, and is loaded again in the
+	 * background; the new XML replaces it when it is ready. Only the XML older than its time
+	 * to live, or with an invalidated tag, is loaded while the request waits.
+	 * 
+	 * @param key
+	 *           key of the XML
+	 * @param loader
+	 *           loader of the XML
+	 * @param refresh
+	 *           time after which the new entry is refreshed in the background, or 0 if it
+	 *           is never refreshed; shorter than the time to live
+	 * @param ttl
+	 *           time to live of the new entry, or 0 if it never expires
+	 * @param unit
+	 *           unit of the times
+	 * @param tags
+	 *           tags of the new entry
+	 * @return the XML
+	 * @throws IOException
+	 *            when the loader fails, or the wait is interrupted
+	 * @throws IllegalArgumentException
+	 *            when the loader rejects the key, or the XML cannot be a root
+	 */
+	public RenderedXml get(String key, XmlLoader loader, long refresh, long ttl,
+			TimeUnit unit, String... tags) throws IOException, IllegalArgumentException {
+		checkTimes(refresh, ttl);
+		Entry entry = find(key);
+		if (entry == null)
+			return load(key, loader, refresh, ttl, unit, tags);
+		try {
+			refreshIfStale(entry, loader, refresh, ttl, unit, tags);
+			return entry.toRenderedXml();
+		} finally {
+			entry.release();
+		}
+	}
+	
+	/**
+	 * Returns the XML cached under the given key, in the same way as
+	 * {@link #get(String, XmlLoader, long, TimeUnit, String...)}, without copying XML kept
+	 * outside of the heap. The XML must be released after it is written.
+	 * 
+	 * @param key
+	 *           key of the XML
+	 * @param loader
+	 *           loader of the XML
+	 * @param ttl
+	 *           time to live of the new entry, or 0 if it never expires
+	 * @param unit
+	 *           unit of the time to live
+	 * @param tags
+	 *           tags of the new entry
+	 * @return the XML
+	 * @throws IOException
+	 *            when the loader fails, or the wait is interrupted
+	 * @throws IllegalArgumentException
+	 *            when the loader rejects the key, or the XML cannot be a root
+	 */
+	public CachedXml acquire(String key, XmlLoader loader, long ttl, TimeUnit unit,
+			String... tags) throws IOException, IllegalArgumentException {
+		return acquire(key, loader, 0, ttl, unit, tags);
+	}
+	
+	/**
+	 * Returns the XML cached under the given key, in the same way as
+	 * {@link #get(String, XmlLoader, long, long, TimeUnit, String...)}, without copying XML
+	 * kept outside of the heap. The XML must be released after it is written.
+	 * 
+	 * @param key
+	 *           key of the XML
+	 * @param loader
+	 *           loader of the XML
+	 * @param refresh
+	 *           time after which the new entry is refreshed in the background, or 0 if it
+	 *           is never refreshed; shorter than the time to live
+	 * @param ttl
+	 *           time to live of the new entry, or 0 if it never expires
+	 * @param unit
+	 *           unit of the times
+	 * @param tags
+	 *           tags of the new entry
+	 * @return the XML
+	 * @throws IOException
+	 *            when the loader fails, or the wait is interrupted
+	 * @throws IllegalArgumentException
+	 *            when the loader rejects the key, or the XML cannot be a root
+	 */
+	public CachedXml acquire(String key, XmlLoader loader, long refresh, long ttl,
+			TimeUnit unit, String... tags) throws IOException, IllegalArgumentException {
+		checkTimes(refresh, ttl);
+		Entry entry = find(key);
+		if (entry != null) {
+			boolean handed = false;
+			try {
+				refreshIfStale(entry, loader, refresh, ttl, unit, tags);
+				Handle handle = new Handle(entry);
+				handed = true;
+				return handle;
+			} finally {
+				if (!handed)
+					entry.release();
+			}
+		}
+		// the rendered XML is already in the heap, so it is not read back from the store
+		return new HeapEntry(key, load(key, loader, refresh, ttl, unit, tags), 0, 0, 0,
+				new Tag[0], new long[0]);
+	}
+	
+	/**
+	 * Loads, renders and caches the XML with the given key, unless valid XML is already
+	 * cached or is being rendered for a request. Nothing is counted as a hit or a miss,
+	 * since no phone asked for the XML.
+	 * 
+	 * @param key
+	 *           key of the XML
+	 * @param loader
+	 *           loader of the XML
+	 * @param refresh
+	 *           time after which the new entry is refreshed in the background, or 0 if it
+	 *           is never refreshed; shorter than the time to live
+	 * @param ttl
+	 *           time to live of the new entry, or 0 if it never expires
+	 * @param unit
+	 *           unit of the times
+	 * @param tags
+	 *           tags of the new entry
+	 * @throws IOException
+	 *            when the loader fails
+	 */
+	void prefetch(String key, XmlLoader loader, long refresh, long ttl, TimeUnit unit,
+			String[] tags) throws IOException {
+		checkTimes(refresh, ttl);
+		if (loader == null)
+			throw new NullPointerException("loader cannot be null");
+		if (contains(key) || flights.containsKey(key))
+			return;
+		Flight own = new Flight();
+		if (flights.putIfAbsent(key, own) == null)
+			render(key, own, true, loader, refresh, ttl, unit, tags);
+	}
+	
+	/**
+	 * Checks the times of a new entry.
+	 * 
+	 * @param refresh
+	 *           time after which the entry is refreshed in the background, or 0
+	 * @param ttl
+	 *           time to live of the entry, or 0
+	 */
+	static void checkTimes(long refresh, long ttl) {
+		if (ttl < 0)
+			throw new IllegalArgumentException("time to live cannot be negative");
+		if (refresh < 0)
+			throw new IllegalArgumentException("refresh time cannot be negative");
+		if (refresh > 0 && ttl > 0 && refresh >= ttl)
+			throw new IllegalArgumentException(
+					"refresh time must be shorter than time to live");
+	}
+	
+	/**
+	 * Loads, renders and caches the XML with the given key, or waits for the render that
+	 * is already in progress.
+	 * 
+	 * @param key
+	 *           key of the XML
+	 * @param loader
+	 *           loader of the XML
+	 * @param refresh
+	 *           time after which the new entry is refreshed in the background
+	 * @param ttl
+	 *           time to live of the new entry
+	 * @param unit
+	 *           unit of the times
+	 * @param tags
+	 *           tags of the new entry
+	 * @return the rendered XML
+	 * @throws IOException
+	 *            when the loader fails, or the wait is interrupted
+	 */
+	private RenderedXml load(String key, XmlLoader loader, long refresh, long ttl,
+			TimeUnit unit, String[] tags) throws IOException {
+		if (loader == null)
+			throw new NullPointerException("loader cannot be null");
+		Flight flight = flights.get(key);
+		if (flight == null) {
+			Flight own = new Flight();
+			flight = flights.putIfAbsent(key, own);
+			if (flight == null)
+				return render(key, own, true, loader, refresh, ttl, unit, tags);
+		}
+		try {
+			flight.done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for the XML");
+		}
+		coalesced.increment();
+		if (flight.failure == null)
+			return flight.xml;
+		// the exception is wrapped, so that the stack trace shows this thread as well
+		if (flight.failure instanceof IOException)
+			throw new IOException(flight.failure.getMessage(), flight.failure);
+		if (flight.failure instanceof IllegalArgumentException)
+			throw new IllegalArgumentException(flight.failure.getMessage(), flight.failure);
+		throw new RuntimeException("rendering of the XML failed", flight.failure);
+	}
+	
+	/**
+	 * Loads, renders and caches the XML with the given key, and passes it to the requests
+	 * waiting for the given render.
+	 * 
+	 * @param key
+	 *           key of the XML
+	 * @param flight
+	 *           the render, registered by this thread
+	 * @param reuse
+	 *           true if valid XML that is already cached may be returned instead
+	 * @param loader
+	 *           loader of the XML
+	 * @param refresh
+	 *           time after which the new entry is refreshed in the background
+	 * @param ttl
+	 *           time to live of the new entry
+	 * @param unit
+	 *           unit of the times
+	 * @param tags
+	 *           tags of the new entry
+	 * @return the rendered XML
+	 * @throws IOException
+	 *            when the loader fails
+	 */
+	private RenderedXml render(String key, Flight flight, boolean reuse, XmlLoader loader,
+			long refresh, long ttl, TimeUnit unit, String[] tags) throws IOException {
+		try {
+			// the previous render may have finished between the miss and the registration
+			Entry entry = reuse ? entries.get(key) : null;
+			if (entry != null && entry.isValid(System.nanoTime()) && entry.retain()) {
+				try {
+					flight.xml = entry.toRenderedXml();
+				} finally {
+					entry.release();
+				}
+				return flight.xml;
+			}
+			Tag[] entryTags = getTags(tags);
+			long[] versions = getVersions(entryTags);
+			flight.xml = RenderedXml.render(loader.load(key));
+			put(key, flight.xml, refresh, ttl, unit, entryTags, versions);
+			return flight.xml;
+		} catch (Throwable e) {
+			flight.failure = e;
+			throw e;
+		} finally {
+			// failures are not cached, the next request tries again
+			flights.remove(key, flight);
+			flight.done.countDown();
+		}
+	}
+	
+	/**
+	 * Starts the refresh of the given entry in the background, if it is stale and is not
+	 * being refreshed already.
+	 * 
+	 * @param entry
+	 *           the entry
+	 * @param loader
+	 *           loader of the XML
+	 * @param refresh
+	 *           time after which the new entry is refreshed in the background
+	 * @param ttl
+	 *           time to live of the new entry
+	 * @param unit
+	 *           unit of the times
+	 * @param tags
+	 *           tags of the new entry
+	 */
+	private void refreshIfStale(final Entry entry, final XmlLoader loader,
+			final long refresh, final long ttl, final TimeUnit unit, final String[] tags) {
+		if (entry.refresh == 0 || System.nanoTime() - entry.refreshAt < 0)
+			return;
+		if (loader == null)
+			throw new NullPointerException("loader cannot be null");
+		if (!entry.refreshing.compareAndSet(false, true))
+			return;
+		Runnable task = new Runnable() {
+			
+			@Override
+			public void run() {
+				Flight own = new Flight();
+				if (flights.putIfAbsent(entry.key, own) != null) {
+					// the XML is being rendered already, and will replace this entry
+					entry.refreshing.set(false);
+					return;
+				}
+				boolean refreshed = false;
+				try {
+					render(entry.key, own, false, loader, refresh, ttl, unit, tags);
+					refreshed = true;
+					refreshes.increment();
+				} catch (Exception e) {
+					refreshFailed(entry.key, e);
+				} finally {
+					if (!refreshed) {
+						// the stale XML is still served, and is refreshed again only after
+						// another refresh time, so that a failing backend is not called on
+						// every request
+						refreshFailures.increment();
+						entry.refreshAt = System.nanoTime() + entry.refresh;
+					}
+					entry.refreshing.set(false);
+				}
+			}
+			
+		};
+		try {
+			refresher.execute(task);
+		} catch (RejectedExecutionException e) {
+			entry.refreshing.set(false);
+		}
+	}
+	
+	/**
+	 * Called when the refresh of a stale entry in the background fails, which is not seen
+	 * by any request. Does nothing by default; override it to log the failure.
+	 * 
+	 * @param key
+	 *           key of the XML
+	 * @param e
+	 *           reason of the failure
+	 */
+	protected void refreshFailed(String key, Exception e) {
+		// the failure is counted, see getRefreshFailures()
+	}
+	
+	/**
+	 * Checks if valid XML is cached under the given key, without counting it as a read.
+	 * 
+	 * @param key
+	 *           key of the XML
+	 * @return true if the XML is cached
+	 */
+	boolean contains(String key) {
+		Entry entry = entries.get(key);
+		return entry != null && entry.isValid(System.nanoTime());
+	}
+	
+	/**
+	 * Finds the valid entry with the given key, and retains it.
+	 * 
+	 * @param key
+	 *           key of the XML
+	 * @return the retained entry, or null
+	 */
+	private Entry find(String key) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			misses.increment();
+			return null;
+		}
+		if (!entry.isValid(System.nanoTime())) {
+			remove(entry);
+			misses.increment();
+			return null;
+		}
+		if (!entry.retain()) {
+			// removed and freed by another thread in the meantime
+			misses.increment();
+			return null;
+		}
+		// the flag is written only when it changes, so that the many readers of a hot screen
+		// do not keep invalidating the memory of its entry in each other's caches
+		if (!entry.referenced)
+			entry.referenced = true;
+		hits.increment();
+		return entry;
+	}
+	
+	/**
+	 * Caches the given XML under the given key, replacing the XML cached before. XML
+	 * larger than the whole cache is not cached.
+	 * 
+	 * @param key
+	 *           key of the XML
+	 * @param xml
+	 *           the rendered XML
+	 * @param ttl
+	 *           time to live of the entry, or 0 if it never expires
+	 * @param unit
+	 *           unit of the time to live
+	 * @param tags
+	 *           tags of the entry
+	 */
+	public void put(String key, RenderedXml xml, long ttl, TimeUnit unit, String... tags) {
+		Tag[] entryTags = getTags(tags);
+		put(key, xml, 0, ttl, unit, entryTags, getVersions(entryTags));
+	}
+	
+	/**
+	 * Renders the given XML and caches it under the given key. If any of the tags is
+	 * invalidated while the XML is rendered, the entry is invalid from the start.
+	 * 
+	 * @param key
+	 *           key of the XML
+	 * @param xml
+	 *           the XML
+	 * @param ttl
+	 *           time to live of the entry, or 0 if it never expires
+	 * @param unit
+	 *           unit of the time to live
+	 * @param tags
+	 *           tags of the entry
+	 * @return the rendered XML
+	 * @throws IllegalArgumentException
+	 *            when the object cannot be a root or cannot be "made" a root
+	 */
+	public RenderedXml put(String key, Xml xml, long ttl, TimeUnit unit, String... tags)
+			throws IllegalArgumentException {
+		Tag[] entryTags = getTags(tags);
+		long[] versions = getVersions(entryTags);
+		RenderedXml rendered = RenderedXml.render(xml);
+		put(key, rendered, 0, ttl, unit, entryTags, versions);
+		return rendered;
+	}
+	
+	/**
+	 * Caches the given XML under the given key.
+	 * 
+	 * @param key
+	 *           key of the XML
+	 * @param xml
+	 *           the rendered XML
+	 * @param refresh
+	 *           time after which the entry is refreshed in the background, or 0
+	 * @param ttl
+	 *           time to live of the entry, or 0 if it never expires
+	 * @param unit
+	 *           unit of the times
+	 * @param tags
+	 *           tags of the entry
+	 * @param versions
+	 *           versions of the tags from before the XML was rendered
+	 */
+	private void put(String key, RenderedXml xml, long refresh, long ttl, TimeUnit unit,
+			Tag[] tags, long[] versions) {
+		if (key == null)
+			throw new NullPointerException("key cannot be null");
+		if (xml == null)
+			throw new NullPointerException("XML cannot be null");
+		checkTimes(refresh, ttl);
+		long now = System.nanoTime();
+		long entrySize = store == null ? xml.getLength() + key.length() * 2 + ENTRY_OVERHEAD
+				: (long) store.blocksFor(xml.getLength()) * store.getBlockSize();
+		if (entrySize > maxBytes) {
+			invalidate(key);
+			return;
+		}
+		
+		synchronized (clock) {
+			// room is made before the new entry is added, so that it cannot be evicted itself
+			size.addAndGet(entrySize);
+			evict();
+			Entry entry;
+			if (store == null) {
+				entry = new HeapEntry(key, xml, now, unit.toNanos(refresh), unit.toNanos(ttl),
+						tags, versions);
+			} else {
+				int[] blocks = store.allocate(xml.getLength());
+				if (blocks == null) {
+					// evicted blocks are still being written by their readers
+					size.addAndGet(-entrySize);
+					invalidate(key);
+					return;
+				}
+				store.write(blocks, xml);
+				entry = new OffHeapEntry(key, store, blocks, xml, now, unit.toNanos(refresh),
+						unit.toNanos(ttl), tags, versions);
+			}
+			Entry old = entries.put(key, entry);
+			if (old != null) {
+				old.removed = true;
+				size.addAndGet(-old.size);
+				old.discard();
+			}
+			clock.addLast(entry);
+		}
+	}
+	
+	/**
+	 * Returns the tags with the given names, creating them if needed.
+	 * 
+	 * @param names
+	 *           names of the tags
+	 * @return the tags
+	 */
+	private Tag[] getTags(String[] names) {
+		Tag[] result = new Tag[names.length];
+		for (int i = 0; i < names.length; i++)
+			result[i] = getTag(names[i]);
+		return result;
+	}
+	
+	/**
+	 * Returns the current versions of the given tags.
+	 * 
+	 * @param tags
+	 *           the tags
+	 * @return versions of the tags
+	 */
+	private static long[] getVersions(Tag[] tags) {
+		long[] versions = new long[tags.length];
+		for (int i = 0; i < tags.length; i++)
+			versions[i] = tags[i].version;
+		return versions;
+	}
+	
+	/**
+	 * Returns the tag with the given name, creating it if needed.
+	 * 
+	 * @param name
+	 *           name of the tag
+	 * @return the tag
+	 */
+	private Tag getTag(String name) {
+		if (name == null)
+			throw new NullPointerException("tag cannot be null");
+		Tag tag = tags.get(name);
+		if (tag == null) {
+			Tag created = new Tag();
+			tag = tags.putIfAbsent(name, created);
+			if (tag == null)
+				tag = created;
+		}
+		return tag;
+	}
+	
+	/**
+	 * Moves the clock hand until the cache fits in its size. Entries that were read since
+	 * the hand passed them get another chance, the others are evicted. Entries that are no
+	 * longer valid are removed before anything else.
+	 */
+	private void evict() {
+		long now = System.nanoTime();
+		// each entry is passed at most twice: first to clear its flag, then to evict it
+		int steps = clock.size() * 2;
+		while (size.get() > maxBytes && steps-- > 0) {
+			Entry entry = clock.pollFirst();
+			if (entry.removed)
+				continue;
+			if (!entry.isValid(now)) {
+				remove(entry);
+			} else if (entry.referenced) {
+				entry.referenced = false;
+				clock.addLast(entry);
+			} else if (remove(entry)) {
+				evictions.increment();
+			}
+		}
+		// entries removed by readers are dropped from the clock when the hand passes them,
+		// but it must not grow without bound when nothing is evicted
+		if (clock.size() > entries.size() * 2 + 64)
+			compact();
+	}
+	
+	/**
+	 * Drops the removed entries from the clock.
+	 */
+	private void compact() {
+		for (int n = clock.size(); n > 0; n--) {
+			Entry entry = clock.pollFirst();
+			if (!entry.removed)
+				clock.addLast(entry);
+		}
+	}
+	
+	/**
+	 * Removes the given entry from the cache, unless it was replaced or removed already.
+	 * 
+	 * @param entry
+	 *           the entry
+	 * @return true if the entry was removed by this call
+	 */
+	private boolean remove(Entry entry) {
+		if (!entries.remove(entry.key, entry))
+			return false;
+		entry.removed = true;
+		size.addAndGet(-entry.size);
+		entry.discard();
+		return true;
+	}
+	
+	/**
+	 * Removes the XML cached under the given key.
+	 * 
+	 * @param key
+	 *           key of the XML
+	 */
+	public void invalidate(String key) {
+		Entry entry = entries.get(key);
+		if (entry != null)
+			remove(entry);
+	}
+	
+	/**
+	 * Invalidates all XML cached with the given tag. This takes constant time; the
+	 * entries stop being returned at once, and their memory is reclaimed when they are
+	 * read, or when the cache needs space.
+	 * 
+	 * @param tag
+	 *           the tag
+	 */
+	public void invalidateTag(String tag) {
+		Tag t = tags.get(tag);
+		if (t != null) {
+			synchronized (t) {
+				t.version++;
+			}
+		}
+	}
+	
+	/**
+	 * Removes all cached XML.
+	 */
+	public void clear() {
+		synchronized (clock) {
+			for (Entry entry : entries.values())
+				remove(entry);
+			clock.clear();
+		}
+	}
+	
+	/**
+	 * Returns the store in which the bytes of the XML are kept.
+	 * 
+	 * @return the store, or null if the XML is kept in the heap
+	 */
+	public SlabStore getStore() {
+		return store;
+	}
+	
+	/**
+	 * Returns the maximum total size of the entries.
+	 * 
+	 * @return the size in bytes
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+	
+	/**
+	 * Returns the estimated total size of the entries, including the ones that were
+	 * invalidated by tag but are not reclaimed yet.
+	 * 
+	 * @return the size in bytes
+	 */
+	public long getSize() {
+		return size.get();
+	}
+	
+	/**
+	 * Returns the number of cached entries, including the ones that were invalidated by
+	 * tag but are not reclaimed yet.
+	 * 
+	 * @return number of the entries
+	 */
+	public int getCount() {
+		return entries.size();
+	}
+	
+	/**
+	 * Returns the number of reads that found valid XML.
+	 * 
+	 * @return number of the hits
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+	
+	/**
+	 * Returns the number of reads that did not find valid XML.
+	 * 
+	 * @return number of the misses
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+	
+	/**
+	 * Returns the number of reads that waited for the render started by another read,
+	 * instead of rendering the XML themselves.
+	 * 
+	 * @return the number of the reads
+	 */
+	public long getCoalesced() {
+		return coalesced.sum();
+	}
+	
+	/**
+	 * Returns the number of stale entries refreshed in the background.
+	 * 
+	 * @return the number of the entries
+	 */
+	public long getRefreshes() {
+		return refreshes.sum();
+	}
+	
+	/**
+	 * Returns the number of refreshes of stale entries that failed. Such entries are served
+	 * stale until the next refresh, or until they expire.
+	 * 
+	 * @return the number of the refreshes
+	 */
+	public long getRefreshFailures() {
+		return refreshFailures.sum();
+	}
+	
+	/**
+	 * Returns the number of entries evicted because the cache was full.
+	 * 
+	 * @return number of the evictions
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+	
+}
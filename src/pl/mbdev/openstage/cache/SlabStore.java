@@ -0,0 +1,326 @@
+package pl.mbdev.openstage.cache;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import pl.mbdev.openstage.RenderedXml;
+
+/**
+ * Memory outside of the Java heap, in which a {@link RenderCache} keeps the bytes of the
+ * rendered XML. The memory is allocated in large direct buffers (slabs), when it is first
+ * needed, and each slab is divided into blocks of equal size. Each XML takes as many
+ * blocks as it needs, which do not have to be adjacent, so the memory never becomes
+ * fragmented and freed blocks are reused immediately.<br />
+ * <br />
+ * Hundreds of cached screens then take no space in the heap, apart from small objects that
+ * describe them, and do not lengthen the pauses of the garbage collector.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public class SlabStore {
+	
+	/**
+	 * Default size of a slab, in bytes.
+	 */
+	public static final int DEFAULT_SLAB_SIZE = 1 << 20;
+	
+	/**
+	 * Default size of a block, in bytes.
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 1024;
+	
+	/**
+	 * Buffers through which the blocks are copied to streams.
+	 */
+	private static final ThreadLocal<byte[]> transfers = new ThreadLocal<byte[]>();
+	
+	/**
+	 * Allocated slabs, followed by nulls in place of the slabs not allocated yet.
+	 */
+	private final ByteBuffer[] slabs;
+	
+	/**
+	 * Size of a block, in bytes.
+	 */
+	private final int blockSize;
+	
+	/**
+	 * Number of the blocks in a slab.
+	 */
+	private final int blocksPerSlab;
+	
+	/**
+	 * Numbers of the free blocks of the allocated slabs; guarded by this store.
+	 */
+	private final int[] free;
+	
+	/**
+	 * Number of the free blocks; guarded by this store.
+	 */
+	private int freeCount = 0;
+	
+	/**
+	 * Number of the allocated slabs; guarded by this store.
+	 */
+	private int slabCount = 0;
+	
+	/**
+	 * Creates new store, with slabs and blocks of the default sizes.
+	 * 
+	 * @param capacity
+	 *           maximum size of all slabs together, in bytes, at least one slab
+	 */
+	public SlabStore(long capacity) {
+		this(capacity, DEFAULT_SLAB_SIZE, DEFAULT_BLOCK_SIZE);
+	}
+	
+	/**
+	 * Creates new store. No memory is allocated until it is needed.
+	 * 
+	 * @param capacity
+	 *           maximum size of all slabs together, in bytes, at least one slab
+	 * @param slabSize
+	 *           size of a slab, in bytes, a multiple of the block size
+	 * @param blockSize
+	 *           size of a block, in bytes; XML that is not a multiple of this wastes the
+	 *           rest of its last block
+	 */
+	public SlabStore(long capacity, int slabSize, int blockSize) {
+		if (blockSize <= 0)
+			throw new IllegalArgumentException("size of a block must be positive");
+		if (slabSize < blockSize || slabSize % blockSize != 0)
+			throw new IllegalArgumentException(
+					"size of a slab must be a positive multiple of the block size");
+		if (capacity < slabSize)
+			throw new IllegalArgumentException("capacity must be at least one slab");
+		if (capacity / slabSize * (slabSize / blockSize) > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("too many blocks, use larger blocks");
+		this.blockSize = blockSize;
+		this.blocksPerSlab = slabSize / blockSize;
+		this.slabs = new ByteBuffer[(int) (capacity / slabSize)];
+		this.free = new int[slabs.length * blocksPerSlab];
+	}
+	
+	/**
+	 * Returns the size of a block.
+	 * 
+	 * @return the size in bytes
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+	
+	/**
+	 * Returns the maximum size of all slabs together.
+	 * 
+	 * @return the size in bytes
+	 */
+	public long getCapacity() {
+		return (long) free.length * blockSize;
+	}
+	
+	/**
+	 * Returns the size of the slabs allocated so far.
+	 * 
+	 * @return the size in bytes
+	 */
+	public synchronized long getAllocated() {
+		return (long) slabCount * blocksPerSlab * blockSize;
+	}
+	
+	/**
+	 * Returns the size of the blocks in use.
+	 * 
+	 * @return the size in bytes
+	 */
+	public synchronized long getUsed() {
+		return ((long) slabCount * blocksPerSlab - freeCount) * blockSize;
+	}
+	
+	/**
+	 * Computes the number of blocks needed for the given number of bytes.
+	 * 
+	 * @param length
+	 *           number of the bytes
+	 * @return number of the blocks
+	 */
+	int blocksFor(int length) {
+		return length == 0 ? 0 : (length - 1) / blockSize + 1;
+	}
+	
+	/**
+	 * Allocates the blocks for the given number of bytes, allocating a new slab if there
+	 * are not enough free blocks.
+	 * 
+	 * @param length
+	 *           number of the bytes
+	 * @return numbers of the allocated blocks, or null if the store is full
+	 */
+	synchronized int[] allocate(int length) {
+		int count = blocksFor(length);
+		while (freeCount < count && slabCount < slabs.length) {
+			slabs[slabCount] = ByteBuffer.allocateDirect(blocksPerSlab * blockSize);
+			// blocks are pushed in reverse order, so that they are used from the start
+			for (int i = blocksPerSlab - 1; i >= 0; i--)
+				free[freeCount++] = slabCount * blocksPerSlab + i;
+			slabCount++;
+		}
+		if (freeCount < count)
+			return null;
+		int[] blocks = new int[count];
+		for (int i = 0; i < count; i++)
+			blocks[i] = free[--freeCount];
+		return blocks;
+	}
+	
+	/**
+	 * Returns the given blocks to the store.
+	 * 
+	 * @param blocks
+	 *           numbers of the blocks, as returned by {@link #allocate(int)}
+	 */
+	synchronized void free(int[] blocks) {
+		for (int block : blocks)
+			free[freeCount++] = block;
+	}
+	
+	/**
+	 * Returns a view of the given block, which does not affect other views of its slab.
+	 * 
+	 * @param block
+	 *           number of the block
+	 * @param length
+	 *           number of the bytes of the block that are used
+	 * @return the view, positioned at the start of the block
+	 */
+	private ByteBuffer view(int block, int length) {
+		// the slab was allocated before the block was handed out, and the block reached this
+		// thread through the cache, which makes the slab visible without locking
+		ByteBuffer view = slabs[block / blocksPerSlab].duplicate();
+		int start = block % blocksPerSlab * blockSize;
+		view.limit(start + length).position(start);
+		return view;
+	}
+	
+	/**
+	 * Copies the rendered XML into the given blocks.
+	 * 
+	 * @param blocks
+	 *           numbers of the blocks, enough for the XML
+	 * @param xml
+	 *           the rendered XML
+	 */
+	void write(final int[] blocks, RenderedXml xml) {
+		OutputStream out = new OutputStream() {
+			
+			/**
+			 * Number of the bytes written so far.
+			 */
+			private int written = 0;
+			
+			@Override
+			public void write(int b) {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+			
+			@Override
+			public void write(byte[] src, int off, int len) {
+				while (len > 0) {
+					int start = written % blockSize;
+					int n = Math.min(len, blockSize - start);
+					ByteBuffer view = view(blocks[written / blockSize], start + n);
+					view.position(view.position() + start);
+					view.put(src, off, n);
+					written += n;
+					off += n;
+					len -= n;
+				}
+			}
+			
+		};
+		try {
+			xml.writeTo(out);
+		} catch (IOException e) {
+			throw new RuntimeException("writing to memory cannot fail", e);
+		}
+	}
+	
+	/**
+	 * Writes the bytes kept in the given blocks directly to the given channel, without
+	 * copying them to the heap.
+	 * 
+	 * @param blocks
+	 *           numbers of the blocks
+	 * @param length
+	 *           number of the bytes
+	 * @param channel
+	 *           channel that receives the bytes
+	 * @throws IOException
+	 *            when the channel cannot be written
+	 */
+	void writeTo(int[] blocks, int length, WritableByteChannel channel) throws IOException {
+		ByteBuffer[] views = new ByteBuffer[blocks.length];
+		for (int i = 0; i < blocks.length; i++)
+			views[i] = view(blocks[i], Math.min(blockSize, length - i * blockSize));
+		if (channel instanceof GatheringByteChannel) {
+			GatheringByteChannel gathering = (GatheringByteChannel) channel;
+			for (int i = 0; i < views.length;) {
+				gathering.write(views, i, views.length - i);
+				while (i < views.length && !views[i].hasRemaining())
+					i++;
+			}
+		} else {
+			for (ByteBuffer view : views)
+				while (view.hasRemaining())
+					channel.write(view);
+		}
+	}
+	
+	/**
+	 * Writes the bytes kept in the given blocks to the given stream, through a small buffer
+	 * of the current thread.
+	 * 
+	 * @param blocks
+	 *           numbers of the blocks
+	 * @param length
+	 *           number of the bytes
+	 * @param out
+	 *           stream that receives the bytes
+	 * @throws IOException
+	 *            when the stream cannot be written
+	 */
+	void writeTo(int[] blocks, int length, OutputStream out) throws IOException {
+		byte[] transfer = transfers.get();
+		if (transfer == null || transfer.length < blockSize) {
+			transfer = new byte[blockSize];
+			transfers.set(transfer);
+		}
+		for (int i = 0; length > 0; i++) {
+			int n = Math.min(length, blockSize);
+			view(blocks[i], n).get(transfer, 0, n);
+			out.write(transfer, 0, n);
+			length -= n;
+		}
+	}
+	
+}
@@ -0,0 +1,47 @@
+package pl.mbdev.openstage.cache;
+
+import java.io.IOException;
+
+import pl.mbdev.openstage.Xml;
+
+/**
+ * Creates the XML of a screen that is not cached yet, see
+ * {@link RenderCache#get(String, XmlLoader, long, java.util.concurrent.TimeUnit, String...)}.
+ * Loaders are called concurrently for different keys, but only once at a time for each key.
+ * 
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public interface XmlLoader {
+	
+	/**
+	 * Creates the XML with the given key.
+	 * 
+	 * @param key
+	 *           key of the XML
+	 * @return the XML, which is then rendered and cached
+	 * @throws IOException
+	 *            when the data shown in the XML cannot be read
+	 * @throws IllegalArgumentException
+	 *            when there is no XML with such key
+	 */
+	Xml load(String key) throws IOException, IllegalArgumentException;
+	
+}
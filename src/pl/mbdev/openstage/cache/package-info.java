@@ -0,0 +1,6 @@
+/**
+ * Screens requested by many phones can be rendered once and shared, with use of
+ * {@link pl.mbdev.openstage.cache.RenderCache} class.
+ */
+
+package pl.mbdev.openstage.cache;
@@ -0,0 +1,486 @@
+package pl.mbdev.openstage.push;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Set of IPv4 addresses of phones, for example a CIDR range, a list read from a file or a
+ * selection from a {@link PhoneInventory}. Addresses are kept and enumerated as primitive
+ * integers, and are converted to text only when a push is actually sent, so that even a
+ * large range takes almost no memory. Sets are immutable, and can be enumerated many
+ * times.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public abstract class AddressSet {
+	
+	/**
+	 * Enumerates addresses of a set, as integers.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	public interface Cursor {
+		
+		/**
+		 * Checks if there are more addresses.
+		 * 
+		 * @return true if there is at least one more address
+		 */
+		boolean hasNext();
+		
+		/**
+		 * Returns the next address.
+		 * 
+		 * @return next address, as an integer
+		 * @throws NoSuchElementException
+		 *            when there are no more addresses
+		 */
+		int next();
+		
+	}
+	
+	/**
+	 * Decides which addresses are included in a filtered set.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	public interface Filter {
+		
+		/**
+		 * Checks if the address should be included.
+		 * 
+		 * @param address
+		 *           address as an integer
+		 * @return true if the address is included
+		 */
+		boolean accept(int address);
+		
+	}
+	
+	/**
+	 * Consecutive addresses.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private static class Range extends AddressSet {
+		
+		/**
+		 * First address, as an unsigned number.
+		 */
+		private final long first;
+		
+		/**
+		 * Number of addresses.
+		 */
+		private final long count;
+		
+		/**
+		 * Creates new range.
+		 * 
+		 * @param first
+		 *           first address, as an unsigned number
+		 * @param count
+		 *           number of addresses
+		 */
+		Range(long first, long count) {
+			this.first = first;
+			this.count = count;
+		}
+		
+		@Override
+		public Cursor cursor() {
+			return new Cursor() {
+				
+				/**
+				 * Next address.
+				 */
+				private long next = first;
+				
+				@Override
+				public boolean hasNext() {
+					return next < first + count;
+				}
+				
+				@Override
+				public int next() {
+					if (next >= first + count)
+						throw new NoSuchElementException();
+					return (int) next++;
+				}
+				
+			};
+		}
+		
+	}
+	
+	/**
+	 * Addresses given one by one.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private static class Listed extends AddressSet {
+		
+		/**
+		 * The addresses.
+		 */
+		private final int[] addresses;
+		
+		/**
+		 * Creates new set.
+		 * 
+		 * @param addresses
+		 *           the addresses, not copied
+		 */
+		Listed(int[] addresses) {
+			this.addresses = addresses;
+		}
+		
+		@Override
+		public Cursor cursor() {
+			return new Cursor() {
+				
+				/**
+				 * Index of the next address.
+				 */
+				private int next = 0;
+				
+				@Override
+				public boolean hasNext() {
+					return next < addresses.length;
+				}
+				
+				@Override
+				public int next() {
+					if (next >= addresses.length)
+						throw new NoSuchElementException();
+					return addresses[next++];
+				}
+				
+			};
+		}
+		
+	}
+	
+	/**
+	 * Addresses of all given sets, one set after another.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private static class Union extends AddressSet {
+		
+		/**
+		 * The sets.
+		 */
+		private final AddressSet[] sets;
+		
+		/**
+		 * Creates new union.
+		 * 
+		 * @param sets
+		 *           the sets, not copied
+		 */
+		Union(AddressSet[] sets) {
+			this.sets = sets;
+		}
+		
+		@Override
+		public Cursor cursor() {
+			return new Cursor() {
+				
+				/**
+				 * Index of the next set.
+				 */
+				private int set = 0;
+				
+				/**
+				 * Cursor of the current set.
+				 */
+				private Cursor current = null;
+				
+				@Override
+				public boolean hasNext() {
+					while (current == null || !current.hasNext()) {
+						if (set >= sets.length)
+							return false;
+						current = sets[set++].cursor();
+					}
+					return true;
+				}
+				
+				@Override
+				public int next() {
+					if (!hasNext())
+						throw new NoSuchElementException();
+					return current.next();
+				}
+				
+			};
+		}
+		
+	}
+	
+	/**
+	 * Returns a cursor that enumerates the addresses of this set from the beginning.
+	 * 
+	 * @return new cursor
+	 */
+	public abstract Cursor cursor();
+	
+	/**
+	 * Counts the addresses of this set by enumerating them.
+	 * 
+	 * @return number of addresses
+	 */
+	public long count() {
+		long count = 0;
+		for (Cursor cursor = cursor(); cursor.hasNext(); cursor.next())
+			count++;
+		return count;
+	}
+	
+	/**
+	 * Returns a set of those addresses of this set that are accepted by the filter. The
+	 * filter is applied whenever the new set is enumerated.
+	 * 
+	 * @param filter
+	 *           decides which addresses are included
+	 * @return filtered set
+	 */
+	public AddressSet filter(final Filter filter) {
+		if (filter == null)
+			throw new NullPointerException("filter cannot be null");
+		final AddressSet source = this;
+		return new AddressSet() {
+			@Override
+			public Cursor cursor() {
+				final Cursor cursor = source.cursor();
+				return new Cursor() {
+					
+					/**
+					 * True if the next accepted address was found.
+					 */
+					private boolean found = false;
+					
+					/**
+					 * Next accepted address, if found.
+					 */
+					private int address;
+					
+					@Override
+					public boolean hasNext() {
+						while (!found && cursor.hasNext()) {
+							address = cursor.next();
+							found = filter.accept(address);
+						}
+						return found;
+					}
+					
+					@Override
+					public int next() {
+						if (!hasNext())
+							throw new NoSuchElementException();
+						found = false;
+						return address;
+					}
+					
+				};
+			}
+		};
+	}
+	
+	/**
+	 * Returns addresses of all given sets, one set after another. Addresses that belong
+	 * to more than one set are repeated.
+	 * 
+	 * @param sets
+	 *           sets of addresses
+	 * @return union of the sets
+	 */
+	public static AddressSet union(AddressSet... sets) {
+		for (AddressSet set : sets)
+			if (set == null)
+				throw new NullPointerException("set cannot be null");
+		return new Union(sets.clone());
+	}
+	
+	/**
+	 * Returns the set of the given addresses.
+	 * 
+	 * @param addresses
+	 *           IPv4 addresses in dotted form
+	 * @return set of the addresses, in the given order
+	 * @throws IllegalArgumentException
+	 *            when some address is not a valid IPv4 address
+	 */
+	public static AddressSet of(String... addresses) {
+		int[] parsed = new int[addresses.length];
+		for (int i = 0; i < addresses.length; i++)
+			parsed[i] = parse(addresses[i]);
+		return new Listed(parsed);
+	}
+	
+	/**
+	 * Returns the set of the given addresses.
+	 * 
+	 * @param addresses
+	 *           addresses as integers
+	 * @return set of the addresses, in the given order
+	 */
+	public static AddressSet of(int[] addresses) {
+		return new Listed(addresses.clone());
+	}
+	
+	/**
+	 * Returns all host addresses of the given CIDR range, for example "10.1.0.0/16". The
+	 * network and broadcast addresses are left out, unless the range is shorter than four
+	 * addresses. An address without a prefix length is a range of one address.
+	 * 
+	 * @param cidr
+	 *           range in CIDR notation
+	 * @return set of the addresses, in ascending order
+	 * @throws IllegalArgumentException
+	 *            when the text is not a valid CIDR range
+	 */
+	public static AddressSet range(String cidr) {
+		int slash = cidr.indexOf('/');
+		int prefixLength = 32;
+		if (slash >= 0) {
+			try {
+				prefixLength = Integer.parseInt(cidr.substring(slash + 1));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("illegal prefix length in " + cidr);
+			}
+			if (prefixLength < 0 || prefixLength > 32)
+				throw new IllegalArgumentException("illegal prefix length in " + cidr);
+		}
+		long address = parse(slash >= 0 ? cidr.substring(0, slash) : cidr) & 0xFFFFFFFFL;
+		long count = 1L << (32 - prefixLength);
+		long first = address & ~(count - 1);
+		if (count >= 4)
+			return new Range(first + 1, count - 2);
+		return new Range(first, count);
+	}
+	
+	/**
+	 * Reads addresses from a text file, one address or CIDR range per line. Empty lines
+	 * and lines starting with '#' are skipped.
+	 * 
+	 * @param file
+	 *           text file with addresses
+	 * @return set of the addresses, in the order of the file
+	 * @throws IOException
+	 *            when the file cannot be read
+	 * @throws IllegalArgumentException
+	 *            when some line is not a valid address or range
+	 */
+	public static AddressSet read(File file) throws IOException {
+		ArrayList<AddressSet> sets = new ArrayList<AddressSet>();
+		int[] addresses = new int[64];
+		int size = 0;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), FormEncoding.UTF8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.charAt(0) == '#')
+					continue;
+				if (line.indexOf('/') >= 0) {
+					if (size > 0) {
+						sets.add(new Listed(Arrays.copyOf(addresses, size)));
+						size = 0;
+					}
+					sets.add(range(line));
+				} else {
+					if (size == addresses.length)
+						addresses = Arrays.copyOf(addresses, size * 2);
+					addresses[size++] = parse(line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		if (size > 0)
+			sets.add(new Listed(Arrays.copyOf(addresses, size)));
+		if (sets.size() == 1)
+			return sets.get(0);
+		return new Union(sets.toArray(new AddressSet[sets.size()]));
+	}
+	
+	/**
+	 * Converts an IPv4 address from the dotted form to an integer.
+	 * 
+	 * @param address
+	 *           IPv4 address in dotted form
+	 * @return address as an integer
+	 * @throws IllegalArgumentException
+	 *            when the text is not a valid IPv4 address
+	 */
+	public static int parse(String address) {
+		int result = 0;
+		int octet = -1;
+		int octets = 0;
+		for (int i = 0; i <= address.length(); i++) {
+			char c = i < address.length() ? address.charAt(i) : '.';
+			if (c >= '0' && c <= '9' && octet < 256) {
+				octet = (octet < 0 ? 0 : octet * 10) + (c - '0');
+			} else if (c == '.' && octet >= 0 && octet < 256 && octets < 4) {
+				result = result << 8 | octet;
+				octets++;
+				octet = -1;
+			} else {
+				throw new IllegalArgumentException("illegal IPv4 address: " + address);
+			}
+		}
+		if (octets != 4)
+			throw new IllegalArgumentException("illegal IPv4 address: " + address);
+		return result;
+	}
+	
+	/**
+	 * Converts an IPv4 address from an integer to the dotted form.
+	 * 
+	 * @param address
+	 *           address as an integer
+	 * @return IPv4 address in dotted form
+	 */
+	public static String toString(int address) {
+		char[] chars = new char[15];
+		int length = 0;
+		for (int shift = 24; shift >= 0; shift -= 8) {
+			int octet = (address >>> shift) & 0xFF;
+			if (octet >= 100)
+				chars[length++] = (char) ('0' + octet / 100);
+			if (octet >= 10)
+				chars[length++] = (char) ('0' + octet / 10 % 10);
+			chars[length++] = (char) ('0' + octet % 10);
+			if (shift > 0)
+				chars[length++] = '.';
+		}
+		return new String(chars, 0, length);
+	}
+	
+}
@@ -0,0 +1,756 @@
+package pl.mbdev.openstage.push;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends one {@link Push} to many phones in parallel, and makes sure the whole broadcast is
+ * finished by the given deadline. The deadline is passed to every single push, which
+ * shortens its timeouts accordingly; pushes that would start after the deadline are not
+ * sent at all, and those still waiting in the queue when it passes are reported as late.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public class Broadcast {
+	
+	/**
+	 * Maximum time between two checks of the queues of the subnets, in milliseconds.
+	 */
+	private static final long DISPATCH_INTERVAL = 100;
+	
+	/**
+	 * Maximum number of pushes that are created but not finished yet, when the phones
+	 * are given as a set of addresses.
+	 */
+	private static final int WINDOW = 1024;
+	
+	/**
+	 * Push that is sent to all phones.
+	 */
+	private final Push push;
+	
+	/**
+	 * Queue that decides the order of the pushes and gives them to the executor.
+	 */
+	private final PushQueue queue;
+	
+	/**
+	 * Defines when and how often failed pushes are repeated.
+	 */
+	private volatile RetryPolicy retryPolicy = RetryPolicy.NONE;
+	
+	/**
+	 * Rejects pushes to phones that keep failing, may be null.
+	 */
+	private volatile CircuitBreaker circuitBreaker = null;
+	
+	/**
+	 * Gives every pushed phone its own token, may be null.
+	 */
+	private volatile PushCorrelator correlator = null;
+	
+	/**
+	 * Limits the number of pushes sent at the same time to each subnet, may be null.
+	 */
+	private volatile ConcurrencyLimiter limiter = null;
+	
+	/**
+	 * Tells which phones were recently unreachable, may be null.
+	 */
+	private volatile LivenessCache livenessCache = null;
+	
+	/**
+	 * Number of pushes to unreachable phones sent at the same time.
+	 */
+	private volatile int slowLaneLimit = 1;
+	
+	/**
+	 * State of a single execution of the broadcast.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private static class Run {
+		
+		/**
+		 * Deadline of the whole broadcast.
+		 */
+		final Deadline deadline;
+		
+		/**
+		 * Result to which the outcomes are recorded.
+		 */
+		final BroadcastResult result;
+		
+		/**
+		 * Counts down the pushes that are not finished yet.
+		 */
+		final CountDownLatch remaining;
+		
+		/**
+		 * Limits the number of pushes that are created but not finished yet, may be null.
+		 */
+		final Semaphore window;
+		
+		/**
+		 * Pushes that are created but not finished yet, tracked only when the window limits
+		 * their number, may be null.
+		 */
+		final Set<PushJob> unfinished;
+		
+		/**
+		 * Limiter used by this execution, may be null.
+		 */
+		final ConcurrencyLimiter limiter;
+		
+		/**
+		 * Liveness cache used by this execution, may be null.
+		 */
+		final LivenessCache cache;
+		
+		/**
+		 * Lanes of this execution, used only by the thread that started it.
+		 */
+		final ArrayList<Lane> lanes = new ArrayList<Lane>();
+		
+		/**
+		 * Lanes of the subnets, by the subnet address.
+		 */
+		final HashMap<String, SubnetQueue> bySubnet = new HashMap<String, SubnetQueue>();
+		
+		/**
+		 * Lane of the phones that were recently unreachable, created when needed.
+		 */
+		SlowLane slowLane = null;
+		
+		/**
+		 * Creates new execution of the broadcast.
+		 * 
+		 * @param deadline
+		 *           deadline of the whole broadcast
+		 * @param count
+		 *           number of the pushes
+		 * @param window
+		 *           limits the number of pushes that are created but not finished yet, or
+		 *           null if all pushes are created at once
+		 * @param limiter
+		 *           concurrency limiter, or null
+		 * @param cache
+		 *           liveness cache, or null
+		 */
+		Run(Deadline deadline, int count, Semaphore window, ConcurrencyLimiter limiter,
+				LivenessCache cache) {
+			this.deadline = deadline;
+			this.result = new BroadcastResult();
+			this.remaining = new CountDownLatch(count);
+			this.window = window;
+			this.unfinished = window == null ? null : Collections
+					.newSetFromMap(new ConcurrentHashMap<PushJob, Boolean>());
+			this.limiter = limiter;
+			this.cache = cache;
+		}
+		
+		/**
+		 * Called once for every push that was created, before it is submitted anywhere.
+		 * 
+		 * @param job
+		 *           the created push
+		 */
+		void created(PushJob job) {
+			if (unfinished != null)
+				unfinished.add(job);
+		}
+		
+		/**
+		 * Called once for every push that was sent, skipped or dropped.
+		 * 
+		 * @param job
+		 *           the finished push
+		 */
+		void finished(PushJob job) {
+			if (unfinished != null)
+				unfinished.remove(job);
+			remaining.countDown();
+			if (window != null)
+				window.release();
+		}
+		
+	}
+	
+	/**
+	 * Push to a single phone, executed as a part of the broadcast.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private class PushTask extends PushJob {
+		
+		/**
+		 * Execution of the broadcast to which this push belongs.
+		 */
+		private final Run run;
+		
+		/**
+		 * Lane that holds a place in its limit for this push, may be null.
+		 */
+		private final Lane lane;
+		
+		/**
+		 * True if the phone is probed before the push is sent.
+		 */
+		private final boolean probe;
+		
+		/**
+		 * True if the push was actually sent, and not skipped.
+		 */
+		private boolean attempted = false;
+		
+		/**
+		 * Duration of the push, in nanoseconds.
+		 */
+		private long latency = 0;
+		
+		/**
+		 * True if the push timed out or the connection was refused.
+		 */
+		private boolean overloaded = false;
+		
+		/**
+		 * Creates new task.
+		 * 
+		 * @param phoneIP
+		 *           address of the target phone
+		 * @param run
+		 *           execution of the broadcast to which this push belongs
+		 * @param lane
+		 *           lane through which the push is sent, or null if it is not limited
+		 * @param probe
+		 *           true if the phone should be probed before the push is sent
+		 */
+		PushTask(String phoneIP, Run run, Lane lane, boolean probe) {
+			super(push, phoneIP);
+			this.run = run;
+			this.lane = lane;
+			this.probe = probe;
+			run.created(this);
+		}
+		
+		@Override
+		public void run() {
+			try {
+				send();
+			} finally {
+				run.finished(this);
+				if (lane != null)
+					lane.finished(this);
+			}
+		}
+		
+		@Override
+		protected void superseded(PushJob by) {
+			run.result.record(getPhoneIP(), BroadcastResult.Outcome.SUPERSEDED, null, null);
+			run.finished(this);
+			if (lane != null)
+				lane.finished(this);
+		}
+		
+		@Override
+		protected void coalesced(PushJob into) {
+			run.result.record(getPhoneIP(), BroadcastResult.Outcome.COALESCED, null, null);
+			run.finished(this);
+			if (lane != null)
+				lane.finished(this);
+		}
+		
+		/**
+		 * Sends the push and records its outcome.
+		 */
+		private void send() {
+			String phoneIP = getPhoneIP();
+			Deadline deadline = run.deadline;
+			BroadcastResult result = run.result;
+			if (deadline.isExpired()) {
+				result.record(phoneIP, BroadcastResult.Outcome.MISSED_DEADLINE, null, null);
+				return;
+			}
+			LivenessCache cache = livenessCache;
+			if (probe && cache != null) {
+				try {
+					cache.probe(phoneIP);
+				} catch (IOException e) {
+					result.record(phoneIP, BroadcastResult.Outcome.FAILED, null, e);
+					return;
+				}
+			}
+			PushCorrelator localCorrelator = correlator;
+			Push localPush = localCorrelator == null ? getPush() : localCorrelator
+					.register(getPush());
+			long start = System.nanoTime();
+			try {
+				attempted = true;
+				PushResponse response = localPush.send(phoneIP, retryPolicy, circuitBreaker,
+						deadline);
+				result.record(phoneIP, BroadcastResult.Outcome.SENT, response, null);
+				if (cache != null)
+					cache.record(phoneIP, true);
+			} catch (DeadlineExceededException e) {
+				attempted = false;
+				result.record(phoneIP, BroadcastResult.Outcome.MISSED_DEADLINE, null, e);
+			} catch (CircuitOpenException e) {
+				attempted = false;
+				result.record(phoneIP, BroadcastResult.Outcome.REJECTED, null, e);
+			} catch (SocketTimeoutException e) {
+				overloaded = true;
+				if (cache != null)
+					cache.record(phoneIP, !LivenessCache.isUnreachable(e));
+				if (deadline.isExpired())
+					result.record(phoneIP, BroadcastResult.Outcome.MISSED_DEADLINE, null, e);
+				else
+					result.record(phoneIP, BroadcastResult.Outcome.FAILED, null, e);
+			} catch (IOException e) {
+				overloaded = e instanceof ConnectException;
+				if (cache != null)
+					cache.record(phoneIP, !LivenessCache.isUnreachable(e));
+				result.record(phoneIP, BroadcastResult.Outcome.FAILED, null, e);
+			}
+			latency = System.nanoTime() - start;
+		}
+		
+	}
+	
+	/**
+	 * Pushes that wait for a free place in the limit of the number of pushes sent at the
+	 * same time.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private abstract class Lane {
+		
+		/**
+		 * Pushes waiting to be sent.
+		 */
+		final ConcurrentLinkedQueue<PushTask> waiting = new ConcurrentLinkedQueue<PushTask>();
+		
+		/**
+		 * Takes a place in the limit, if there is a free one.
+		 * 
+		 * @return true if the place was taken
+		 */
+		abstract boolean tryAcquire();
+		
+		/**
+		 * Gives back a place in the limit.
+		 * 
+		 * @param task
+		 *           push that held the place, or null if the place was not used
+		 */
+		abstract void release(PushTask task);
+		
+		/**
+		 * Submits waiting pushes to the queue, as many as the limit allows. Called again
+		 * whenever a push of this lane is finished.
+		 */
+		void dispatch() {
+			while (!waiting.isEmpty() && tryAcquire()) {
+				PushTask task = waiting.poll();
+				if (task == null) {
+					release(null);
+					return;
+				}
+				queue.submit(task);
+			}
+		}
+		
+		/**
+		 * Gives back the place in the limit held by the given push, and submits the next
+		 * waiting pushes.
+		 * 
+		 * @param task
+		 *           push that was sent, skipped or dropped
+		 */
+		void finished(PushTask task) {
+			release(task);
+			dispatch();
+		}
+		
+	}
+	
+	/**
+	 * Pushes to phones of a single subnet, limited by the concurrency limiter.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private class SubnetQueue extends Lane {
+		
+		/**
+		 * Subnet address.
+		 */
+		private final String subnet;
+		
+		/**
+		 * Limiter that controls this subnet.
+		 */
+		private final ConcurrencyLimiter subnetLimiter;
+		
+		/**
+		 * Creates new, empty queue.
+		 * 
+		 * @param subnet
+		 *           subnet address
+		 * @param subnetLimiter
+		 *           limiter that controls this subnet
+		 */
+		SubnetQueue(String subnet, ConcurrencyLimiter subnetLimiter) {
+			this.subnet = subnet;
+			this.subnetLimiter = subnetLimiter;
+		}
+		
+		@Override
+		boolean tryAcquire() {
+			return subnetLimiter.tryAcquire(subnet);
+		}
+		
+		@Override
+		void release(PushTask task) {
+			if (task != null && task.attempted)
+				subnetLimiter.release(subnet, task.latency, task.overloaded);
+			else
+				subnetLimiter.cancel(subnet);
+		}
+		
+	}
+	
+	/**
+	 * Pushes to phones that were recently unreachable, sent only a few at a time, so that
+	 * they do not take the places of the pushes to other phones.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private class SlowLane extends Lane {
+		
+		/**
+		 * Number of free places.
+		 */
+		private final AtomicInteger free;
+		
+		/**
+		 * Creates new, empty lane.
+		 * 
+		 * @param limit
+		 *           number of pushes sent at the same time
+		 */
+		SlowLane(int limit) {
+			this.free = new AtomicInteger(limit);
+		}
+		
+		@Override
+		boolean tryAcquire() {
+			for (;;) {
+				int current = free.get();
+				if (current <= 0)
+					return false;
+				if (free.compareAndSet(current, current - 1))
+					return true;
+			}
+		}
+		
+		@Override
+		void release(PushTask task) {
+			free.incrementAndGet();
+		}
+		
+	}
+	
+	/**
+	 * Creates new broadcast of the given push.
+	 * 
+	 * @param push
+	 *           push that is sent to all phones
+	 * @param executor
+	 *           executor that runs the pushes, its number of threads limits the number of
+	 *           pushes sent at the same time
+	 */
+	public Broadcast(Push push, Executor executor) {
+		this(push, new KeyedExecutor<String>(executor));
+	}
+	
+	/**
+	 * Creates new broadcast of the given push, which shares the keyed executor with other
+	 * broadcasts. Pushes of all broadcasts that share the executor reach each phone in the
+	 * order in which the broadcasts were started.
+	 * 
+	 * @param push
+	 *           push that is sent to all phones
+	 * @param executor
+	 *           keyed executor that runs the pushes, keyed by the phone address
+	 */
+	public Broadcast(Push push, KeyedExecutor<String> executor) {
+		this(push, new PushQueue(executor));
+	}
+	
+	/**
+	 * Creates new broadcast of the given push, which shares the queue with other
+	 * broadcasts. The order of the pushes of all these broadcasts is then decided by their
+	 * types of request, and a push can be superseded by a more important push of the same
+	 * application from another broadcast, see {@link PushQueue}.
+	 * 
+	 * @param push
+	 *           push that is sent to all phones
+	 * @param queue
+	 *           queue that decides the order of the pushes
+	 */
+	public Broadcast(Push push, PushQueue queue) {
+		if (push == null)
+			throw new NullPointerException("push cannot be null");
+		if (queue == null)
+			throw new NullPointerException("queue cannot be null");
+		this.push = push;
+		this.queue = queue;
+	}
+	
+	/**
+	 * Sets the policy that defines when and how often failed pushes are repeated.
+	 * 
+	 * @param retryPolicy
+	 *           retry policy, {@link RetryPolicy#NONE} by default
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		if (retryPolicy == null)
+			throw new NullPointerException("retry policy cannot be null");
+		this.retryPolicy = retryPolicy;
+	}
+	
+	/**
+	 * Sets the circuit breaker that rejects pushes to phones that keep failing.
+	 * 
+	 * @param circuitBreaker
+	 *           circuit breaker, or null if all pushes should be attempted
+	 */
+	public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+		this.circuitBreaker = circuitBreaker;
+	}
+	
+	/**
+	 * Sets the correlator that gives every pushed phone its own token as the server
+	 * context, so that the time between the push and the fetch of the application can be
+	 * measured. The server context of the broadcast push is then replaced.
+	 * 
+	 * @param correlator
+	 *           push correlator, or null if the server context of the push should be sent
+	 *           unchanged
+	 */
+	public void setCorrelator(PushCorrelator correlator) {
+		this.correlator = correlator;
+	}
+	
+	/**
+	 * Sends the push to all given phones and waits until it is finished, but not longer
+	 * than the given time.
+	 * 
+	 * @param phones
+	 *           IP addresses of the phones
+	 * @param timeout
+	 *           time after which the broadcast is finished, whether all pushes were sent
+	 *           or not
+	 * @param unit
+	 *           unit of the timeout
+	 * @return outcome of the push to each of the phones
+	 * @throws InterruptedException
+	 *            when the thread was interrupted while waiting for the pushes
+	 */
+	public BroadcastResult sendTo(Iterable<String> phones, long timeout, TimeUnit unit)
+			throws InterruptedException {
+		return sendTo(phones, Deadline.after(timeout, unit));
+	}
+	
+	/**
+	 * Sets the limiter that adapts the number of pushes sent at the same time to each
+	 * subnet. Without the limiter, the number of pushes sent at the same time is limited
+	 * only by the executor.
+	 * 
+	 * @param limiter
+	 *           concurrency limiter, or null
+	 */
+	public void setLimiter(ConcurrencyLimiter limiter) {
+		this.limiter = limiter;
+	}
+	
+	/**
+	 * Sets the cache that tells which phones were recently unreachable. Pushes to such
+	 * phones are sent through a separate, slow lane, only a few at a time, and each of
+	 * these phones is first probed with a short timeout. Outcomes of all pushes are
+	 * recorded to the cache.
+	 * 
+	 * @param livenessCache
+	 *           liveness cache, or null if all phones should be treated the same
+	 * @param slowLaneLimit
+	 *           number of pushes to unreachable phones sent at the same time, at least 1
+	 */
+	public void setLivenessCache(LivenessCache livenessCache, int slowLaneLimit) {
+		if (slowLaneLimit < 1)
+			throw new IllegalArgumentException("slow lane must allow at least one push");
+		this.livenessCache = livenessCache;
+		this.slowLaneLimit = slowLaneLimit;
+	}
+	
+	/**
+	 * Sends the push to all given phones and waits until it is finished, but not longer
+	 * than until the given deadline.
+	 * 
+	 * @param phones
+	 *           IP addresses of the phones
+	 * @param deadline
+	 *           moment at which the broadcast is finished, whether all pushes were sent
+	 *           or not
+	 * @return outcome of the push to each of the phones
+	 * @throws InterruptedException
+	 *            when the thread was interrupted while waiting for the pushes
+	 */
+	public BroadcastResult sendTo(Iterable<String> phones, Deadline deadline)
+			throws InterruptedException {
+		ArrayList<String> targets = new ArrayList<String>();
+		for (String phoneIP : phones)
+			targets.add(phoneIP);
+		Run run = new Run(deadline, targets.size(), null, limiter, livenessCache);
+		try {
+			for (String phoneIP : targets)
+				route(run, phoneIP);
+			await(run);
+		} finally {
+			for (Lane lane : run.lanes)
+				lane.waiting.clear();
+		}
+		
+		for (String phoneIP : targets)
+			run.result.record(phoneIP, BroadcastResult.Outcome.MISSED_DEADLINE, null, null);
+		return run.result;
+	}
+	
+	/**
+	 * Sends the push to all phones of the given set and waits until it is finished, but
+	 * not longer than until the given deadline. The addresses are converted to text only
+	 * when the pushes to them are created, and only a limited number of pushes exist at
+	 * any time, so even a large range of addresses takes little memory. When the deadline
+	 * passes, only the unfinished pushes and the addresses that were not reached yet are
+	 * marked as missed. The set must not change until the broadcast is finished.
+	 * 
+	 * @param phones
+	 *           addresses of the phones
+	 * @param deadline
+	 *           moment at which the broadcast is finished, whether all pushes were sent
+	 *           or not
+	 * @return outcome of the push to each of the phones
+	 * @throws InterruptedException
+	 *            when the thread was interrupted while waiting for the pushes
+	 */
+	public BroadcastResult sendTo(AddressSet phones, Deadline deadline)
+			throws InterruptedException {
+		long count = phones.count();
+		if (count > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("too many phones: " + count);
+		Run run = new Run(deadline, (int) count, new Semaphore(WINDOW), limiter,
+				livenessCache);
+		AddressSet.Cursor cursor = phones.cursor();
+		try {
+			while (cursor.hasNext() && !deadline.isExpired()) {
+				if (run.window.tryAcquire(Math.min(DISPATCH_INTERVAL,
+						deadline.remaining(TimeUnit.MILLISECONDS)), TimeUnit.MILLISECONDS))
+					route(run, AddressSet.toString(cursor.next()));
+				else
+					for (Lane lane : run.lanes)
+						lane.dispatch();
+			}
+			await(run);
+		} finally {
+			for (Lane lane : run.lanes)
+				lane.waiting.clear();
+		}
+		
+		for (PushJob job : run.unfinished)
+			run.result.record(job.getPhoneIP(), BroadcastResult.Outcome.MISSED_DEADLINE, null,
+					null);
+		while (cursor.hasNext())
+			run.result.record(AddressSet.toString(cursor.next()),
+					BroadcastResult.Outcome.MISSED_DEADLINE, null, null);
+		return run.result;
+	}
+	
+	/**
+	 * Creates the push to the given phone, and submits it to the queue or to the lane
+	 * that limits it.
+	 * 
+	 * @param run
+	 *           execution of the broadcast
+	 * @param phoneIP
+	 *           address of the phone
+	 */
+	private void route(Run run, String phoneIP) {
+		if (run.cache != null && run.cache.isKnownDead(phoneIP)) {
+			if (run.slowLane == null) {
+				run.slowLane = new SlowLane(slowLaneLimit);
+				run.lanes.add(run.slowLane);
+			}
+			run.slowLane.waiting.add(new PushTask(phoneIP, run, run.slowLane, true));
+			run.slowLane.dispatch();
+		} else if (run.limiter != null) {
+			String subnet = run.limiter.getSubnet(phoneIP);
+			SubnetQueue subnetQueue = run.bySubnet.get(subnet);
+			if (subnetQueue == null) {
+				subnetQueue = new SubnetQueue(subnet, run.limiter);
+				run.bySubnet.put(subnet, subnetQueue);
+				run.lanes.add(subnetQueue);
+			}
+			subnetQueue.waiting.add(new PushTask(phoneIP, run, subnetQueue, false));
+			subnetQueue.dispatch();
+		} else {
+			queue.submit(new PushTask(phoneIP, run, null, false));
+		}
+	}
+	
+	/**
+	 * Waits until all pushes of the broadcast are finished, or the deadline passes.
+	 * 
+	 * @param run
+	 *           execution of the broadcast
+	 * @throws InterruptedException
+	 *            when the thread was interrupted while waiting
+	 */
+	private void await(Run run) throws InterruptedException {
+		// limits may be shared with other broadcasts, so lanes are revisited from time to
+		// time, in case a place was freed by a push that is not a part of this one
+		do {
+			for (Lane lane : run.lanes)
+				lane.dispatch();
+		} while (!run.remaining.await(Math.min(DISPATCH_INTERVAL,
+				run.deadline.remaining(TimeUnit.MILLISECONDS)), TimeUnit.MILLISECONDS)
+				&& !run.deadline.isExpired());
+	}
+	
+}
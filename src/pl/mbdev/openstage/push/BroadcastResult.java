@@ -0,0 +1,225 @@
+package pl.mbdev.openstage.push;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Outcome of sending a push to many phones with {@link Broadcast}. For each phone it tells
+ * whether the push was sent, failed, was rejected by the circuit breaker or missed the
+ * deadline of the broadcast.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public class BroadcastResult {
+	
+	/**
+	 * Possible outcomes of the push to a single phone.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	public enum Outcome {
+		/**
+		 * Push was sent and the phone responded.
+		 */
+		SENT,
+		/**
+		 * Push failed, the error is available.
+		 */
+		FAILED,
+		/**
+		 * Push was not sent because the circuit of the phone is open.
+		 */
+		REJECTED,
+		/**
+		 * Push was not finished before the deadline of the broadcast.
+		 */
+		MISSED_DEADLINE,
+		/**
+		 * Push was not sent because a push of the same application with higher priority was
+		 * queued for the same phone before it was sent.
+		 */
+		SUPERSEDED,
+		/**
+		 * Push was merged into an earlier push of the same application to the same phone,
+		 * which was still waiting in the queue, and is sent as a part of that push.
+		 */
+		COALESCED;
+	}
+	
+	/**
+	 * Outcome of the push to a single phone, together with the response or the error.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private static class Entry {
+		
+		/**
+		 * Outcome of the push.
+		 */
+		final Outcome outcome;
+		
+		/**
+		 * Response of the phone, if the push was sent.
+		 */
+		final PushResponse response;
+		
+		/**
+		 * Error, if the push failed.
+		 */
+		final IOException error;
+		
+		/**
+		 * Creates new entry.
+		 * 
+		 * @param outcome
+		 *           outcome of the push
+		 * @param response
+		 *           response of the phone, may be null
+		 * @param error
+		 *           error, may be null
+		 */
+		Entry(Outcome outcome, PushResponse response, IOException error) {
+			this.outcome = outcome;
+			this.response = response;
+			this.error = error;
+		}
+		
+	}
+	
+	/**
+	 * Outcomes of the pushes, by the address of the phone.
+	 */
+	private final ConcurrentHashMap<String, Entry> entries;
+	
+	/**
+	 * Creates new, empty result.
+	 */
+	BroadcastResult() {
+		entries = new ConcurrentHashMap<String, Entry>();
+	}
+	
+	/**
+	 * Records the outcome of the push to a single phone. Only the first outcome recorded
+	 * for the phone is kept, so a push that finishes after it was marked as late does not
+	 * change the result.
+	 * 
+	 * @param phoneIP
+	 *           address of the phone
+	 * @param outcome
+	 *           outcome of the push
+	 * @param response
+	 *           response of the phone, may be null
+	 * @param error
+	 *           error, may be null
+	 * @return true if the outcome was recorded
+	 */
+	boolean record(String phoneIP, Outcome outcome, PushResponse response,
+			IOException error) {
+		return entries.putIfAbsent(phoneIP, new Entry(outcome, response, error)) == null;
+	}
+	
+	/**
+	 * Returns the outcome of the push to the given phone.
+	 * 
+	 * @param phoneIP
+	 *           address of the phone
+	 * @return outcome of the push, or null if the phone was not a target of the broadcast
+	 */
+	public Outcome getOutcome(String phoneIP) {
+		Entry entry = entries.get(phoneIP);
+		return entry == null ? null : entry.outcome;
+	}
+	
+	/**
+	 * Returns the response of the given phone.
+	 * 
+	 * @param phoneIP
+	 *           address of the phone
+	 * @return response of the phone, or null if the push was not sent
+	 */
+	public PushResponse getResponse(String phoneIP) {
+		Entry entry = entries.get(phoneIP);
+		return entry == null ? null : entry.response;
+	}
+	
+	/**
+	 * Returns the error that caused the push to the given phone to fail.
+	 * 
+	 * @param phoneIP
+	 *           address of the phone
+	 * @return the error, or null if there was none
+	 */
+	public IOException getError(String phoneIP) {
+		Entry entry = entries.get(phoneIP);
+		return entry == null ? null : entry.error;
+	}
+	
+	/**
+	 * Returns all phones for which the push ended with the given outcome.
+	 * 
+	 * @param outcome
+	 *           outcome of the push
+	 * @return addresses of the phones, in no particular order
+	 */
+	public List<String> getPhones(Outcome outcome) {
+		ArrayList<String> phones = new ArrayList<String>();
+		for (Map.Entry<String, Entry> e : entries.entrySet())
+			if (e.getValue().outcome == outcome)
+				phones.add(e.getKey());
+		return phones;
+	}
+	
+	/**
+	 * Returns all phones that did not receive the push before the deadline.
+	 * 
+	 * @return addresses of the phones, in no particular order
+	 */
+	public List<String> getMissedDeadline() {
+		return getPhones(Outcome.MISSED_DEADLINE);
+	}
+	
+	/**
+	 * Counts the phones for which the push ended with the given outcome.
+	 * 
+	 * @param outcome
+	 *           outcome of the push
+	 * @return number of phones
+	 */
+	public int count(Outcome outcome) {
+		int count = 0;
+		for (Entry entry : entries.values())
+			if (entry.outcome == outcome)
+				count++;
+		return count;
+	}
+	
+	/**
+	 * Returns number of phones that were the targets of the broadcast.
+	 * 
+	 * @return number of phones
+	 */
+	public int size() {
+		return entries.size();
+	}
+	
+}
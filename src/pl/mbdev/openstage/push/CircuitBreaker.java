@@ -0,0 +1,193 @@
+package pl.mbdev.openstage.push;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of consecutive push failures of each phone. When a phone fails too many
+ * times in a row, its circuit is opened and further pushes to that phone are rejected
+ * immediately, without any connection attempt, until the cooldown passes. After the
+ * cooldown, a single push is let through to check if the phone is back.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public class CircuitBreaker {
+	
+	/**
+	 * State of the circuit of a single phone.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private static class Circuit {
+		
+		/**
+		 * Number of consecutive failures.
+		 */
+		int failures = 0;
+		
+		/**
+		 * Time until which the circuit is open, in milliseconds, or 0 if it is closed.
+		 */
+		long openUntil = 0;
+		
+		/**
+		 * Thread that sends the single probing push after the cooldown, or null if there is
+		 * no probe in progress.
+		 */
+		Thread prober = null;
+		
+	}
+	
+	/**
+	 * Number of consecutive failures after which the circuit is opened.
+	 */
+	private final int failureThreshold;
+	
+	/**
+	 * Time for which the circuit stays open, in milliseconds.
+	 */
+	private final long cooldown;
+	
+	/**
+	 * Circuits of the phones that failed at least once since their last success.
+	 */
+	private final ConcurrentHashMap<String, Circuit> circuits;
+	
+	/**
+	 * Creates new circuit breaker.
+	 * 
+	 * @param failureThreshold
+	 *           number of consecutive failures after which the circuit of a phone is
+	 *           opened, at least 1
+	 * @param cooldown
+	 *           time for which the circuit stays open, in milliseconds
+	 */
+	public CircuitBreaker(int failureThreshold, long cooldown) {
+		if (failureThreshold < 1)
+			throw new IllegalArgumentException("failure threshold must be at least 1");
+		if (cooldown < 0)
+			throw new IllegalArgumentException("cooldown cannot be negative");
+		this.failureThreshold = failureThreshold;
+		this.cooldown = cooldown;
+		this.circuits = new ConcurrentHashMap<String, Circuit>();
+	}
+	
+	/**
+	 * Checks if a push to the given phone may be sent now. When the cooldown of an open
+	 * circuit has passed, only the first caller is allowed, as a probe.
+	 * 
+	 * @param phoneIP
+	 *           address of the phone
+	 * @return true if the push may be sent
+	 */
+	public boolean allowRequest(String phoneIP) {
+		Circuit circuit = circuits.get(phoneIP);
+		if (circuit == null)
+			return true;
+		synchronized (circuit) {
+			if (circuit.openUntil == 0)
+				return true;
+			if (circuit.prober != null || System.currentTimeMillis() < circuit.openUntil)
+				return false;
+			circuit.prober = Thread.currentThread();
+			return true;
+		}
+	}
+	
+	/**
+	 * Checks if the circuit of the given phone is open.
+	 * 
+	 * @param phoneIP
+	 *           address of the phone
+	 * @return true if pushes to the phone are currently rejected
+	 */
+	public boolean isOpen(String phoneIP) {
+		Circuit circuit = circuits.get(phoneIP);
+		if (circuit == null)
+			return false;
+		synchronized (circuit) {
+			return circuit.openUntil != 0;
+		}
+	}
+	
+	/**
+	 * Records a successful push, which closes the circuit of the phone.
+	 * 
+	 * @param phoneIP
+	 *           address of the phone
+	 */
+	public void recordSuccess(String phoneIP) {
+		circuits.remove(phoneIP);
+	}
+	
+	/**
+	 * Records a failed push. The circuit of the phone is opened when the number of
+	 * consecutive failures reaches the threshold, or when the probing push failed.
+	 * 
+	 * @param phoneIP
+	 *           address of the phone
+	 */
+	public void recordFailure(String phoneIP) {
+		Circuit circuit = circuits.get(phoneIP);
+		if (circuit == null) {
+			Circuit created = new Circuit();
+			circuit = circuits.putIfAbsent(phoneIP, created);
+			if (circuit == null)
+				circuit = created;
+		}
+		synchronized (circuit) {
+			circuit.failures++;
+			if (circuit.prober != null || circuit.failures >= failureThreshold) {
+				circuit.openUntil = System.currentTimeMillis() + cooldown;
+				circuit.prober = null;
+			}
+		}
+	}
+	
+	/**
+	 * Ends the push that was allowed to the current thread by
+	 * {@link #allowRequest(String)}, if it was a probe that was neither recorded as a
+	 * success nor as a failure, for example because it failed in a way that says nothing
+	 * about the phone. The next push after it may probe the phone again. Calling this for
+	 * other pushes does nothing.
+	 * 
+	 * @param phoneIP
+	 *           address of the phone
+	 */
+	public void release(String phoneIP) {
+		Circuit circuit = circuits.get(phoneIP);
+		if (circuit == null)
+			return;
+		synchronized (circuit) {
+			if (circuit.prober == Thread.currentThread())
+				circuit.prober = null;
+		}
+	}
+	
+	/**
+	 * Forgets all failures of the given phone.
+	 * 
+	 * @param phoneIP
+	 *           address of the phone
+	 */
+	public void reset(String phoneIP) {
+		circuits.remove(phoneIP);
+	}
+	
+}
@@ -0,0 +1,307 @@
+package pl.mbdev.openstage.push;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of pushes that are sent at the same time to phones in the same subnet,
+ * and adapts this limit to the capacity of the network (additive increase, multiplicative
+ * decrease). Every push that is answered quickly raises the limit of its subnet a little,
+ * so that a fully used limit grows by about one per round trip. A push that timed out, or
+ * was answered too slowly, cuts the limit by a constant ratio, at most once per the
+ * latency threshold, so that many pushes failing together do not collapse the limit.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public class ConcurrencyLimiter {
+	
+	/**
+	 * Current limit of a single subnet.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private static class Limit {
+		
+		/**
+		 * Current limit, the fractional part accumulates the additive increase.
+		 */
+		double limit;
+		
+		/**
+		 * Number of pushes being sent right now.
+		 */
+		int inFlight = 0;
+		
+		/**
+		 * Time of the last decrease of the limit, as given by {@link System#nanoTime()}.
+		 */
+		long lastDecrease;
+		
+		/**
+		 * Creates new limit.
+		 * 
+		 * @param limit
+		 *           initial limit
+		 */
+		Limit(double limit) {
+			this.limit = limit;
+			this.lastDecrease = System.nanoTime();
+		}
+		
+	}
+	
+	/**
+	 * Limit of a subnet that was not used before.
+	 */
+	private final int initialLimit;
+	
+	/**
+	 * Limit never goes below this value.
+	 */
+	private final int minLimit;
+	
+	/**
+	 * Limit never goes above this value.
+	 */
+	private final int maxLimit;
+	
+	/**
+	 * Pushes that take longer than this, in nanoseconds, cause a decrease of the limit.
+	 */
+	private final long latencyThreshold;
+	
+	/**
+	 * Ratio by which the limit is multiplied when it is decreased.
+	 */
+	private final double backoffRatio;
+	
+	/**
+	 * Number of leading bits of the IPv4 address that define the subnet.
+	 */
+	private final int prefixLength;
+	
+	/**
+	 * Limits of the subnets, by the subnet address.
+	 */
+	private final ConcurrentHashMap<String, Limit> limits;
+	
+	/**
+	 * Creates new limiter.
+	 * 
+	 * @param initialLimit
+	 *           limit of a subnet that was not used before
+	 * @param minLimit
+	 *           limit never goes below this value, at least 1
+	 * @param maxLimit
+	 *           limit never goes above this value
+	 * @param latencyThreshold
+	 *           pushes that take longer than this cause a decrease of the limit
+	 * @param unit
+	 *           unit of the latency threshold
+	 * @param backoffRatio
+	 *           ratio by which the limit is multiplied when it is decreased, greater than
+	 *           0 and lower than 1, for example 0.5
+	 * @param prefixLength
+	 *           number of leading bits of the IPv4 address that define the subnet, for
+	 *           example 24; phones given by host name are each treated as a separate
+	 *           subnet
+	 */
+	public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit,
+			long latencyThreshold, TimeUnit unit, double backoffRatio, int prefixLength) {
+		if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit)
+			throw new IllegalArgumentException("limits must be: 1 <= min <= initial <= max");
+		if (latencyThreshold <= 0)
+			throw new IllegalArgumentException("latency threshold must be positive");
+		if (backoffRatio <= 0.0 || backoffRatio >= 1.0)
+			throw new IllegalArgumentException("backoff ratio must be between 0 and 1");
+		if (prefixLength < 0 || prefixLength > 32)
+			throw new IllegalArgumentException("prefix length must be between 0 and 32");
+		this.initialLimit = initialLimit;
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.latencyThreshold = unit.toNanos(latencyThreshold);
+		this.backoffRatio = backoffRatio;
+		this.prefixLength = prefixLength;
+		this.limits = new ConcurrentHashMap<String, Limit>();
+	}
+	
+	/**
+	 * Parses IPv4 address in the dotted form, with optional port number.
+	 * 
+	 * @param phoneIP
+	 *           address of the phone
+	 * @return address as an integer, or -1 (as a long) if it is not an IPv4 address
+	 */
+	static long parseIPv4(String phoneIP) {
+		long address = 0;
+		int octet = -1;
+		int octets = 0;
+		for (int i = 0; i < phoneIP.length(); i++) {
+			char c = phoneIP.charAt(i);
+			if (c >= '0' && c <= '9') {
+				octet = (octet < 0 ? 0 : octet * 10) + (c - '0');
+				if (octet > 255)
+					return -1;
+			} else if ((c == '.' || c == ':') && octet >= 0 && octets < 4) {
+				address = (address << 8) | octet;
+				octets++;
+				octet = -1;
+				if (c == ':')
+					break;
+			} else
+				return -1;
+		}
+		if (octet >= 0 && octets < 4) {
+			address = (address << 8) | octet;
+			octets++;
+		}
+		return octets == 4 ? address : -1;
+	}
+	
+	/**
+	 * Returns the subnet to which the given phone belongs.
+	 * 
+	 * @param phoneIP
+	 *           address of the phone
+	 * @return subnet address with the prefix length, like "10.1.2.0/24", or the given
+	 *         address if it is not an IPv4 address
+	 */
+	public String getSubnet(String phoneIP) {
+		long address = parseIPv4(phoneIP);
+		if (address < 0)
+			return phoneIP;
+		if (prefixLength < 32)
+			address &= ~(0xFFFFFFFFL >>> prefixLength) & 0xFFFFFFFFL;
+		return new StringBuilder(18).append(address >>> 24).append('.')
+				.append((address >>> 16) & 0xFF).append('.').append((address >>> 8) & 0xFF)
+				.append('.').append(address & 0xFF).append('/').append(prefixLength)
+				.toString();
+	}
+	
+	/**
+	 * Returns the limit of the given subnet, creating it if needed.
+	 * 
+	 * @param subnet
+	 *           subnet address
+	 * @return limit of the subnet
+	 */
+	private Limit limitOf(String subnet) {
+		Limit limit = limits.get(subnet);
+		if (limit == null) {
+			Limit created = new Limit(initialLimit);
+			limit = limits.putIfAbsent(subnet, created);
+			if (limit == null)
+				limit = created;
+		}
+		return limit;
+	}
+	
+	/**
+	 * Reserves a place for a push to the given subnet, if the limit allows it.
+	 * 
+	 * @param subnet
+	 *           subnet address, see {@link #getSubnet(String)}
+	 * @return true if the push may be sent now, it must be followed by release()
+	 */
+	public boolean tryAcquire(String subnet) {
+		Limit limit = limitOf(subnet);
+		synchronized (limit) {
+			if (limit.inFlight >= (int) limit.limit)
+				return false;
+			limit.inFlight++;
+			return true;
+		}
+	}
+	
+	/**
+	 * Frees the place of a push that was finished, and adapts the limit of the subnet.
+	 * 
+	 * @param subnet
+	 *           subnet address, see {@link #getSubnet(String)}
+	 * @param latency
+	 *           duration of the push, in nanoseconds
+	 * @param overloaded
+	 *           true if the push timed out or the connection was refused, which means
+	 *           that the network or the phone is overloaded
+	 */
+	public void release(String subnet, long latency, boolean overloaded) {
+		Limit limit = limitOf(subnet);
+		synchronized (limit) {
+			int used = limit.inFlight;
+			if (limit.inFlight > 0)
+				limit.inFlight--;
+			if (overloaded || latency > latencyThreshold) {
+				long now = System.nanoTime();
+				if (now - limit.lastDecrease >= latencyThreshold) {
+					limit.limit = Math.max(minLimit, limit.limit * backoffRatio);
+					limit.lastDecrease = now;
+				}
+			} else if (used * 2 >= (int) limit.limit)
+				limit.limit = Math.min(maxLimit, limit.limit + 1.0 / limit.limit);
+		}
+	}
+	
+	/**
+	 * Frees the place of a push that was not sent at all, without adapting the limit.
+	 * 
+	 * @param subnet
+	 *           subnet address, see {@link #getSubnet(String)}
+	 */
+	public void cancel(String subnet) {
+		Limit limit = limitOf(subnet);
+		synchronized (limit) {
+			if (limit.inFlight > 0)
+				limit.inFlight--;
+		}
+	}
+	
+	/**
+	 * Returns the current limit of the given subnet.
+	 * 
+	 * @param subnet
+	 *           subnet address, see {@link #getSubnet(String)}
+	 * @return maximum number of pushes sent to the subnet at the same time
+	 */
+	public int getLimit(String subnet) {
+		Limit limit = limits.get(subnet);
+		if (limit == null)
+			return initialLimit;
+		synchronized (limit) {
+			return (int) limit.limit;
+		}
+	}
+	
+	/**
+	 * Returns the current limits of all subnets that were used so far.
+	 * 
+	 * @return maximum number of pushes sent at the same time, by the subnet address
+	 */
+	public Map<String, Integer> getLimits() {
+		HashMap<String, Integer> result = new HashMap<String, Integer>();
+		for (Map.Entry<String, Limit> e : limits.entrySet())
+			synchronized (e.getValue()) {
+				result.put(e.getKey(), (int) e.getValue().limit);
+			}
+		return result;
+	}
+	
+}
@@ -0,0 +1,588 @@
+package pl.mbdev.openstage.push;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps HTTP/1.1 connections to the phones open between pushes, so that successive pushes
+ * to the same phone do not have to establish a new TCP connection each time. A connection
+ * is kept only if the phone allows it: the response must not ask for the connection to
+ * be closed, and its length must be known. Connections that stay unused for longer than
+ * the idle timeout are closed.<br />
+ * <br />
+ * The phone may close an idle connection at any time. If a request sent over a reused
+ * connection fails before any part of the response arrives, it is sent once more over a
+ * new connection.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public class ConnectionPool {
+	
+	/**
+	 * Default maximum number of idle connections kept for a single phone.
+	 */
+	public static final int DEFAULT_MAX_IDLE = 2;
+	
+	/**
+	 * Default time after which an idle connection is closed, in milliseconds.
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT = 5000;
+	
+	/**
+	 * Maximum length of the status line or of a header of the response.
+	 */
+	private static final int MAX_LINE = 8192;
+	
+	/**
+	 * Bytes that end a line.
+	 */
+	private static final byte[] CRLF = { '\r', '\n' };
+	
+	/**
+	 * Open connection to a phone.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	static class Connection {
+		
+		/**
+		 * Socket of the connection.
+		 */
+		final Socket socket;
+		
+		/**
+		 * Buffered input of the socket.
+		 */
+		final InputStream in;
+		
+		/**
+		 * Output of the socket.
+		 */
+		final OutputStream out;
+		
+		/**
+		 * True if the connection was used before.
+		 */
+		boolean reused = false;
+		
+		/**
+		 * Time since which the connection is idle, as given by {@link System#nanoTime()}.
+		 */
+		long idleSince;
+		
+		/**
+		 * Creates new connection over the given socket.
+		 * 
+		 * @param socket
+		 *           connected socket
+		 * @throws IOException
+		 *            when the streams of the socket cannot be opened
+		 */
+		Connection(Socket socket) throws IOException {
+			this.socket = socket;
+			this.in = new BufferedInputStream(socket.getInputStream());
+			this.out = socket.getOutputStream();
+		}
+		
+		/**
+		 * Closes the connection, ignoring errors.
+		 */
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing more can be done
+			}
+		}
+		
+	}
+	
+	/**
+	 * Maximum number of idle connections kept for a single phone.
+	 */
+	private final int maxIdle;
+	
+	/**
+	 * Time after which an idle connection is closed, in nanoseconds.
+	 */
+	private final long idleTimeout;
+	
+	/**
+	 * Idle connections of each phone, by host and port, the most recently used last.
+	 */
+	private final ConcurrentHashMap<String, ArrayDeque<Connection>> idle;
+	
+	/**
+	 * Creates new pool with default limits.
+	 */
+	public ConnectionPool() {
+		this(DEFAULT_MAX_IDLE, DEFAULT_IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Creates new pool.
+	 * 
+	 * @param maxIdle
+	 *           maximum number of idle connections kept for a single phone
+	 * @param idleTimeout
+	 *           time after which an idle connection is closed
+	 * @param unit
+	 *           unit of the idle timeout
+	 */
+	public ConnectionPool(int maxIdle, long idleTimeout, TimeUnit unit) {
+		if (maxIdle < 0)
+			throw new IllegalArgumentException("number of connections cannot be negative");
+		if (idleTimeout < 0)
+			throw new IllegalArgumentException("idle timeout cannot be negative");
+		this.maxIdle = maxIdle;
+		this.idleTimeout = unit.toNanos(idleTimeout);
+		this.idle = new ConcurrentHashMap<String, ArrayDeque<Connection>>();
+	}
+	
+	/**
+	 * Returns the key of the connections to the host of the given URL.
+	 * 
+	 * @param url
+	 *           URL of the target
+	 * @return host and port
+	 */
+	private static String keyOf(URL url) {
+		return url.getHost() + ':' + (url.getPort() < 0 ? url.getDefaultPort() : url.getPort());
+	}
+	
+	/**
+	 * Takes an idle connection to the host of the given URL, or opens a new one.
+	 * 
+	 * @param url
+	 *           URL of the target
+	 * @param connectTimeout
+	 *           time limit for establishing a new connection, in milliseconds
+	 * @return connection, either reused or new
+	 * @throws IOException
+	 *            when a new connection cannot be established
+	 */
+	Connection acquire(URL url, int connectTimeout) throws IOException {
+		ArrayDeque<Connection> connections = idle.get(keyOf(url));
+		if (connections != null) {
+			long now = System.nanoTime();
+			synchronized (connections) {
+				Connection connection;
+				while ((connection = connections.pollLast()) != null) {
+					if (now - connection.idleSince < idleTimeout) {
+						connection.reused = true;
+						return connection;
+					}
+					connection.close();
+				}
+			}
+		}
+		return connect(url, connectTimeout);
+	}
+	
+	/**
+	 * Opens a new connection to the host of the given URL.
+	 * 
+	 * @param url
+	 *           URL of the target
+	 * @param connectTimeout
+	 *           time limit for establishing the connection, in milliseconds
+	 * @return new connection
+	 * @throws IOException
+	 *            when the connection cannot be established
+	 */
+	private static Connection connect(URL url, int connectTimeout) throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(url.getHost(), url.getPort() < 0 ? url
+					.getDefaultPort() : url.getPort()), connectTimeout);
+			return new Connection(socket);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Gives back a connection after a complete exchange, so that it can be reused.
+	 * 
+	 * @param url
+	 *           URL of the target
+	 * @param connection
+	 *           connection that is idle now
+	 */
+	void release(URL url, Connection connection) {
+		if (maxIdle == 0) {
+			connection.close();
+			return;
+		}
+		String key = keyOf(url);
+		ArrayDeque<Connection> connections = idle.get(key);
+		if (connections == null) {
+			ArrayDeque<Connection> created = new ArrayDeque<Connection>(maxIdle);
+			connections = idle.putIfAbsent(key, created);
+			if (connections == null)
+				connections = created;
+		}
+		connection.idleSince = System.nanoTime();
+		Connection evicted = null;
+		synchronized (connections) {
+			connections.addLast(connection);
+			if (connections.size() > maxIdle)
+				evicted = connections.pollFirst();
+		}
+		if (evicted != null)
+			evicted.close();
+	}
+	
+	/**
+	 * Sends a POST request with the given body and reads the response into the given
+	 * parser, reusing an idle connection if there is one. Timings of the exchange are
+	 * stored in the parser.
+	 * 
+	 * @param url
+	 *           URL of the target
+	 * @param body
+	 *           encoded body of the request
+	 * @param connectTimeout
+	 *           time limit for establishing a new connection, in milliseconds
+	 * @param readTimeout
+	 *           time limit for waiting for data, in milliseconds
+	 * @param parser
+	 *           parser that consumes the body of the response
+	 * @return HTTP status of the response
+	 * @throws IOException
+	 *            when the request cannot be sent or the response is malformed
+	 */
+	int post(URL url, byte[] body, int connectTimeout, int readTimeout,
+			PushResponse.Parser parser) throws IOException {
+		for (;;) {
+			long start = System.nanoTime();
+			Connection connection = acquire(url, connectTimeout);
+			boolean reused = connection.reused;
+			boolean started = false;
+			try {
+				long connected = System.nanoTime();
+				parser.connectNanos = reused ? -1 : connected - start;
+				connection.socket.setSoTimeout(readTimeout);
+				writeRequest(connection.out, url, body);
+				long written = System.nanoTime();
+				parser.writeNanos = written - connected;
+				int first = connection.in.read();
+				if (first < 0)
+					throw new EOFException("connection closed before the response");
+				started = true;
+				int status = readResponse(connection, url, first, parser);
+				parser.responseNanos = System.nanoTime() - written;
+				return status;
+			} catch (IOException e) {
+				connection.close();
+				// the phone may have closed the idle connection in the meantime
+				if (reused && !started && (e instanceof EOFException
+						|| e instanceof SocketException))
+					continue;
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * Writes the request line, headers and body.
+	 * 
+	 * @param out
+	 *           output of the connection
+	 * @param url
+	 *           URL of the target
+	 * @param body
+	 *           encoded body of the request
+	 * @throws IOException
+	 *            when the request cannot be written
+	 */
+	private static void writeRequest(OutputStream out, URL url, byte[] body)
+			throws IOException {
+		String file = url.getFile().length() == 0 ? "/" : url.getFile();
+		StringBuilder head = new StringBuilder(160);
+		head.append("POST ").append(file).append(" HTTP/1.1\r\nHost: ").append(url.getHost());
+		if (url.getPort() >= 0)
+			head.append(':').append(url.getPort());
+		head.append("\r\nContent-Type: application/x-www-form-urlencoded\r\nContent-Length: ")
+				.append(body.length).append("\r\n\r\n");
+		byte[] bytes = new byte[head.length() + body.length];
+		for (int i = 0; i < head.length(); i++)
+			bytes[i] = (byte) head.charAt(i);
+		System.arraycopy(body, 0, bytes, head.length(), body.length);
+		out.write(bytes);
+		out.flush();
+	}
+	
+	/**
+	 * Reads the rest of the response, and gives the connection back to the pool if the
+	 * phone allows it to be reused.
+	 * 
+	 * @param connection
+	 *           connection from which the response is read
+	 * @param url
+	 *           URL of the target
+	 * @param first
+	 *           first byte of the response, already read
+	 * @param parser
+	 *           parser that consumes the body of the response
+	 * @return HTTP status of the response
+	 * @throws IOException
+	 *            when the response is malformed
+	 */
+	private int readResponse(Connection connection, URL url, int first,
+			PushResponse.Parser parser) throws IOException {
+		InputStream in = connection.in;
+		byte[] line = parser.buffer;
+		line[0] = (byte) first;
+		int length = readLine(in, line, 1);
+		if (length < 12 || !startsWith(line, "HTTP/1."))
+			throw new ProtocolException("illegal status line");
+		boolean keepAlive = line[7] == '1';
+		int status = (line[9] - '0') * 100 + (line[10] - '0') * 10 + (line[11] - '0');
+		if (status < 100 || status > 599)
+			throw new ProtocolException("illegal status line");
+		
+		long contentLength = -1;
+		boolean chunked = false;
+		while ((length = readLine(in, line, 0)) > 0) {
+			if (startsWithIgnoreCase(line, "content-length:")) {
+				contentLength = 0;
+				for (int i = 15; i < length; i++)
+					if (line[i] >= '0' && line[i] <= '9')
+						contentLength = contentLength * 10 + (line[i] - '0');
+			} else if (startsWithIgnoreCase(line, "transfer-encoding:")) {
+				chunked = containsIgnoreCase(line, length, "chunked");
+			} else if (startsWithIgnoreCase(line, "connection:")) {
+				if (containsIgnoreCase(line, length, "close"))
+					keepAlive = false;
+				else if (containsIgnoreCase(line, length, "keep-alive"))
+					keepAlive = true;
+			}
+		}
+		
+		if (status == 204 || status == 304) {
+			// no body
+		} else if (chunked) {
+			for (;;) {
+				length = readLine(in, line, 0);
+				long size = 0;
+				for (int i = 0; i < length && line[i] != ';'; i++)
+					size = size * 16 + Character.digit(line[i], 16);
+				if (size <= 0)
+					break;
+				readBody(in, size, parser);
+				readLine(in, line, 0);
+			}
+			while (readLine(in, line, 0) > 0) {
+				// trailers are ignored
+			}
+		} else if (contentLength >= 0) {
+			readBody(in, contentLength, parser);
+		} else {
+			readBody(in, Long.MAX_VALUE, parser);
+			keepAlive = false;
+		}
+		
+		if (keepAlive)
+			release(url, connection);
+		else
+			connection.close();
+		return status;
+	}
+	
+	/**
+	 * Reads the given number of bytes of the body into the parser, or until the end of
+	 * the stream.
+	 * 
+	 * @param in
+	 *           input of the connection
+	 * @param count
+	 *           number of bytes to read, Long.MAX_VALUE to read until the end of the
+	 *           stream
+	 * @param parser
+	 *           parser that consumes the body
+	 * @throws IOException
+	 *            when the stream ends before the given number of bytes
+	 */
+	private static void readBody(InputStream in, long count, PushResponse.Parser parser)
+			throws IOException {
+		byte[] buffer = parser.buffer;
+		while (count > 0) {
+			int read = in.read(buffer, 0, (int) Math.min(count, buffer.length));
+			if (read < 0) {
+				if (count == Long.MAX_VALUE)
+					return;
+				throw new EOFException("response body is incomplete");
+			}
+			parser.update(buffer, 0, read);
+			if (count != Long.MAX_VALUE)
+				count -= read;
+		}
+	}
+	
+	/**
+	 * Reads a line ending with CRLF or LF into the buffer, without the line ending.
+	 * 
+	 * @param in
+	 *           input of the connection
+	 * @param line
+	 *           buffer for the line
+	 * @param pos
+	 *           number of bytes of the line already in the buffer
+	 * @return length of the line
+	 * @throws IOException
+	 *            when the stream ends or the line is too long
+	 */
+	private static int readLine(InputStream in, byte[] line, int pos) throws IOException {
+		int length = pos;
+		int dropped = 0;
+		for (;;) {
+			int b = in.read();
+			if (b < 0)
+				throw new EOFException("response is incomplete");
+			if (b == CRLF[1])
+				break;
+			if (length + dropped >= MAX_LINE)
+				throw new ProtocolException("line of the response is too long");
+			if (length < line.length)
+				line[length++] = (byte) b;
+			else
+				dropped++;
+		}
+		if (length > 0 && line[length - 1] == CRLF[0])
+			length--;
+		return length + dropped;
+	}
+	
+	/**
+	 * Checks if the line starts with the given ASCII text.
+	 * 
+	 * @param line
+	 *           the line
+	 * @param prefix
+	 *           the text
+	 * @return true if the line starts with the text
+	 */
+	private static boolean startsWith(byte[] line, String prefix) {
+		for (int i = 0; i < prefix.length(); i++)
+			if (line[i] != prefix.charAt(i))
+				return false;
+		return true;
+	}
+	
+	/**
+	 * Checks if the line starts with the given lower case ASCII text, ignoring case.
+	 * 
+	 * @param line
+	 *           the line
+	 * @param prefix
+	 *           the text, in lower case
+	 * @return true if the line starts with the text
+	 */
+	private static boolean startsWithIgnoreCase(byte[] line, String prefix) {
+		for (int i = 0; i < prefix.length(); i++)
+			if (Character.toLowerCase((char) line[i]) != prefix.charAt(i))
+				return false;
+		return true;
+	}
+	
+	/**
+	 * Checks if the line contains the given lower case ASCII text, ignoring case.
+	 * 
+	 * @param line
+	 *           the line
+	 * @param length
+	 *           length of the line
+	 * @param text
+	 *           the text, in lower case
+	 * @return true if the line contains the text
+	 */
+	private static boolean containsIgnoreCase(byte[] line, int length, String text) {
+		outer: for (int start = 0; start + text.length() <= length; start++) {
+			for (int i = 0; i < text.length(); i++)
+				if (Character.toLowerCase((char) line[start + i]) != text.charAt(i))
+					continue outer;
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Closes the connections that are idle for longer than the idle timeout. Such
+	 * connections are never reused anyway, but calling this method from time to time
+	 * frees their sockets earlier.
+	 */
+	public void evictIdle() {
+		long now = System.nanoTime();
+		for (ArrayDeque<Connection> connections : idle.values()) {
+			synchronized (connections) {
+				for (Iterator<Connection> i = connections.iterator(); i.hasNext();) {
+					Connection connection = i.next();
+					if (now - connection.idleSince >= idleTimeout) {
+						i.remove();
+						connection.close();
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Closes all idle connections.
+	 */
+	public void close() {
+		for (ArrayDeque<Connection> connections : idle.values()) {
+			synchronized (connections) {
+				for (Connection connection : connections)
+					connection.close();
+				connections.clear();
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of idle connections.
+	 * 
+	 * @return number of idle connections of all phones
+	 */
+	public int getIdleCount() {
+		int count = 0;
+		for (ArrayDeque<Connection> connections : idle.values())
+			synchronized (connections) {
+				count += connections.size();
+			}
+		return count;
+	}
+	
+}
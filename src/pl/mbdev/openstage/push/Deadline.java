@@ -0,0 +1,113 @@
+package pl.mbdev.openstage.push;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moment in time by which a push, or a whole broadcast, must be finished. Deadline is
+ * measured with {@link System#nanoTime()}, so it is not affected by changes of the system
+ * clock.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public final class Deadline {
+	
+	/**
+	 * Deadline that never expires.
+	 */
+	public static final Deadline NONE = new Deadline(0, false);
+	
+	/**
+	 * Value of {@link System#nanoTime()} at which the deadline expires.
+	 */
+	private final long expiresAt;
+	
+	/**
+	 * False for the deadline that never expires.
+	 */
+	private final boolean bounded;
+	
+	/**
+	 * Creates new deadline.
+	 * 
+	 * @param expiresAt
+	 *           value of {@link System#nanoTime()} at which the deadline expires
+	 * @param bounded
+	 *           false for the deadline that never expires
+	 */
+	private Deadline(long expiresAt, boolean bounded) {
+		this.expiresAt = expiresAt;
+		this.bounded = bounded;
+	}
+	
+	/**
+	 * Creates new deadline that expires after the given time from now.
+	 * 
+	 * @param timeout
+	 *           time after which the deadline expires
+	 * @param unit
+	 *           unit of the timeout
+	 * @return new deadline
+	 */
+	public static Deadline after(long timeout, TimeUnit unit) {
+		return new Deadline(System.nanoTime() + unit.toNanos(timeout), true);
+	}
+	
+	/**
+	 * Checks if this deadline has already passed.
+	 * 
+	 * @return true if there is no time left
+	 */
+	public boolean isExpired() {
+		return bounded && expiresAt - System.nanoTime() <= 0;
+	}
+	
+	/**
+	 * Returns the time left until this deadline.
+	 * 
+	 * @param unit
+	 *           unit of the returned value
+	 * @return time left, zero if the deadline has passed, or Long.MAX_VALUE if the
+	 *         deadline never expires
+	 */
+	public long remaining(TimeUnit unit) {
+		if (!bounded)
+			return Long.MAX_VALUE;
+		long left = expiresAt - System.nanoTime();
+		return left <= 0 ? 0 : unit.convert(left, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Shortens the given timeout so that it does not go beyond this deadline.
+	 * 
+	 * @param timeout
+	 *           timeout in milliseconds, zero means no limit
+	 * @return the given timeout, or the time left until this deadline if it is shorter,
+	 *         but at least 1 millisecond
+	 */
+	public int limit(int timeout) {
+		if (!bounded)
+			return timeout;
+		long left = remaining(TimeUnit.MILLISECONDS);
+		if (timeout > 0 && timeout <= left)
+			return timeout;
+		return (int) Math.max(1, Math.min(left, Integer.MAX_VALUE));
+	}
+	
+}
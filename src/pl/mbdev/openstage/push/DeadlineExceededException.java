@@ -0,0 +1,45 @@
+package pl.mbdev.openstage.push;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Thrown when a push is not sent, or not repeated, because its {@link Deadline} has
+ * passed.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public class DeadlineExceededException extends InterruptedIOException {
+	
+	/**
+	 * Serial version UID.
+	 */
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * Creates new exception for the given phone.
+	 * 
+	 * @param phoneIP
+	 *           address of the phone
+	 */
+	public DeadlineExceededException(String phoneIP) {
+		super("deadline of the push to the phone " + phoneIP + " has passed");
+	}
+	
+}
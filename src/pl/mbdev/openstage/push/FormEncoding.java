@@ -0,0 +1,284 @@
+package pl.mbdev.openstage.push;
+
+import java.nio.charset.Charset;
+
+/**
+ * Encoder and decoder of the "application/x-www-form-urlencoded" format, working directly
+ * on bytes. Characters are always encoded in UTF-8, which is the encoding expected by the
+ * OpenStage device.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public final class FormEncoding {
+	
+	/**
+	 * Character set used for both encoding and decoding.
+	 */
+	public static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	/**
+	 * Upper-case hexadecimal digits.
+	 */
+	private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
+			'A', 'B', 'C', 'D', 'E', 'F' };
+	
+	/**
+	 * Utility class, not meant to be instantiated.
+	 */
+	private FormEncoding() {
+	}
+	
+	/**
+	 * Checks if the given character can be written without any encoding.
+	 * 
+	 * @param c
+	 *           any character
+	 * @return true if the character does not need to be encoded
+	 */
+	private static boolean isUnreserved(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+				|| c == '-' || c == '.' || c == '_' || c == '*';
+	}
+	
+	/**
+	 * Computes the number of bytes that the encoded form of the given text will take.
+	 * 
+	 * @param s
+	 *           text to be encoded
+	 * @return exact length of the encoded text, in bytes
+	 */
+	public static int encodedLength(CharSequence s) {
+		int length = 0;
+		int size = s.length();
+		for (int i = 0; i < size; i++) {
+			char c = s.charAt(i);
+			if (isUnreserved(c) || c == ' ')
+				length += 1;
+			else if (c < 0x80)
+				length += 3;
+			else if (c < 0x800)
+				length += 6;
+			else if (Character.isHighSurrogate(c) && i + 1 < size
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 12;
+				i++;
+			} else if (Character.isSurrogate(c))
+				length += 3;
+			else
+				length += 9;
+		}
+		return length;
+	}
+	
+	/**
+	 * Writes a single byte in its percent-encoded form.
+	 * 
+	 * @param b
+	 *           byte to be encoded
+	 * @param dst
+	 *           destination buffer
+	 * @param pos
+	 *           position in the destination buffer
+	 * @return position right after the written bytes
+	 */
+	private static int percent(int b, byte[] dst, int pos) {
+		dst[pos++] = '%';
+		dst[pos++] = HEX[(b >> 4) & 0x0F];
+		dst[pos++] = HEX[b & 0x0F];
+		return pos;
+	}
+	
+	/**
+	 * Encodes the given text into the destination buffer, which must have at least
+	 * {@link #encodedLength(CharSequence)} bytes available from the given position.
+	 * Malformed surrogate characters are replaced with '?'.
+	 * 
+	 * @param s
+	 *           text to be encoded
+	 * @param dst
+	 *           destination buffer
+	 * @param pos
+	 *           position in the destination buffer at which the writing starts
+	 * @return position right after the written bytes
+	 */
+	public static int encode(CharSequence s, byte[] dst, int pos) {
+		int size = s.length();
+		for (int i = 0; i < size; i++) {
+			char c = s.charAt(i);
+			if (isUnreserved(c))
+				dst[pos++] = (byte) c;
+			else if (c == ' ')
+				dst[pos++] = '+';
+			else if (c < 0x80)
+				pos = percent(c, dst, pos);
+			else if (c < 0x800) {
+				pos = percent(0xC0 | (c >> 6), dst, pos);
+				pos = percent(0x80 | (c & 0x3F), dst, pos);
+			} else if (Character.isHighSurrogate(c) && i + 1 < size
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				pos = percent(0xF0 | (cp >> 18), dst, pos);
+				pos = percent(0x80 | ((cp >> 12) & 0x3F), dst, pos);
+				pos = percent(0x80 | ((cp >> 6) & 0x3F), dst, pos);
+				pos = percent(0x80 | (cp & 0x3F), dst, pos);
+			} else if (Character.isSurrogate(c))
+				pos = percent('?', dst, pos);
+			else {
+				pos = percent(0xE0 | (c >> 12), dst, pos);
+				pos = percent(0x80 | ((c >> 6) & 0x3F), dst, pos);
+				pos = percent(0x80 | (c & 0x3F), dst, pos);
+			}
+		}
+		return pos;
+	}
+	
+	/**
+	 * Converts a single hexadecimal digit to its value.
+	 * 
+	 * @param b
+	 *           ASCII code of the digit
+	 * @return value of the digit
+	 * @throws IllegalArgumentException
+	 *            when the given byte is not a hexadecimal digit
+	 */
+	private static int hexValue(byte b) {
+		if (b >= '0' && b <= '9')
+			return b - '0';
+		if (b >= 'A' && b <= 'F')
+			return b - 'A' + 10;
+		if (b >= 'a' && b <= 'f')
+			return b - 'a' + 10;
+		throw new IllegalArgumentException("illegal hex digit in encoded text: " + (char) b);
+	}
+	
+	/**
+	 * Decodes the given fragment of the encoded text into the destination buffer, which
+	 * must have at least len bytes available from the given position. The decoded data is
+	 * UTF-8 encoded text.
+	 * 
+	 * @param src
+	 *           buffer with encoded text
+	 * @param off
+	 *           offset of the fragment
+	 * @param len
+	 *           length of the fragment
+	 * @param dst
+	 *           destination buffer, may be the same as the source buffer if the
+	 *           positions are the same
+	 * @param pos
+	 *           position in the destination buffer at which the writing starts
+	 * @return position right after the written bytes
+	 * @throws IllegalArgumentException
+	 *            when the fragment contains an incomplete or illegal escape sequence
+	 */
+	public static int decode(byte[] src, int off, int len, byte[] dst, int pos) {
+		int end = off + len;
+		for (int i = off; i < end; i++) {
+			byte b = src[i];
+			if (b == '+')
+				dst[pos++] = ' ';
+			else if (b == '%') {
+				if (i + 2 >= end)
+					throw new IllegalArgumentException("incomplete escape sequence at the end "
+							+ "of encoded text");
+				dst[pos++] = (byte) ((hexValue(src[i + 1]) << 4) | hexValue(src[i + 2]));
+				i += 2;
+			} else
+				dst[pos++] = b;
+		}
+		return pos;
+	}
+	
+	/**
+	 * Checks if the given fragment of the encoded text, once decoded, is equal to the
+	 * given bytes. Nothing is decoded into a separate buffer, so this is cheaper than
+	 * decoding the fragment and comparing the result.
+	 * 
+	 * @param src
+	 *           buffer with encoded text
+	 * @param off
+	 *           offset of the fragment
+	 * @param len
+	 *           length of the fragment
+	 * @param decoded
+	 *           UTF-8 encoded text to which the fragment is compared
+	 * @return true if the decoded fragment is equal to the given bytes, false otherwise,
+	 *         also when the fragment contains an illegal escape sequence
+	 */
+	public static boolean matches(byte[] src, int off, int len, byte[] decoded) {
+		if (len < decoded.length)
+			return false;
+		int end = off + len;
+		int pos = 0;
+		for (int i = off; i < end; i++, pos++) {
+			if (pos == decoded.length)
+				return false;
+			byte b = src[i];
+			if (b == '+')
+				b = ' ';
+			else if (b == '%') {
+				if (i + 2 >= end || !isHexDigit(src[i + 1]) || !isHexDigit(src[i + 2]))
+					return false;
+				b = (byte) ((hexValue(src[i + 1]) << 4) | hexValue(src[i + 2]));
+				i += 2;
+			}
+			if (b != decoded[pos])
+				return false;
+		}
+		return pos == decoded.length;
+	}
+	
+	/**
+	 * Checks if the given byte is a hexadecimal digit.
+	 * 
+	 * @param b
+	 *           ASCII code of the character
+	 * @return true if the character is a hexadecimal digit
+	 */
+	private static boolean isHexDigit(byte b) {
+		return (b >= '0' && b <= '9') || (b >= 'A' && b <= 'F') || (b >= 'a' && b <= 'f');
+	}
+	
+	/**
+	 * Decodes the given fragment of the encoded text.
+	 * 
+	 * @param src
+	 *           buffer with encoded text
+	 * @param off
+	 *           offset of the fragment
+	 * @param len
+	 *           length of the fragment
+	 * @return decoded text
+	 * @throws IllegalArgumentException
+	 *            when the fragment contains an incomplete or illegal escape sequence
+	 */
+	public static String decode(byte[] src, int off, int len) {
+		int i = off;
+		int end = off + len;
+		while (i < end && src[i] != '+' && src[i] != '%' && src[i] >= 0)
+			i++;
+		if (i == end)
+			return new String(src, off, len, UTF8);
+		byte[] decoded = new byte[len];
+		int decodedLength = decode(src, off, len, decoded, 0);
+		return new String(decoded, 0, decodedLength, UTF8);
+	}
+	
+}
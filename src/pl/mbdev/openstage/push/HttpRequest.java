@@ -35,11 +35,32 @@ import java.net.URL;
  */
 public abstract class HttpRequest {
 	
+	/**
+	 * Default time limit for establishing the connection, in milliseconds.
+	 */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+	
+	/**
+	 * Default time limit for waiting for data from the remote server, in milliseconds.
+	 */
+	public static final int DEFAULT_READ_TIMEOUT = 10000;
+	
 	/**
 	 * Parameters parameters of this request.
 	 */
 	private final RequestParameters parameters;
 	
+	/**
+	 * Time limit for establishing the connection, in milliseconds, zero means no limit.
+	 */
+	private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	
+	/**
+	 * Time limit for waiting for data from the remote server, in milliseconds, zero means
+	 * no limit.
+	 */
+	private volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+	
 	/**
 	 * HTTP connection.
 	 */
@@ -90,15 +111,66 @@ public abstract class HttpRequest {
 	}
 	
 	/**
+	 * Returns the time limit for establishing the connection.
+	 * 
+	 * @return time limit in milliseconds, zero means no limit
+	 */
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+	
+	/**
+	 * Sets the time limit for establishing the connection.
+	 * 
+	 * @param connectTimeout
+	 *           time limit in milliseconds, zero means no limit
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		if (connectTimeout < 0)
+			throw new IllegalArgumentException("timeout cannot be negative");
+		this.connectTimeout = connectTimeout;
+	}
+	
+	/**
+	 * Returns the time limit for waiting for data from the remote server.
+	 * 
+	 * @return time limit in milliseconds, zero means no limit
+	 */
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+	
+	/**
+	 * Sets the time limit for waiting for data from the remote server.
+	 * 
+	 * @param readTimeout
+	 *           time limit in milliseconds, zero means no limit
+	 */
+	public void setReadTimeout(int readTimeout) {
+		if (readTimeout < 0)
+			throw new IllegalArgumentException("timeout cannot be negative");
+		this.readTimeout = readTimeout;
+	}
+	
+	/**
+	 * Creates new connection to the given address, which is not stored in this request,
+	 * so many such connections may be used at the same time by different threads.
+	 * 
 	 * @param targetAddress
 	 *           target address
 	 * @param method
 	 *           HTTP method: GET, POST, ...
+	 * @param connectTimeout
+	 *           time limit for establishing the connection, in milliseconds
+	 * @param readTimeout
+	 *           time limit for waiting for data, in milliseconds
+	 * @return new, not yet connected connection
 	 * @throws IOException
-	 *            when connection cannot be established
+	 *            when connection cannot be created
 	 */
-	protected void connectTo(URL targetAddress, String method) throws IOException {
-		connection = (HttpURLConnection) targetAddress.openConnection();
+	protected HttpURLConnection openConnection(URL targetAddress, String method,
+			int connectTimeout, int readTimeout) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) targetAddress.openConnection();
 		
 		connection.setDoOutput(true);
 		connection.setDoInput(true);
@@ -106,6 +178,21 @@ public abstract class HttpRequest {
 		// urlc.setAllowUserInteraction(false);
 		connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
 		connection.setRequestMethod(method);
+		connection.setConnectTimeout(connectTimeout);
+		connection.setReadTimeout(readTimeout);
+		return connection;
+	}
+	
+	/**
+	 * @param targetAddress
+	 *           target address
+	 * @param method
+	 *           HTTP method: GET, POST, ...
+	 * @throws IOException
+	 *            when connection cannot be established
+	 */
+	protected void connectTo(URL targetAddress, String method) throws IOException {
+		connection = openConnection(targetAddress, method, connectTimeout, readTimeout);
 	}
 	
 	/**
@@ -126,6 +213,24 @@ public abstract class HttpRequest {
 		return writer;
 	}
 	
+	/**
+	 * Starts output of a body whose exact length is known in advance, so that it can be
+	 * sent without buffering and without chunked transfer encoding.
+	 * 
+	 * @param contentLength
+	 *           exact length of the body, in bytes
+	 * @return raw output stream of this HTTP request
+	 * @throws IOException
+	 *            when output streams cannot be opened
+	 */
+	protected OutputStream startOutput(int contentLength) throws IOException {
+		if (out != null)
+			throw new RuntimeException("output already started");
+		connection.setFixedLengthStreamingMode(contentLength);
+		out = connection.getOutputStream();
+		return out;
+	}
+	
 	/**
 	 * @throws IOException
 	 *            when output streams cannot be closed
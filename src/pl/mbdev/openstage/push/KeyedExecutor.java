@@ -0,0 +1,271 @@
+package pl.mbdev.openstage.push;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs tasks with the same key one after another, in the order in which they were given,
+ * while tasks with different keys run in parallel on the underlying executor. Pushes keyed
+ * by the phone address therefore reach each phone in order, for example an INDICATE push
+ * followed by a FORCE push, without slowing down pushes to other phones.<br />
+ * <br />
+ * No lock is shared between keys: each key has its own queue, guarded by its own lock,
+ * which exists only while it has pending tasks. After each task, the rest of the queue is
+ * given back to the underlying executor, so a busy key does not hold a thread for long.
+ * If the underlying executor rejects a queue, the tasks of other callers that wait in it
+ * are dropped and reported to {@link #dropped(Object, Runnable)}.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ * @param <K>
+ *           type of the keys
+ */
+public class KeyedExecutor<K> {
+	
+	/**
+	 * Tasks of a single key.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private class SerialQueue implements Runnable {
+		
+		/**
+		 * Key of the tasks.
+		 */
+		private final K key;
+		
+		/**
+		 * Tasks waiting to be run, the one being run first. Guarded by this queue.
+		 */
+		private final ArrayDeque<Runnable> tasks;
+		
+		/**
+		 * True when this queue is retired and must not be used any more. Guarded by this
+		 * queue.
+		 */
+		private boolean retired = false;
+		
+		/**
+		 * Creates new, empty queue.
+		 * 
+		 * @param key
+		 *           key of the tasks
+		 */
+		SerialQueue(K key) {
+			this.key = key;
+			this.tasks = new ArrayDeque<Runnable>(2);
+		}
+		
+		/**
+		 * Adds a task to this queue.
+		 * 
+		 * @param task
+		 *           task to be run
+		 * @return number of the pending tasks before this one was added, or -1 if this queue
+		 *         is retired and the task was not added
+		 */
+		synchronized int add(Runnable task) {
+			if (retired)
+				return -1;
+			tasks.add(task);
+			return tasks.size() - 1;
+		}
+		
+		/**
+		 * Returns the task to run next, which stays in this queue until it is finished.
+		 * 
+		 * @return the first task
+		 */
+		synchronized Runnable next() {
+			return tasks.peek();
+		}
+		
+		/**
+		 * Removes the finished task, and retires this queue if it was the last one.
+		 * 
+		 * @return true if there are more tasks to run
+		 */
+		synchronized boolean finished() {
+			tasks.poll();
+			if (!tasks.isEmpty())
+				return true;
+			retire();
+			return false;
+		}
+		
+		/**
+		 * Removes all tasks and retires this queue, after the executor rejected it.
+		 * 
+		 * @return the removed tasks, in order
+		 */
+		synchronized ArrayList<Runnable> reject() {
+			ArrayList<Runnable> removed = new ArrayList<Runnable>(tasks);
+			tasks.clear();
+			retire();
+			return removed;
+		}
+		
+		/**
+		 * Retires this queue. Must be called with the lock of this queue held.
+		 */
+		private void retire() {
+			retired = true;
+			queues.remove(key, this);
+		}
+		
+		@Override
+		public void run() {
+			try {
+				next().run();
+			} finally {
+				if (finished()) {
+					try {
+						executor.execute(this);
+					} catch (RejectedExecutionException e) {
+						drop(key, reject(), null);
+					}
+				}
+			}
+		}
+		
+	}
+	
+	/**
+	 * Executor that runs the tasks.
+	 */
+	private final Executor executor;
+	
+	/**
+	 * Queues of the keys that have pending tasks.
+	 */
+	private final ConcurrentHashMap<K, SerialQueue> queues;
+	
+	/**
+	 * Number of tasks dropped because the executor rejected their queue.
+	 */
+	private final LongAdder droppedTasks = new LongAdder();
+	
+	/**
+	 * Creates new keyed executor.
+	 * 
+	 * @param executor
+	 *           executor that runs the tasks, it should not reject any tasks
+	 */
+	public KeyedExecutor(Executor executor) {
+		if (executor == null)
+			throw new NullPointerException("executor cannot be null");
+		this.executor = executor;
+		this.queues = new ConcurrentHashMap<K, SerialQueue>();
+	}
+	
+	/**
+	 * Called for every task that was dropped without being run, because the underlying
+	 * executor rejected the queue of its key after the task was added. The task given to
+	 * {@link #execute(Object, Runnable)} which is rejected is not reported, the caller
+	 * gets the exception instead. The default implementation does nothing, the dropped
+	 * tasks are only counted, see {@link #getDroppedTasks()}.
+	 * 
+	 * @param key
+	 *           key of the task
+	 * @param task
+	 *           task that was not run
+	 */
+	protected void dropped(K key, Runnable task) {
+	}
+	
+	/**
+	 * Counts and reports the dropped tasks.
+	 * 
+	 * @param key
+	 *           key of the tasks
+	 * @param tasks
+	 *           tasks removed from a rejected queue
+	 * @param rejected
+	 *           task whose caller gets the exception, not reported, may be null
+	 */
+	private void drop(K key, ArrayList<Runnable> tasks, Runnable rejected) {
+		for (Runnable task : tasks) {
+			if (task == rejected)
+				continue;
+			droppedTasks.increment();
+			dropped(key, task);
+		}
+	}
+	
+	/**
+	 * Runs the given task after all tasks with the same key that were given before it.
+	 * 
+	 * @param key
+	 *           key of the task, for example the address of a phone
+	 * @param task
+	 *           task to be run
+	 * @throws RejectedExecutionException
+	 *            when the underlying executor rejected the task, tasks with the same key
+	 *            given meanwhile by other callers are then dropped
+	 */
+	public void execute(K key, Runnable task) {
+		if (task == null)
+			throw new NullPointerException("task cannot be null");
+		for (;;) {
+			SerialQueue queue = queues.get(key);
+			if (queue == null) {
+				SerialQueue created = new SerialQueue(key);
+				queue = queues.putIfAbsent(key, created);
+				if (queue == null)
+					queue = created;
+			}
+			int before = queue.add(task);
+			if (before < 0)
+				continue;
+			if (before == 0) {
+				try {
+					executor.execute(queue);
+				} catch (RejectedExecutionException e) {
+					drop(key, queue.reject(), task);
+					throw e;
+				}
+			}
+			return;
+		}
+	}
+	
+	/**
+	 * Returns the number of keys that have pending tasks.
+	 * 
+	 * @return number of keys
+	 */
+	public int getActiveKeys() {
+		return queues.size();
+	}
+	
+	/**
+	 * Returns the number of tasks that were dropped without being run, because the
+	 * executor rejected their queue after they were added.
+	 * 
+	 * @return number of dropped tasks
+	 */
+	public long getDroppedTasks() {
+		return droppedTasks.sum();
+	}
+	
+}
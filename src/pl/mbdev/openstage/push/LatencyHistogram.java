@@ -0,0 +1,197 @@
+package pl.mbdev.openstage.push;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies that can be updated by many threads at the same time without
+ * locking. Values are grouped into buckets whose width grows with the value, 8 buckets per
+ * each power of two, so percentiles are accurate to about 12% regardless of the range of
+ * the recorded values. Counts are spread over several stripes, chosen by the recording
+ * thread, so that threads recording at the same time rarely update the same memory.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public class LatencyHistogram {
+	
+	/**
+	 * Number of bits used to select a bucket within a power of two.
+	 */
+	private static final int SUB_BITS = 3;
+	
+	/**
+	 * Number of buckets within a power of two.
+	 */
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	
+	/**
+	 * Total number of buckets, enough for any non-negative long value.
+	 */
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+	
+	/**
+	 * Number of stripes, a power of two not smaller than the number of processors, up to
+	 * 16.
+	 */
+	private static final int STRIPES = Math.min(16, Integer.highestOneBit(Math.max(1,
+			Runtime.getRuntime().availableProcessors() * 2 - 1)));
+	
+	/**
+	 * Number of values in each bucket, for each stripe.
+	 */
+	private final AtomicLongArray[] counts;
+	
+	/**
+	 * Number of all recorded values.
+	 */
+	private final LongAdder count;
+	
+	/**
+	 * Sum of all recorded values.
+	 */
+	private final LongAdder sum;
+	
+	/**
+	 * Largest recorded value.
+	 */
+	private final AtomicLong max;
+	
+	/**
+	 * Creates new, empty histogram.
+	 */
+	public LatencyHistogram() {
+		counts = new AtomicLongArray[STRIPES];
+		for (int i = 0; i < STRIPES; i++)
+			counts[i] = new AtomicLongArray(BUCKETS);
+		count = new LongAdder();
+		sum = new LongAdder();
+		max = new AtomicLong();
+	}
+	
+	/**
+	 * Finds the bucket to which the given value belongs.
+	 * 
+	 * @param value
+	 *           non-negative value
+	 * @return index of the bucket
+	 */
+	static int bucketOf(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+	
+	/**
+	 * Returns the largest value that belongs to the given bucket.
+	 * 
+	 * @param bucket
+	 *           index of the bucket
+	 * @return largest value in the bucket
+	 */
+	static long highestValueOf(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		long lowest = (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+		return lowest + (1L << (exponent - SUB_BITS)) - 1;
+	}
+	
+	/**
+	 * Records a single value. Negative values are recorded as zero.
+	 * 
+	 * @param value
+	 *           latency, in any unit, as long as it is the same for all values
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+		counts[stripe].incrementAndGet(bucketOf(value));
+		count.increment();
+		sum.add(value);
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value))
+			current = max.get();
+	}
+	
+	/**
+	 * Returns number of recorded values.
+	 * 
+	 * @return number of recorded values
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+	
+	/**
+	 * Returns the average of the recorded values.
+	 * 
+	 * @return average value, or 0 if nothing was recorded
+	 */
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0.0 : (double) sum.sum() / n;
+	}
+	
+	/**
+	 * Returns the largest recorded value.
+	 * 
+	 * @return largest value, or 0 if nothing was recorded
+	 */
+	public long getMax() {
+		return max.get();
+	}
+	
+	/**
+	 * Returns the value below which the given fraction of the recorded values falls.
+	 * 
+	 * @param fraction
+	 *           fraction of the values, from 0 to 1, for example 0.99 for the 99th
+	 *           percentile
+	 * @return approximate percentile, never larger than the largest recorded value, or 0
+	 *         if nothing was recorded
+	 */
+	public long getPercentile(double fraction) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			for (AtomicLongArray stripe : counts)
+				snapshot[i] += stripe.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0)
+			return 0;
+		long rank = (long) Math.ceil(Math.max(0.0, Math.min(1.0, fraction)) * total);
+		if (rank < 1)
+			rank = 1;
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(highestValueOf(i), max.get());
+		}
+		return max.get();
+	}
+	
+}
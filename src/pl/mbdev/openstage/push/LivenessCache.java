@@ -0,0 +1,263 @@
+package pl.mbdev.openstage.push;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.NoRouteToHostException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers which phones were recently reachable and which were not, so that pushes to
+ * phones that are switched off or disconnected do not hold up the rest of a
+ * {@link Broadcast}. The cache is fed with the outcomes of pushes and, optionally, with
+ * probes that only open a TCP connection to the push port of the phone. Every entry
+ * expires after its time to live, and the phone is then unknown again.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public class LivenessCache {
+	
+	/**
+	 * Default time after which the probe of a phone is abandoned, in milliseconds.
+	 */
+	public static final int DEFAULT_PROBE_TIMEOUT = 1000;
+	
+	/**
+	 * Number of updates between two removals of the expired entries.
+	 */
+	private static final int PURGE_INTERVAL = 1024;
+	
+	/**
+	 * State of a single phone.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private static class Entry {
+		
+		/**
+		 * True if the phone was reachable.
+		 */
+		final boolean alive;
+		
+		/**
+		 * Time at which this entry expires, as given by {@link System#nanoTime()}.
+		 */
+		final long expiresAt;
+		
+		/**
+		 * Creates new entry.
+		 * 
+		 * @param alive
+		 *           true if the phone was reachable
+		 * @param expiresAt
+		 *           time at which the entry expires
+		 */
+		Entry(boolean alive, long expiresAt) {
+			this.alive = alive;
+			this.expiresAt = expiresAt;
+		}
+		
+	}
+	
+	/**
+	 * Time for which a reachable phone is remembered, in nanoseconds.
+	 */
+	private final long aliveTtl;
+	
+	/**
+	 * Time for which an unreachable phone is remembered, in nanoseconds.
+	 */
+	private final long deadTtl;
+	
+	/**
+	 * Known phones, by their addresses.
+	 */
+	private final ConcurrentHashMap<String, Entry> entries;
+	
+	/**
+	 * Counts the updates, to remove the expired entries from time to time.
+	 */
+	private final AtomicInteger updates = new AtomicInteger();
+	
+	/**
+	 * Time after which the probe of a phone is abandoned, in milliseconds.
+	 */
+	private volatile int probeTimeout = DEFAULT_PROBE_TIMEOUT;
+	
+	/**
+	 * Creates new, empty cache.
+	 * 
+	 * @param aliveTtl
+	 *           time for which a reachable phone is remembered
+	 * @param deadTtl
+	 *           time for which an unreachable phone is remembered
+	 * @param unit
+	 *           unit of the times to live
+	 */
+	public LivenessCache(long aliveTtl, long deadTtl, TimeUnit unit) {
+		if (aliveTtl < 0 || deadTtl < 0)
+			throw new IllegalArgumentException("time to live cannot be negative");
+		this.aliveTtl = unit.toNanos(aliveTtl);
+		this.deadTtl = unit.toNanos(deadTtl);
+		this.entries = new ConcurrentHashMap<String, Entry>();
+	}
+	
+	/**
+	 * Returns time after which the probe of a phone is abandoned.
+	 * 
+	 * @return probe timeout in milliseconds
+	 */
+	public int getProbeTimeout() {
+		return probeTimeout;
+	}
+	
+	/**
+	 * Sets time after which the probe of a phone is abandoned.
+	 * 
+	 * @param probeTimeout
+	 *           probe timeout in milliseconds, greater than 0
+	 */
+	public void setProbeTimeout(int probeTimeout) {
+		if (probeTimeout <= 0)
+			throw new IllegalArgumentException("probe timeout must be positive");
+		this.probeTimeout = probeTimeout;
+	}
+	
+	/**
+	 * Checks if the given error means that the phone could not be reached at all, as
+	 * opposed to errors that occurred after the connection was made.
+	 * 
+	 * @param e
+	 *           error of a push or a probe
+	 * @return true if the connection to the phone could not be made
+	 */
+	public static boolean isUnreachable(IOException e) {
+		if (e instanceof ConnectException || e instanceof NoRouteToHostException)
+			return true;
+		// connect and read timeouts are the same exception, only the message differs
+		return e instanceof SocketTimeoutException && e.getMessage() != null
+				&& e.getMessage().toLowerCase().contains("connect");
+	}
+	
+	/**
+	 * Records that the phone was reachable or not.
+	 * 
+	 * @param phoneIP
+	 *           address of the phone
+	 * @param alive
+	 *           true if the phone was reachable
+	 */
+	public void record(String phoneIP, boolean alive) {
+		long ttl = alive ? aliveTtl : deadTtl;
+		entries.put(phoneIP, new Entry(alive, System.nanoTime() + ttl));
+		if (updates.incrementAndGet() % PURGE_INTERVAL == 0)
+			purge();
+	}
+	
+	/**
+	 * Returns the entry of the given phone, removing it if it has expired.
+	 * 
+	 * @param phoneIP
+	 *           address of the phone
+	 * @return entry that has not expired, or null
+	 */
+	private Entry get(String phoneIP) {
+		Entry entry = entries.get(phoneIP);
+		if (entry != null && System.nanoTime() - entry.expiresAt >= 0) {
+			entries.remove(phoneIP, entry);
+			return null;
+		}
+		return entry;
+	}
+	
+	/**
+	 * Checks if the phone was recently unreachable.
+	 * 
+	 * @param phoneIP
+	 *           address of the phone
+	 * @return true if the phone is known to be unreachable, false if it is known to be
+	 *         reachable or it is not known
+	 */
+	public boolean isKnownDead(String phoneIP) {
+		Entry entry = get(phoneIP);
+		return entry != null && !entry.alive;
+	}
+	
+	/**
+	 * Checks if the phone was recently reachable.
+	 * 
+	 * @param phoneIP
+	 *           address of the phone
+	 * @return true if the phone is known to be reachable
+	 */
+	public boolean isKnownAlive(String phoneIP) {
+		Entry entry = get(phoneIP);
+		return entry != null && entry.alive;
+	}
+	
+	/**
+	 * Checks if the phone accepts connections at its push port, and records the result.
+	 * Nothing is sent to the phone.
+	 * 
+	 * @param phoneIP
+	 *           address of the phone
+	 * @throws IOException
+	 *            when the phone is unreachable, or another error occurred
+	 */
+	public void probe(String phoneIP) throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(phoneIP, Integer.parseInt(Push.PHONE_PORT)),
+					probeTimeout);
+			record(phoneIP, true);
+		} catch (IOException e) {
+			if (isUnreachable(e))
+				record(phoneIP, false);
+			throw e;
+		} finally {
+			socket.close();
+		}
+	}
+	
+	/**
+	 * Removes all expired entries.
+	 */
+	public void purge() {
+		long now = System.nanoTime();
+		for (Iterator<Entry> i = entries.values().iterator(); i.hasNext();)
+			if (now - i.next().expiresAt >= 0)
+				i.remove();
+	}
+	
+	/**
+	 * Returns the number of entries, expired entries that were not removed yet included.
+	 * 
+	 * @return number of entries
+	 */
+	public int size() {
+		return entries.size();
+	}
+	
+}
@@ -0,0 +1,206 @@
+package pl.mbdev.openstage.push;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Phones known to the application, each with an IPv4 address and a description of any
+ * type, for example its location, model or the user it belongs to. Pushes can be targeted
+ * at the phones whose descriptions match a condition, see {@link #select(Filter)}.
+ * Addresses are stored as integers, in the order in which the phones were added.<br />
+ * <br />
+ * The inventory is not synchronized; it should not be modified while it is being read.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @param <P>
+ *           type of the description of a phone
+ * @author Mateusz Bysiek
+ */
+public class PhoneInventory<P> {
+	
+	/**
+	 * Decides which phones of the inventory are selected.
+	 * 
+	 * @param <P>
+	 *           type of the description of a phone
+	 * @author Mateusz Bysiek
+	 */
+	public interface Filter<P> {
+		
+		/**
+		 * Checks if the phone should be selected.
+		 * 
+		 * @param phone
+		 *           description of the phone
+		 * @return true if the phone is selected
+		 */
+		boolean accept(P phone);
+		
+	}
+	
+	/**
+	 * Addresses of the phones, as integers.
+	 */
+	private int[] addresses;
+	
+	/**
+	 * Descriptions of the phones, at the same indices as their addresses.
+	 */
+	private Object[] phones;
+	
+	/**
+	 * Number of phones.
+	 */
+	private int size = 0;
+	
+	/**
+	 * Creates new, empty inventory.
+	 */
+	public PhoneInventory() {
+		this.addresses = new int[16];
+		this.phones = new Object[16];
+	}
+	
+	/**
+	 * Adds a phone to the inventory.
+	 * 
+	 * @param phoneIP
+	 *           IPv4 address of the phone
+	 * @param phone
+	 *           description of the phone
+	 * @throws IllegalArgumentException
+	 *            when the address is not a valid IPv4 address
+	 */
+	public void add(String phoneIP, P phone) {
+		add(AddressSet.parse(phoneIP), phone);
+	}
+	
+	/**
+	 * Adds a phone to the inventory.
+	 * 
+	 * @param address
+	 *           IPv4 address of the phone, as an integer
+	 * @param phone
+	 *           description of the phone
+	 */
+	public void add(int address, P phone) {
+		if (size == addresses.length) {
+			addresses = Arrays.copyOf(addresses, size * 2);
+			phones = Arrays.copyOf(phones, size * 2);
+		}
+		addresses[size] = address;
+		phones[size] = phone;
+		size++;
+	}
+	
+	/**
+	 * Returns the number of phones.
+	 * 
+	 * @return number of phones
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Returns the description of the phone at the given position.
+	 * 
+	 * @param index
+	 *           position of the phone, from 0 to size() - 1
+	 * @return description of the phone
+	 */
+	@SuppressWarnings("unchecked")
+	public P get(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("no phone at index " + index);
+		return (P) phones[index];
+	}
+	
+	/**
+	 * Returns the address of the phone at the given position.
+	 * 
+	 * @param index
+	 *           position of the phone, from 0 to size() - 1
+	 * @return address of the phone, as an integer
+	 */
+	public int getAddress(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("no phone at index " + index);
+		return addresses[index];
+	}
+	
+	/**
+	 * Returns the addresses of all phones of the inventory.
+	 * 
+	 * @return set of the addresses, in the order in which the phones were added
+	 */
+	public AddressSet all() {
+		return AddressSet.of(Arrays.copyOf(addresses, size));
+	}
+	
+	/**
+	 * Returns the addresses of the phones that are accepted by the filter. The filter is
+	 * applied whenever the returned set is enumerated, so it reflects changes of the
+	 * descriptions, and phones added to the inventory later.
+	 * 
+	 * @param filter
+	 *           decides which phones are selected
+	 * @return set of the addresses, in the order in which the phones were added
+	 */
+	public AddressSet select(final Filter<? super P> filter) {
+		if (filter == null)
+			throw new NullPointerException("filter cannot be null");
+		return new AddressSet() {
+			@Override
+			public Cursor cursor() {
+				return new Cursor() {
+					
+					/**
+					 * Index of the next phone to check.
+					 */
+					private int index = 0;
+					
+					/**
+					 * Index of the next selected phone, or -1 if it was not found yet.
+					 */
+					private int found = -1;
+					
+					@Override
+					public boolean hasNext() {
+						while (found < 0 && index < size)
+							if (filter.accept(get(index++)))
+								found = index - 1;
+						return found >= 0;
+					}
+					
+					@Override
+					public int next() {
+						if (!hasNext())
+							throw new NoSuchElementException();
+						int address = addresses[found];
+						found = -1;
+						return address;
+					}
+					
+				};
+			}
+		};
+	}
+	
+}
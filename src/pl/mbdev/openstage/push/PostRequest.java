@@ -1,8 +1,9 @@
 package pl.mbdev.openstage.push;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
 
 /**
@@ -30,6 +31,12 @@ import java.net.URL;
  */
 public abstract class PostRequest extends HttpRequest {
 	
+	/**
+	 * Pool of kept-alive connections used to send this request, or null if a new
+	 * connection is opened and closed every time.
+	 */
+	private volatile ConnectionPool connectionPool = null;
+	
 	/**
 	 * Creates new HTTP POST request.
 	 * 
@@ -40,35 +47,216 @@ public abstract class PostRequest extends HttpRequest {
 		super(parameters);
 	}
 	
-	@Override
-	protected String getResponse(URL targetAddress) throws IOException {
-		this.connectTo(targetAddress, "POST");
+	/**
+	 * Returns the pool of connections used to send this request.
+	 * 
+	 * @return pool of connections, or null if connections are not reused
+	 */
+	public ConnectionPool getConnectionPool() {
+		return connectionPool;
+	}
+	
+	/**
+	 * Sets the pool of connections used to send this request, so that successive requests
+	 * to the same target reuse the same connection when the target allows it.
+	 * 
+	 * @param connectionPool
+	 *           pool of connections, or null to open and close a new connection every time
+	 */
+	public void setConnectionPool(ConnectionPool connectionPool) {
+		this.connectionPool = connectionPool;
+	}
+	
+	/**
+	 * Connects to the target and writes the already encoded parameters as the body of
+	 * the request. The connection is not stored in this request, so the same request may
+	 * be sent to many targets at the same time.
+	 * 
+	 * @param targetAddress
+	 *           URL of the target to which this request will be sent
+	 * @param connectTimeout
+	 *           time limit for establishing the connection, in milliseconds
+	 * @param readTimeout
+	 *           time limit for waiting for the response, in milliseconds
+	 * @param parser
+	 *           parser in which the timings of connecting and writing are stored
+	 * @return connection over which the request was sent
+	 * @throws IOException
+	 *            when connection cannot be established or the body cannot be written
+	 */
+	private HttpURLConnection post(URL targetAddress, int connectTimeout, int readTimeout,
+			PushResponse.Parser parser) throws IOException {
+		byte[] body = this.getParameters().toByteArray();
+		HttpURLConnection connection = this.openConnection(targetAddress, "POST",
+				connectTimeout, readTimeout);
 		
-		OutputStreamWriter out = this.startOutput("UTF-8");
-		String str = this.getParameters().toString().substring(1);
-		out.write(str);
+		connection.setFixedLengthStreamingMode(body.length);
+		long start = System.nanoTime();
+		connection.connect();
+		long connected = System.nanoTime();
+		OutputStream out = connection.getOutputStream();
+		out.write(body);
 		out.flush();
-		this.endOutput();
-		
-		BufferedReader reader = this.startInput();
-		String response = reader.readLine();
-		this.endInput();
-		
-		this.disconnect();
+		out.close();
+		parser.connectNanos = connected - start;
+		parser.writeNanos = System.nanoTime() - connected;
+		return connection;
+	}
+	
+	/**
+	 * Sends this request to the given URL and reads the whole response into the given
+	 * parser. Timings of the exchange are stored in the parser and passed to
+	 * {@link #exchanged(URL, long, long, long)}.
+	 * 
+	 * @param targetAddress
+	 *           URL of the target to which this request will be sent
+	 * @param connectTimeout
+	 *           time limit for establishing the connection, in milliseconds
+	 * @param readTimeout
+	 *           time limit for waiting for the response, in milliseconds
+	 * @param parser
+	 *           parser that consumes the body of the response
+	 * @return HTTP status of the response
+	 * @throws IOException
+	 *            thrown when the given URL caused a connection error, there was a protocol
+	 *            exception, data transfer was interrupted or a time limit was exceeded
+	 */
+	private int exchange(URL targetAddress, int connectTimeout, int readTimeout,
+			PushResponse.Parser parser) throws IOException {
+		ConnectionPool pool = this.connectionPool;
+		int status;
+		if (pool != null && "http".equals(targetAddress.getProtocol()))
+			status = pool.post(targetAddress, this.getParameters().toByteArray(),
+					connectTimeout, readTimeout, parser);
+		else
+			status = this.exchangeDirectly(targetAddress, connectTimeout, readTimeout, parser);
+		this.exchanged(targetAddress, parser.connectNanos, parser.writeNanos,
+				parser.responseNanos);
+		return status;
+	}
+	
+	/**
+	 * Sends this request to the given URL over a new connection and reads the whole
+	 * response into the given parser.
+	 * 
+	 * @param targetAddress
+	 *           URL of the target to which this request will be sent
+	 * @param connectTimeout
+	 *           time limit for establishing the connection, in milliseconds
+	 * @param readTimeout
+	 *           time limit for waiting for the response, in milliseconds
+	 * @param parser
+	 *           parser that consumes the body of the response
+	 * @return HTTP status of the response
+	 * @throws IOException
+	 *            thrown when the given URL caused a connection error, there was a protocol
+	 *            exception, data transfer was interrupted or a time limit was exceeded
+	 */
+	private int exchangeDirectly(URL targetAddress, int connectTimeout, int readTimeout,
+			PushResponse.Parser parser) throws IOException {
+		HttpURLConnection connection = this.post(targetAddress, connectTimeout, readTimeout,
+				parser);
+		try {
+			long written = System.nanoTime();
+			int status = connection.getResponseCode();
+			InputStream in = status >= 400 ? connection.getErrorStream() : connection
+					.getInputStream();
+			if (in != null) {
+				byte[] buffer = parser.buffer;
+				int read;
+				while ((read = in.read(buffer)) >= 0)
+					parser.update(buffer, 0, read);
+				in.close();
+			}
+			parser.responseNanos = System.nanoTime() - written;
+			return status;
+		} finally {
+			connection.disconnect();
+		}
+	}
+	
+	/**
+	 * Called after each exchange with the target, whether its status was successful or
+	 * not, with the timings of the exchange. Does nothing by default.
+	 * 
+	 * @param targetAddress
+	 *           URL of the target to which this request was sent
+	 * @param connectNanos
+	 *           time spent establishing the connection, in nanoseconds, or -1 if an open
+	 *           connection was reused
+	 * @param writeNanos
+	 *           time spent writing the request, in nanoseconds
+	 * @param responseNanos
+	 *           time from the end of the request to the end of the response, in
+	 *           nanoseconds
+	 */
+	protected void exchanged(URL targetAddress, long connectNanos, long writeNanos,
+			long responseNanos) {
+		// nothing to do
+	}
+	
+	/**
+	 * Sends this request to the given URL and classifies the response, using given time
+	 * limits. The body of the response is not converted to text.
+	 * 
+	 * @param targetAddress
+	 *           URL of the target to which this request will be sent
+	 * @param connectTimeout
+	 *           time limit for establishing the connection, in milliseconds
+	 * @param readTimeout
+	 *           time limit for waiting for the response, in milliseconds
+	 * @return response from the target address
+	 * @throws PushStatusException
+	 *            when the status of the response is not successful
+	 * @throws IOException
+	 *            thrown when the given URL caused a connection error, there was a protocol
+	 *            exception, data transfer was interrupted or a time limit was exceeded
+	 */
+	protected PushResponse getPushResponse(URL targetAddress, int connectTimeout,
+			int readTimeout) throws IOException {
+		PushResponse.Parser parser = PushResponse.Parser.get();
+		PushResponse response = parser.finish(this.exchange(targetAddress, connectTimeout,
+				readTimeout, parser));
+		if (response.getStatus() >= 400)
+			throw new PushStatusException(targetAddress, response);
 		return response;
 	}
 	
+	/**
+	 * Sends this request to the given URL and reads the response, using given time
+	 * limits.
+	 * 
+	 * @param targetAddress
+	 *           URL of the target to which this request will be sent
+	 * @param connectTimeout
+	 *           time limit for establishing the connection, in milliseconds
+	 * @param readTimeout
+	 *           time limit for waiting for the response, in milliseconds
+	 * @return first line of the response from the target address, decoded as UTF-8
+	 * @throws PushStatusException
+	 *            when the status of the response is not successful
+	 * @throws IOException
+	 *            thrown when the given URL caused a connection error, there was a protocol
+	 *            exception, data transfer was interrupted or a time limit was exceeded
+	 */
+	protected String getResponse(URL targetAddress, int connectTimeout, int readTimeout)
+			throws IOException {
+		PushResponse.Parser parser = PushResponse.Parser.get();
+		int status = this.exchange(targetAddress, connectTimeout, readTimeout, parser);
+		if (status >= 400)
+			throw new PushStatusException(targetAddress, parser.finish(status));
+		return parser.firstLine();
+	}
+	
+	@Override
+	protected String getResponse(URL targetAddress) throws IOException {
+		return this.getResponse(targetAddress, this.getConnectTimeout(),
+				this.getReadTimeout());
+	}
+	
 	@Override
 	protected boolean sendTo(URL targetAddress) throws IOException {
-		this.connectTo(targetAddress, "POST");
-		
-		OutputStreamWriter out = this.startOutput("UTF-8");
-		String str = this.getParameters().toString().substring(1);
-		out.write(str);
-		out.flush();
-		this.endOutput();
-		
-		this.disconnect();
+		this.getPushResponse(targetAddress, this.getConnectTimeout(), this.getReadTimeout());
 		return true;
 	}
 	
@@ -3,6 +3,7 @@ package pl.mbdev.openstage.push;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Push capability of the OpenStage phone can be utilised with use of this class. Push
@@ -72,6 +73,21 @@ public class Push extends PostRequest {
 	 */
 	private final URL appAddr;
 	
+	/**
+	 * Type of the request, value from {@link Push.RequestType}.
+	 */
+	private final RequestType requestType;
+	
+	/**
+	 * Program name, as defined in the OpenStage device.
+	 */
+	private final String midletName;
+	
+	/**
+	 * Metrics to which the sending of this push is reported, or null.
+	 */
+	private volatile PushMetrics metrics = null;
+	
 	/**
 	 * Constructs new definition of push, in which all parameters are set directly.
 	 * 
@@ -153,6 +169,111 @@ public class Push extends PostRequest {
 				appAddr.getProtocol(), serverContextKey, serverContextValue }));
 		
 		this.appAddr = appAddr;
+		this.requestType = requestType;
+		this.midletName = midletName;
+	}
+	
+	/**
+	 * Recreates the push from the parameters of its request, for example from a request
+	 * that was stored in encoded form. Timeouts are not a part of the request, so they
+	 * have default values.
+	 * 
+	 * @param parameters
+	 *           parameters of the push request
+	 * @return push that sends the given parameters
+	 * @throws MalformedURLException
+	 *            when the parameters do not describe a correct URL of the application
+	 * @throws IllegalArgumentException
+	 *            when some parameter is missing or has an illegal value
+	 */
+	public static Push fromParameters(RequestParameters parameters)
+			throws MalformedURLException {
+		String port = parameters.get("ServerPort");
+		String requestType = parameters.get("RequestType");
+		if (port == null || requestType == null)
+			throw new IllegalArgumentException("parameters do not describe a push");
+		try {
+			URL appAddr = new URL(parameters.get("ServerProtocol"),
+					parameters.get("ServerAddr"), Integer.parseInt(port),
+					parameters.get("ProgramName"));
+			return new Push(appAddr, parameters.get("MidletName"),
+					RequestType.valueOf(requestType), parameters.get("ServerContextKey"),
+					parameters.get("ServerContextValue"));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("illegal server port: " + port);
+		}
+	}
+	
+	/**
+	 * Creates a copy of the push, with different request parameters.
+	 * 
+	 * @param original
+	 *           push that is copied
+	 * @param parameters
+	 *           parameters of the push request
+	 * @param requestType
+	 *           type of the request, as given in the parameters
+	 */
+	private Push(Push original, RequestParameters parameters, RequestType requestType) {
+		super(parameters);
+		
+		this.appAddr = original.appAddr;
+		this.requestType = requestType;
+		this.midletName = original.midletName;
+		this.setConnectTimeout(original.getConnectTimeout());
+		this.setReadTimeout(original.getReadTimeout());
+		this.setConnectionPool(original.getConnectionPool());
+		this.metrics = original.metrics;
+	}
+	
+	/**
+	 * Creates a copy of this push with different server context, for example to give
+	 * every pushed phone its own context value. Timeouts, the pool of connections and the
+	 * metrics are copied as well.
+	 * 
+	 * @param serverContextKey
+	 *           key from key-value pair, which is sent back from the phone to the
+	 *           application in the response to the push request
+	 * @param serverContextValue
+	 *           value from key-value pair, which is sent back from the phone to the
+	 *           application in the response to the push request
+	 * @return new push, this push is not modified
+	 */
+	public Push withServerContext(String serverContextKey, String serverContextValue) {
+		return new Push(this, this.getParameters()
+				.with("ServerContextKey", serverContextKey)
+				.with("ServerContextValue", serverContextValue), requestType);
+	}
+	
+	/**
+	 * Creates a copy of this push with different type of the request. Timeouts, the pool
+	 * of connections and the metrics are copied as well.
+	 * 
+	 * @param requestType
+	 *           type of the request, value from {@link Push.RequestType}
+	 * @return new push, this push is not modified
+	 */
+	public Push withRequestType(RequestType requestType) {
+		if (requestType == this.requestType)
+			return this;
+		return new Push(this, this.getParameters().with("RequestType", requestType),
+				requestType);
+	}
+	
+	/**
+	 * Checks if this push launches the same application as the given one, i.e. if both
+	 * pushes have the same application address and program name. The type of the request
+	 * and the server context are not compared.
+	 * 
+	 * @param other
+	 *           another push
+	 * @return true if both pushes launch the same application
+	 */
+	public boolean isSameApplication(Push other) {
+		// URL.equals() would resolve the host names, so string forms are compared instead
+		return appAddr.toExternalForm().equals(other.appAddr.toExternalForm())
+				&& (midletName == null ? other.midletName == null : midletName
+						.equals(other.midletName));
 	}
 	
 	/**
@@ -164,6 +285,52 @@ public class Push extends PostRequest {
 		return appAddr;
 	}
 	
+	/**
+	 * Returns the type of the request.
+	 * 
+	 * @return value from {@link Push.RequestType}
+	 */
+	public RequestType getRequestType() {
+		return requestType;
+	}
+	
+	/**
+	 * Returns the program name, as defined in the OpenStage device.
+	 * 
+	 * @return program name
+	 */
+	public String getMidletName() {
+		return midletName;
+	}
+	
+	/**
+	 * Returns the metrics to which the sending of this push is reported.
+	 * 
+	 * @return the metrics, or null if they are not collected
+	 */
+	public PushMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Sets the metrics to which the sending of this push is reported. The same metrics
+	 * may be shared by many pushes.
+	 * 
+	 * @param metrics
+	 *           the metrics, or null to stop collecting them
+	 */
+	public void setMetrics(PushMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	@Override
+	protected void exchanged(URL targetAddress, long connectNanos, long writeNanos,
+			long responseNanos) {
+		PushMetrics localMetrics = metrics;
+		if (localMetrics != null)
+			localMetrics.exchanged(targetAddress, connectNanos, writeNanos, responseNanos);
+	}
+	
 	/**
 	 * Sends the push request to the given OpenStage phone and reads the response.
 	 * 
@@ -177,8 +344,145 @@ public class Push extends PostRequest {
 	 *            when the provided phone IP is not a valid IP
 	 */
 	protected String getResponse(String phoneIP) throws MalformedURLException, IOException {
-		return this.getResponse(new URL("http://" + phoneIP + ":" + PHONE_PORT
-				+ PHONE_PUSH_SCRIPT));
+		return this.getResponse(getPushUrl(phoneIP));
+	}
+	
+	/**
+	 * Returns URL of the push script of the given OpenStage phone.
+	 * 
+	 * @param phoneIP
+	 *           IP address of the OpenStage phone
+	 * @return URL to which push requests for the phone are sent
+	 * @throws MalformedURLException
+	 *            when the provided phone IP is not a valid IP
+	 */
+	protected static URL getPushUrl(String phoneIP) throws MalformedURLException {
+		return new URL("http://" + phoneIP + ":" + PHONE_PORT + PHONE_PUSH_SCRIPT);
+	}
+	
+	/**
+	 * Sends the push request to the given OpenStage phone, repeating it according to the
+	 * given retry policy. Only failures that the policy considers retryable are recorded
+	 * by the circuit breaker, other errors do not say anything about the phone being
+	 * reachable, but they still end the probe of an open circuit.
+	 * 
+	 * @param phoneIP
+	 *           IP address of the OpenStage phone that will be pushed
+	 * @param retryPolicy
+	 *           defines when and how often the failed push is repeated
+	 * @param circuitBreaker
+	 *           circuit breaker that rejects pushes to phones that keep failing, may be
+	 *           null
+	 * @return response of the phone
+	 * @throws CircuitOpenException
+	 *            when the push was not sent because the circuit of the phone is open
+	 * @throws IOException
+	 *            thrown when the last attempt caused a connection error, there was a
+	 *            protocol exception or data transfer was interrupted
+	 */
+	public PushResponse send(String phoneIP, RetryPolicy retryPolicy,
+			CircuitBreaker circuitBreaker) throws IOException {
+		return this.send(phoneIP, retryPolicy, circuitBreaker, Deadline.NONE);
+	}
+	
+	/**
+	 * Sends the push request to the given OpenStage phone, repeating it according to the
+	 * given retry policy, but never beyond the given deadline. Connect and read timeouts of
+	 * each attempt are shortened so that the attempt ends by the deadline, and a repetition
+	 * is not even started if its delay would end after the deadline.
+	 * 
+	 * @param phoneIP
+	 *           IP address of the OpenStage phone that will be pushed
+	 * @param retryPolicy
+	 *           defines when and how often the failed push is repeated
+	 * @param circuitBreaker
+	 *           circuit breaker that rejects pushes to phones that keep failing, may be
+	 *           null
+	 * @param deadline
+	 *           moment by which the push must be finished
+	 * @return response of the phone
+	 * @throws DeadlineExceededException
+	 *            when the push was not sent because the deadline has already passed
+	 * @throws CircuitOpenException
+	 *            when the push was not sent because the circuit of the phone is open
+	 * @throws IOException
+	 *            thrown when the last attempt caused a connection error, there was a
+	 *            protocol exception, data transfer was interrupted or a timeout occurred
+	 */
+	public PushResponse send(String phoneIP, RetryPolicy retryPolicy,
+			CircuitBreaker circuitBreaker, Deadline deadline) throws IOException {
+		PushMetrics localMetrics = metrics;
+		if (localMetrics == null)
+			return this.sendWithRetry(phoneIP, retryPolicy, circuitBreaker, deadline);
+		
+		PushMetrics.Result result = PushMetrics.Result.IO_ERROR;
+		localMetrics.started();
+		long start = System.nanoTime();
+		try {
+			PushResponse response = this.sendWithRetry(phoneIP, retryPolicy,
+					circuitBreaker, deadline);
+			result = PushMetrics.Result.of(response);
+			return response;
+		} catch (IOException e) {
+			result = PushMetrics.Result.of(e);
+			throw e;
+		} finally {
+			localMetrics.finished(phoneIP, requestType, result, System.nanoTime() - start);
+		}
+	}
+	
+	/**
+	 * Sends the push request as described in
+	 * {@link #send(String, RetryPolicy, CircuitBreaker, Deadline)}, without reporting it
+	 * to the metrics.
+	 * 
+	 * @param phoneIP
+	 *           IP address of the OpenStage phone that will be pushed
+	 * @param retryPolicy
+	 *           defines when and how often the failed push is repeated
+	 * @param circuitBreaker
+	 *           circuit breaker that rejects pushes to phones that keep failing, may be
+	 *           null
+	 * @param deadline
+	 *           moment by which the push must be finished
+	 * @return response of the phone
+	 * @throws IOException
+	 *            when the push was not sent, or the last attempt failed
+	 */
+	private PushResponse sendWithRetry(String phoneIP, RetryPolicy retryPolicy,
+			CircuitBreaker circuitBreaker, Deadline deadline) throws IOException {
+		if (deadline.isExpired())
+			throw new DeadlineExceededException(phoneIP);
+		if (circuitBreaker != null && !circuitBreaker.allowRequest(phoneIP))
+			throw new CircuitOpenException(phoneIP);
+		try {
+			URL pushUrl = getPushUrl(phoneIP);
+			for (int attempt = 1;; attempt++) {
+				long backoff;
+				try {
+					PushResponse response = this.getPushResponse(pushUrl,
+							deadline.limit(this.getConnectTimeout()),
+							deadline.limit(this.getReadTimeout()));
+					if (circuitBreaker != null)
+						circuitBreaker.recordSuccess(phoneIP);
+					return response;
+				} catch (IOException e) {
+					boolean retryable = retryPolicy.isRetryable(e);
+					backoff = retryPolicy.getBackoff(attempt);
+					if (!retryable || attempt >= retryPolicy.getMaxAttempts()
+							|| deadline.remaining(TimeUnit.MILLISECONDS) <= backoff) {
+						if (circuitBreaker != null && retryable)
+							circuitBreaker.recordFailure(phoneIP);
+						throw e;
+					}
+				}
+				RetryPolicy.sleep(backoff);
+			}
+		} finally {
+			// a probe that ended in any other way must not keep rejecting the later pushes
+			if (circuitBreaker != null)
+				circuitBreaker.release(phoneIP);
+		}
 	}
 	
 	/**
@@ -190,7 +494,7 @@ public class Push extends PostRequest {
 	 */
 	public boolean sendTo(String phoneIP) {
 		try {
-			this.getResponse(phoneIP);
+			this.send(phoneIP, RetryPolicy.NONE, null);
 			return true;
 		} catch (MalformedURLException e) {
 			e.printStackTrace();
@@ -200,4 +504,20 @@ public class Push extends PostRequest {
 		return false;
 	}
 	
+	/**
+	 * Sends the push request to all phones of the given set, one after another. For
+	 * sending to many phones in parallel, see {@link Broadcast}.
+	 * 
+	 * @param phones
+	 *           addresses of the OpenStage phones that will be pushed
+	 * @return number of the phones to which the push request was sent successfully
+	 */
+	public int sendTo(AddressSet phones) {
+		int sent = 0;
+		for (AddressSet.Cursor cursor = phones.cursor(); cursor.hasNext();)
+			if (this.sendTo(AddressSet.toString(cursor.next())))
+				sent++;
+		return sent;
+	}
+	
 }
@@ -0,0 +1,232 @@
+package pl.mbdev.openstage.push;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Measures the time between sending a push and the moment when the pushed phone fetches
+ * the application. Every pushed phone gets a unique token as the server context value,
+ * which the phone sends back when it requests the application; the token is then matched
+ * with the time at which the push was sent.<br />
+ * <br />
+ * Pending tokens are kept in a fixed-size ring, so memory use does not depend on the
+ * number of pushes; a token that is not matched before the ring wraps around is counted
+ * as unmatched.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public class PushCorrelator {
+	
+	/**
+	 * Source of prefixes of the tokens.
+	 */
+	private static final Random random = new Random();
+	
+	/**
+	 * Push waiting for the fetch. The number of the token and the time are kept together,
+	 * so that a fetch never matches its token with the time of a newer push.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private static final class Pending {
+		
+		/**
+		 * Number of the token.
+		 */
+		final long number;
+		
+		/**
+		 * Time at which the push was sent, as given by {@link System#nanoTime()}.
+		 */
+		final long sendTime;
+		
+		/**
+		 * Creates new pending push.
+		 * 
+		 * @param number
+		 *           number of the token
+		 * @param sendTime
+		 *           time at which the push was sent
+		 */
+		Pending(long number, long sendTime) {
+			this.number = number;
+			this.sendTime = sendTime;
+		}
+		
+	}
+	
+	/**
+	 * Server context key under which the tokens are sent.
+	 */
+	private final String contextKey;
+	
+	/**
+	 * Prefix of all tokens of this correlator, so that tokens from before a restart of the
+	 * server are not mistaken for new ones.
+	 */
+	private final String prefix;
+	
+	/**
+	 * Number of the next token.
+	 */
+	private final AtomicLong sequence;
+	
+	/**
+	 * Push waiting for the fetch in each slot of the ring, null for empty slots.
+	 */
+	private final AtomicReferenceArray<Pending> pending;
+	
+	/**
+	 * Time between the push and the fetch of the application, in microseconds.
+	 */
+	private final LatencyHistogram latency;
+	
+	/**
+	 * Number of fetches with unknown, expired or already used tokens.
+	 */
+	private final AtomicLong unmatched;
+	
+	/**
+	 * Creates new correlator.
+	 * 
+	 * @param contextKey
+	 *           server context key under which the tokens are sent, the phone sends the
+	 *           token back as the value of the parameter with this name
+	 * @param capacity
+	 *           maximum number of pushes waiting for the fetch at the same time
+	 */
+	public PushCorrelator(String contextKey, int capacity) {
+		if (contextKey == null)
+			throw new NullPointerException("context key cannot be null");
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be at least 1");
+		this.contextKey = contextKey;
+		synchronized (random) {
+			this.prefix = Long.toString(random.nextLong() & Long.MAX_VALUE, 36) + "-";
+		}
+		this.sequence = new AtomicLong();
+		this.pending = new AtomicReferenceArray<Pending>(capacity);
+		this.latency = new LatencyHistogram();
+		this.unmatched = new AtomicLong();
+	}
+	
+	/**
+	 * Returns the server context key under which the tokens are sent.
+	 * 
+	 * @return server context key
+	 */
+	public String getContextKey() {
+		return contextKey;
+	}
+	
+	/**
+	 * Creates a new token and records the current time as the time at which the push with
+	 * this token is sent.
+	 * 
+	 * @return new token, to be sent as the server context value
+	 */
+	public String register() {
+		long number = sequence.getAndIncrement();
+		pending.set((int) (number % pending.length()), new Pending(number, System.nanoTime()));
+		return prefix + Long.toString(number, 36);
+	}
+	
+	/**
+	 * Prepares the copy of the given push that carries a new token.
+	 * 
+	 * @param push
+	 *           push that is about to be sent
+	 * @return copy of the push, with the server context set to the new token
+	 */
+	public Push register(Push push) {
+		return push.withServerContext(contextKey, register());
+	}
+	
+	/**
+	 * Matches the token sent back by the phone with the push, and records the time
+	 * between them.
+	 * 
+	 * @param token
+	 *           token received from the phone, may be null
+	 * @return time between the push and the fetch, in microseconds, or -1 if the token is
+	 *         unknown, expired or was already matched
+	 */
+	public long fetched(String token) {
+		long now = System.nanoTime();
+		if (token == null || !token.startsWith(prefix)) {
+			unmatched.incrementAndGet();
+			return -1;
+		}
+		long number;
+		try {
+			number = Long.parseLong(token.substring(prefix.length()), 36);
+		} catch (NumberFormatException e) {
+			unmatched.incrementAndGet();
+			return -1;
+		}
+		if (number < 0) {
+			unmatched.incrementAndGet();
+			return -1;
+		}
+		int slot = (int) (number % pending.length());
+		Pending push = pending.get(slot);
+		if (push == null || push.number != number || !pending.compareAndSet(slot, push, null)) {
+			unmatched.incrementAndGet();
+			return -1;
+		}
+		long micros = (now - push.sendTime) / 1000;
+		latency.record(micros);
+		return micros;
+	}
+	
+	/**
+	 * Matches the token from the parameters of the request with which the phone fetched
+	 * the application.
+	 * 
+	 * @param parameters
+	 *           parameters of the request sent by the phone, see
+	 *           {@link RequestParameters#decode(String)}
+	 * @return time between the push and the fetch, in microseconds, or -1 if the token is
+	 *         missing, unknown, expired or was already matched
+	 */
+	public long fetched(RequestParameters parameters) {
+		return fetched(parameters.get(contextKey));
+	}
+	
+	/**
+	 * Returns the histogram of times between the push and the fetch of the application.
+	 * 
+	 * @return histogram of latencies, in microseconds
+	 */
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+	
+	/**
+	 * Returns the number of fetches that could not be matched with any push.
+	 * 
+	 * @return number of unmatched fetches
+	 */
+	public long getUnmatched() {
+		return unmatched.get();
+	}
+	
+}
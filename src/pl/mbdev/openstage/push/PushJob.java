@@ -0,0 +1,127 @@
+package pl.mbdev.openstage.push;
+
+/**
+ * Push to a single phone, waiting in a {@link PushQueue} to be sent. Subclasses define how
+ * the push is sent in {@link #run()}, and what happens when it is dropped from the queue
+ * without being sent.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public abstract class PushJob implements Runnable {
+	
+	/**
+	 * Address of the target phone.
+	 */
+	private final String phoneIP;
+	
+	/**
+	 * Push that will be sent.
+	 */
+	private volatile Push push;
+	
+	/**
+	 * Time at which this job was added to the queue, as given by {@link System#nanoTime()}.
+	 */
+	long enqueuedAt;
+	
+	/**
+	 * Priority level at which this job waits in the queue, written with the lock of its
+	 * phone held.
+	 */
+	volatile int level;
+	
+	/**
+	 * True if this job left the queue, because it was dropped or given to the executor,
+	 * written with the lock of its phone held.
+	 */
+	volatile boolean removed = false;
+	
+	/**
+	 * Identifier of this job in the {@link PushJournal} of the queue, or 0 if it was not
+	 * recorded.
+	 */
+	long journalId = 0;
+	
+	/**
+	 * Creates new job.
+	 * 
+	 * @param push
+	 *           push that will be sent
+	 * @param phoneIP
+	 *           address of the target phone
+	 */
+	protected PushJob(Push push, String phoneIP) {
+		if (push == null)
+			throw new NullPointerException("push cannot be null");
+		if (phoneIP == null)
+			throw new NullPointerException("phone address cannot be null");
+		this.push = push;
+		this.phoneIP = phoneIP;
+	}
+	
+	/**
+	 * Returns the address of the target phone.
+	 * 
+	 * @return address of the phone
+	 */
+	public String getPhoneIP() {
+		return phoneIP;
+	}
+	
+	/**
+	 * Returns the push that will be sent.
+	 * 
+	 * @return the push
+	 */
+	public Push getPush() {
+		return push;
+	}
+	
+	/**
+	 * Replaces the push that will be sent.
+	 * 
+	 * @param push
+	 *           new push
+	 */
+	void setPush(Push push) {
+		this.push = push;
+	}
+	
+	/**
+	 * Called instead of {@link #run()} when this job is dropped from the queue because a
+	 * push of the same application with higher priority was queued for the same phone.
+	 * 
+	 * @param by
+	 *           job that caused this one to be dropped
+	 */
+	protected abstract void superseded(PushJob by);
+	
+	/**
+	 * Called instead of {@link #run()} when this job is merged into a job that launches the
+	 * same application on the same phone and was queued earlier. The push of that job is
+	 * then replaced by the push of this job, with the more important type of request of
+	 * the two.
+	 * 
+	 * @param into
+	 *           job that will send the merged push
+	 */
+	protected abstract void coalesced(PushJob into);
+	
+}
@@ -0,0 +1,553 @@
+package pl.mbdev.openstage.push;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.MalformedURLException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the pushes given to a {@link PushQueue}, which lets the pushes that
+ * were not sent survive a restart of the application server. For every queued push, its
+ * request, already encoded as it is sent to the phone, is appended together with the
+ * address of the phone; when the push is finished, a completion marker is appended. On
+ * startup, pushes without the marker are read back and queued again, see
+ * {@link #replay(PushQueue)}.<br />
+ * <br />
+ * The log is split into segment files of a fixed size, which are mapped into memory, so
+ * an append is only a copy into the memory of the process. Records reach the disk
+ * together with other dirty pages of the file, which is enough to survive a crash of the
+ * process; {@link #flush()} forces them to the disk, to survive a crash of the system as
+ * well. A segment file is deleted as soon as all pushes recorded in it and in all older
+ * segments are finished.<br />
+ * <br />
+ * Each record consists of its length, type, identifier of the push, data and CRC32
+ * checksum, so that a record that was written only partially is recognised and ignored.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public class PushJournal {
+	
+	/**
+	 * Default size of a segment file, in bytes.
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+	
+	/**
+	 * Type of the record of a queued push.
+	 */
+	private static final byte ENTRY = 1;
+	
+	/**
+	 * Type of the record that marks a push as finished.
+	 */
+	private static final byte DONE = 2;
+	
+	/**
+	 * Length of the record without its data: length, type, identifier and checksum.
+	 */
+	private static final int OVERHEAD = 4 + 1 + 8 + 4;
+	
+	/**
+	 * Prefix of the names of the segment files.
+	 */
+	private static final String PREFIX = "push-";
+	
+	/**
+	 * Suffix of the names of the segment files.
+	 */
+	private static final String SUFFIX = ".log";
+	
+	/**
+	 * Single segment file of the log.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private static class Segment {
+		
+		/**
+		 * Number of the segment, increasing with every new segment.
+		 */
+		final long number;
+		
+		/**
+		 * File of the segment.
+		 */
+		final File file;
+		
+		/**
+		 * Contents of the file, mapped into memory, or null if the segment is not written
+		 * any more.
+		 */
+		MappedByteBuffer buffer;
+		
+		/**
+		 * Number of unfinished pushes recorded in this segment.
+		 */
+		int pending = 0;
+		
+		/**
+		 * Creates new segment.
+		 * 
+		 * @param number
+		 *           number of the segment
+		 * @param file
+		 *           file of the segment
+		 */
+		Segment(long number, File file) {
+			this.number = number;
+			this.file = file;
+		}
+		
+	}
+	
+	/**
+	 * Unfinished push read from the log.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private static class Entry {
+		
+		/**
+		 * Address of the target phone.
+		 */
+		final String phoneIP;
+		
+		/**
+		 * Encoded push request.
+		 */
+		final byte[] request;
+		
+		/**
+		 * Creates new entry.
+		 * 
+		 * @param phoneIP
+		 *           address of the target phone
+		 * @param request
+		 *           encoded push request
+		 */
+		Entry(String phoneIP, byte[] request) {
+			this.phoneIP = phoneIP;
+			this.request = request;
+		}
+		
+	}
+	
+	/**
+	 * Push read from the log, which is queued again.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private static class Recovered extends PushJob {
+		
+		/**
+		 * Creates new job for a push read from the log.
+		 * 
+		 * @param push
+		 *           push that will be sent
+		 * @param phoneIP
+		 *           address of the target phone
+		 * @param id
+		 *           identifier of the push in the log
+		 */
+		Recovered(Push push, String phoneIP, long id) {
+			super(push, phoneIP);
+			this.journalId = id;
+		}
+		
+		@Override
+		public void run() {
+			getPush().sendTo(getPhoneIP());
+		}
+		
+		@Override
+		protected void superseded(PushJob by) {
+		}
+		
+		@Override
+		protected void coalesced(PushJob into) {
+		}
+		
+	}
+	
+	/**
+	 * Directory with the segment files.
+	 */
+	private final File directory;
+	
+	/**
+	 * Size of each segment file, in bytes.
+	 */
+	private final int segmentSize;
+	
+	/**
+	 * Segments that have unfinished pushes, and the current one, by their numbers.
+	 */
+	private final TreeMap<Long, Segment> segments;
+	
+	/**
+	 * Unfinished pushes read from the log when it was opened, and not replayed yet.
+	 */
+	private final LinkedHashMap<Long, Entry> recovered;
+	
+	/**
+	 * Segment to which records are appended.
+	 */
+	private Segment current;
+	
+	/**
+	 * Reused for computing checksums.
+	 */
+	private final CRC32 crc = new CRC32();
+	
+	/**
+	 * Number of pushes read from the log that could not be decoded.
+	 */
+	private final LongAdder discarded = new LongAdder();
+	
+	/**
+	 * Opens the log in the given directory with default segment size, and reads the
+	 * unfinished pushes from it.
+	 * 
+	 * @param directory
+	 *           directory with the segment files, created if it does not exist
+	 * @throws IOException
+	 *            when the files of the log cannot be read or created
+	 */
+	public PushJournal(File directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE);
+	}
+	
+	/**
+	 * Opens the log in the given directory, and reads the unfinished pushes from it.
+	 * Records are never appended to segments written before, a new segment is started
+	 * instead.
+	 * 
+	 * @param directory
+	 *           directory with the segment files, created if it does not exist
+	 * @param segmentSize
+	 *           size of each new segment file, in bytes
+	 * @throws IOException
+	 *            when the files of the log cannot be read or created
+	 */
+	public PushJournal(File directory, int segmentSize) throws IOException {
+		if (directory == null)
+			throw new NullPointerException("directory cannot be null");
+		if (segmentSize < 1024)
+			throw new IllegalArgumentException("segment must have at least 1024 bytes");
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("cannot create directory " + directory);
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.segments = new TreeMap<Long, Segment>();
+		this.recovered = new LinkedHashMap<Long, Entry>();
+		
+		File[] files = directory.listFiles();
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX))
+				continue;
+			try {
+				long number = Long.parseLong(name.substring(PREFIX.length(), name.length()
+						- SUFFIX.length()));
+				segments.put(number, new Segment(number, file));
+			} catch (NumberFormatException e) {
+				// not a segment of the log
+			}
+		}
+		for (Segment segment : segments.values())
+			read(segment);
+		for (Long id : recovered.keySet())
+			segments.get(id >>> 32).pending++;
+		roll();
+	}
+	
+	/**
+	 * Reads all valid records of the given segment.
+	 * 
+	 * @param segment
+	 *           segment to read
+	 * @throws IOException
+	 *            when the file of the segment cannot be read
+	 */
+	private void read(Segment segment) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(segment.file, "r");
+		try {
+			MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+					file.length());
+			while (buffer.remaining() >= OVERHEAD) {
+				int start = buffer.position();
+				int length = buffer.getInt();
+				if (length <= 0 || length > buffer.remaining())
+					break;
+				byte[] record = new byte[length];
+				buffer.get(record);
+				crc.reset();
+				crc.update(record, 0, length - 4);
+				int checksum = (record[length - 4] & 0xFF) << 24
+						| (record[length - 3] & 0xFF) << 16 | (record[length - 2] & 0xFF) << 8
+						| record[length - 1] & 0xFF;
+				if ((int) crc.getValue() != checksum) {
+					buffer.position(start);
+					break;
+				}
+				long id = 0;
+				for (int i = 1; i < 9; i++)
+					id = id << 8 | record[i] & 0xFF;
+				if (record[0] == ENTRY) {
+					int phoneLength = (record[9] & 0xFF) << 8 | record[10] & 0xFF;
+					String phoneIP = new String(record, 11, phoneLength, FormEncoding.UTF8);
+					byte[] request = new byte[length - 4 - 11 - phoneLength];
+					System.arraycopy(record, 11 + phoneLength, request, 0, request.length);
+					recovered.put(id, new Entry(phoneIP, request));
+				} else if (record[0] == DONE) {
+					recovered.remove(id);
+				}
+			}
+		} finally {
+			file.close();
+		}
+	}
+	
+	/**
+	 * Starts a new segment, to which the next records are appended.
+	 * 
+	 * @throws IOException
+	 *            when the file of the segment cannot be created
+	 */
+	private void roll() throws IOException {
+		long number = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+		if (current != null) {
+			current.buffer.force();
+			current.buffer = null;
+		}
+		Segment segment = new Segment(number, new File(directory, PREFIX + number + SUFFIX));
+		RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+		try {
+			segment.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					segmentSize);
+		} finally {
+			file.close();
+		}
+		segments.put(number, segment);
+		current = segment;
+		trim();
+	}
+	
+	/**
+	 * Deletes the oldest segments that have no unfinished pushes, up to the first segment
+	 * that has some, or the current one. A segment can hold completion markers of pushes
+	 * recorded in older segments, so it is never deleted before all of them; otherwise
+	 * the finished pushes would be read back as unfinished.
+	 */
+	private void trim() {
+		for (Iterator<Segment> i = segments.values().iterator(); i.hasNext();) {
+			Segment segment = i.next();
+			if (segment == current || segment.pending > 0)
+				return;
+			if (!segment.file.delete())
+				segment.file.deleteOnExit();
+			i.remove();
+		}
+	}
+	
+	/**
+	 * Appends a single record to the current segment, starting a new segment if the
+	 * record does not fit. Must be called with the lock of this log held.
+	 * 
+	 * @param type
+	 *           type of the record
+	 * @param id
+	 *           identifier of the finished push, only for completion markers
+	 * @param phoneIP
+	 *           address of the phone, only for entries
+	 * @param request
+	 *           encoded push request, only for entries
+	 * @return identifier of the push
+	 * @throws IOException
+	 *            when a new segment cannot be created
+	 */
+	private long append(byte type, long id, byte[] phoneIP, byte[] request)
+			throws IOException {
+		int length = 1 + 8 + 4;
+		if (type == ENTRY)
+			length += 2 + phoneIP.length + request.length;
+		if (4 + length > segmentSize)
+			throw new IllegalArgumentException("push does not fit into a segment");
+		if (current.buffer.remaining() < 4 + length)
+			roll();
+		if (type == ENTRY)
+			id = current.number << 32 | current.buffer.position();
+		
+		byte[] record = new byte[length];
+		record[0] = type;
+		for (int i = 8; i > 0; i--, id >>>= 8)
+			record[i] = (byte) id;
+		if (type == ENTRY) {
+			record[9] = (byte) (phoneIP.length >>> 8);
+			record[10] = (byte) phoneIP.length;
+			System.arraycopy(phoneIP, 0, record, 11, phoneIP.length);
+			System.arraycopy(request, 0, record, 11 + phoneIP.length, request.length);
+		}
+		crc.reset();
+		crc.update(record, 0, length - 4);
+		int checksum = (int) crc.getValue();
+		for (int i = length - 1; i >= length - 4; i--, checksum >>>= 8)
+			record[i] = (byte) checksum;
+		
+		// the length goes last, so that a record is never seen without its contents
+		int start = current.buffer.position();
+		current.buffer.position(start + 4);
+		current.buffer.put(record);
+		current.buffer.putInt(start, length);
+		return current.number << 32 | start;
+	}
+	
+	/**
+	 * Appends the given jobs to the log, all under a single lock, and gives each of them
+	 * its identifier in the log. Jobs that already have an identifier are skipped.
+	 * 
+	 * @param jobs
+	 *           jobs that are queued
+	 * @throws IOException
+	 *            when a new segment cannot be created
+	 */
+	synchronized void appendAll(Collection<? extends PushJob> jobs) throws IOException {
+		for (PushJob job : jobs) {
+			if (job.journalId != 0)
+				continue;
+			byte[] phoneIP = job.getPhoneIP().getBytes(FormEncoding.UTF8);
+			if (phoneIP.length > 0xFFFF)
+				throw new IllegalArgumentException("phone address is too long");
+			job.journalId = append(ENTRY, 0, phoneIP, job.getPush().getParameters()
+					.toByteArray());
+			current.pending++;
+		}
+	}
+	
+	/**
+	 * Marks the push with the given identifier as finished. When all pushes of the oldest
+	 * segments are finished, these segments are deleted.
+	 * 
+	 * @param id
+	 *           identifier of the push in the log
+	 * @throws IOException
+	 *            when a new segment cannot be created
+	 */
+	synchronized void complete(long id) throws IOException {
+		Segment segment = segments.get(id >>> 32);
+		if (segment == null)
+			return;
+		append(DONE, id, null, null);
+		if (--segment.pending == 0 && segment == segments.get(segments.firstKey()))
+			trim();
+	}
+	
+	/**
+	 * Queues again all unfinished pushes read from the log when it was opened. The
+	 * pushes are sent with default timeouts, and their results are not reported.
+	 * 
+	 * @param queue
+	 *           queue to which the pushes are given, it should use this log
+	 * @return number of the queued pushes
+	 * @throws IOException
+	 *            when a push that cannot be decoded cannot be marked as finished
+	 */
+	public int replay(PushQueue queue) throws IOException {
+		ArrayList<PushJob> jobs = new ArrayList<PushJob>();
+		synchronized (this) {
+			for (Map.Entry<Long, Entry> e : recovered.entrySet()) {
+				Entry entry = e.getValue();
+				try {
+					Push push = Push.fromParameters(RequestParameters.decode(entry.request, 0,
+							entry.request.length));
+					jobs.add(new Recovered(push, entry.phoneIP, e.getKey()));
+				} catch (MalformedURLException ex) {
+					discard(e.getKey(), entry, ex);
+				} catch (IllegalArgumentException ex) {
+					discard(e.getKey(), entry, ex);
+				}
+			}
+			recovered.clear();
+		}
+		queue.submitAll(jobs);
+		return jobs.size();
+	}
+	
+	/**
+	 * Marks a push that cannot be decoded as finished, and reports it. Must be called with
+	 * the lock of this log held.
+	 * 
+	 * @param id
+	 *           identifier of the push in the log
+	 * @param entry
+	 *           push read from the log
+	 * @param e
+	 *           reason why the push cannot be decoded
+	 * @throws IOException
+	 *            when the push cannot be marked as finished
+	 */
+	private void discard(long id, Entry entry, Exception e) throws IOException {
+		complete(id);
+		discarded.increment();
+		discarded(entry.phoneIP, e);
+	}
+	
+	/**
+	 * Called for every push read from the log that cannot be decoded, so it is not queued
+	 * again by {@link #replay(PushQueue)}, but marked as finished. The default
+	 * implementation does nothing, the pushes are only counted, see
+	 * {@link #getDiscarded()}.
+	 * 
+	 * @param phoneIP
+	 *           address of the target phone of the push
+	 * @param e
+	 *           reason why the push cannot be decoded
+	 */
+	protected void discarded(String phoneIP, Exception e) {
+	}
+	
+	/**
+	 * Returns the number of pushes read from the log that were discarded, because they
+	 * could not be decoded.
+	 * 
+	 * @return number of discarded pushes
+	 */
+	public long getDiscarded() {
+		return discarded.sum();
+	}
+	
+	/**
+	 * Forces all appended records to the disk.
+	 */
+	public synchronized void flush() {
+		current.buffer.force();
+	}
+	
+}
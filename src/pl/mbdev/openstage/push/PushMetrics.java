@@ -0,0 +1,466 @@
+package pl.mbdev.openstage.push;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Collects metrics of sending pushes: latencies of connecting, writing the request and
+ * reading the response, results of the pushes by the type of the request, the number of
+ * pushes in flight and the depth of the queue. All counters can be updated by many
+ * threads at the same time without locking. The metrics can be registered in the platform
+ * MBean server, and listeners can be notified about every exchange and every push.<br />
+ * <br />
+ * Metrics are collected for the pushes that were given this object, see
+ * {@link Push#setMetrics(PushMetrics)}.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public class PushMetrics implements PushMetricsMBean {
+	
+	/**
+	 * Results of a push, as counted by the metrics.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	public enum Result {
+		/**
+		 * Phone accepted the push.
+		 */
+		ACCEPTED,
+		/**
+		 * Phone responded, but did not accept the push, see {@link PushResponse#getReason()}.
+		 */
+		REFUSED,
+		/**
+		 * Phone responded with an unsuccessful HTTP status.
+		 */
+		HTTP_ERROR,
+		/**
+		 * Phone could not be connected.
+		 */
+		UNREACHABLE,
+		/**
+		 * Phone did not respond in time.
+		 */
+		TIMEOUT,
+		/**
+		 * Push was not sent because the circuit of the phone is open.
+		 */
+		CIRCUIT_OPEN,
+		/**
+		 * Push was not sent because its deadline had passed.
+		 */
+		DEADLINE_EXCEEDED,
+		/**
+		 * Push failed because of another error.
+		 */
+		IO_ERROR;
+		
+		/**
+		 * Returns the result of a push to which the phone responded.
+		 * 
+		 * @param response
+		 *           response of the phone
+		 * @return the result
+		 */
+		public static Result of(PushResponse response) {
+			return response.isAccepted() ? ACCEPTED : REFUSED;
+		}
+		
+		/**
+		 * Returns the result of a push that failed with the given exception.
+		 * 
+		 * @param e
+		 *           exception thrown by the push
+		 * @return the result
+		 */
+		public static Result of(IOException e) {
+			if (e instanceof PushStatusException)
+				return HTTP_ERROR;
+			if (e instanceof CircuitOpenException)
+				return CIRCUIT_OPEN;
+			if (e instanceof DeadlineExceededException)
+				return DEADLINE_EXCEEDED;
+			if (LivenessCache.isUnreachable(e))
+				return UNREACHABLE;
+			if (e instanceof SocketTimeoutException)
+				return TIMEOUT;
+			return IO_ERROR;
+		}
+	}
+	
+	/**
+	 * Receives the metrics of every exchange and every push, for example to forward them
+	 * to an external monitoring system. Listeners are called by the threads that send the
+	 * pushes, so they should return quickly.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	public interface Listener {
+		
+		/**
+		 * Called after each exchange with a phone, including every repetition of a push.
+		 * 
+		 * @param targetAddress
+		 *           URL to which the push was sent
+		 * @param connectNanos
+		 *           time spent establishing the connection, in nanoseconds, or -1 if an
+		 *           open connection was reused
+		 * @param writeNanos
+		 *           time spent writing the request, in nanoseconds
+		 * @param responseNanos
+		 *           time from the end of the request to the end of the response, in
+		 *           nanoseconds
+		 */
+		void exchanged(URL targetAddress, long connectNanos, long writeNanos,
+				long responseNanos);
+		
+		/**
+		 * Called when a push is finished, successfully or not.
+		 * 
+		 * @param phoneIP
+		 *           address of the phone
+		 * @param requestType
+		 *           type of the request of the push
+		 * @param result
+		 *           result of the push
+		 * @param nanos
+		 *           time of the whole push, repetitions included, in nanoseconds
+		 */
+		void finished(String phoneIP, Push.RequestType requestType, Result result, long nanos);
+		
+	}
+	
+	/**
+	 * Number of the results.
+	 */
+	private static final int RESULTS = Result.values().length;
+	
+	/**
+	 * Latencies of establishing connections, in nanoseconds.
+	 */
+	private final LatencyHistogram connectLatency = new LatencyHistogram();
+	
+	/**
+	 * Latencies of writing requests, in nanoseconds.
+	 */
+	private final LatencyHistogram writeLatency = new LatencyHistogram();
+	
+	/**
+	 * Latencies of waiting for and reading responses, in nanoseconds.
+	 */
+	private final LatencyHistogram responseLatency = new LatencyHistogram();
+	
+	/**
+	 * Latencies of whole pushes, in nanoseconds.
+	 */
+	private final LatencyHistogram pushLatency = new LatencyHistogram();
+	
+	/**
+	 * Number of pushes for each type of the request and each result, the type being the
+	 * major index.
+	 */
+	private final LongAdder[] counts;
+	
+	/**
+	 * Number of pushes in flight.
+	 */
+	private final LongAdder inFlight = new LongAdder();
+	
+	/**
+	 * Number of exchanges that reused an open connection.
+	 */
+	private final LongAdder reused = new LongAdder();
+	
+	/**
+	 * Queue whose depth is reported, or null.
+	 */
+	private volatile PushQueue queue = null;
+	
+	/**
+	 * Listeners notified about the exchanges and the pushes.
+	 */
+	private final CopyOnWriteArrayList<Listener> listeners;
+	
+	/**
+	 * Creates new, empty metrics.
+	 */
+	public PushMetrics() {
+		counts = new LongAdder[Push.RequestType.values().length * RESULTS];
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = new LongAdder();
+		listeners = new CopyOnWriteArrayList<Listener>();
+	}
+	
+	/**
+	 * Adds a listener.
+	 * 
+	 * @param listener
+	 *           listener notified about every exchange and every push
+	 */
+	public void addListener(Listener listener) {
+		if (listener == null)
+			throw new NullPointerException("listener cannot be null");
+		listeners.add(listener);
+	}
+	
+	/**
+	 * Removes a listener.
+	 * 
+	 * @param listener
+	 *           listener that is no longer notified
+	 */
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+	
+	/**
+	 * Sets the queue whose depth is reported.
+	 * 
+	 * @param queue
+	 *           queue of the pushes, or null
+	 */
+	public void setQueue(PushQueue queue) {
+		this.queue = queue;
+	}
+	
+	/**
+	 * Registers these metrics in the platform MBean server.
+	 * 
+	 * @param name
+	 *           name that distinguishes these metrics from others
+	 * @return name under which the metrics were registered
+	 * @throws JMException
+	 *            when the metrics cannot be registered, for example because the name is
+	 *            already taken
+	 */
+	public ObjectName register(String name) throws JMException {
+		ObjectName objectName = new ObjectName(getClass().getPackage().getName()
+				+ ":type=PushMetrics,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		return objectName;
+	}
+	
+	/**
+	 * Records an exchange with a phone.
+	 * 
+	 * @param targetAddress
+	 *           URL to which the push was sent
+	 * @param connectNanos
+	 *           time spent establishing the connection, or -1 if an open connection was
+	 *           reused
+	 * @param writeNanos
+	 *           time spent writing the request
+	 * @param responseNanos
+	 *           time from the end of the request to the end of the response
+	 */
+	void exchanged(URL targetAddress, long connectNanos, long writeNanos, long responseNanos) {
+		if (connectNanos < 0)
+			reused.increment();
+		else
+			connectLatency.record(connectNanos);
+		writeLatency.record(writeNanos);
+		responseLatency.record(responseNanos);
+		for (Listener listener : listeners)
+			listener.exchanged(targetAddress, connectNanos, writeNanos, responseNanos);
+	}
+	
+	/**
+	 * Records the start of a push.
+	 */
+	void started() {
+		inFlight.increment();
+	}
+	
+	/**
+	 * Records the end of a push that was started.
+	 * 
+	 * @param phoneIP
+	 *           address of the phone
+	 * @param requestType
+	 *           type of the request of the push
+	 * @param result
+	 *           result of the push
+	 * @param nanos
+	 *           time of the whole push
+	 */
+	void finished(String phoneIP, Push.RequestType requestType, Result result, long nanos) {
+		inFlight.decrement();
+		counts[requestType.ordinal() * RESULTS + result.ordinal()].increment();
+		pushLatency.record(nanos);
+		for (Listener listener : listeners)
+			listener.finished(phoneIP, requestType, result, nanos);
+	}
+	
+	/**
+	 * Returns the latencies of establishing connections, in nanoseconds.
+	 * 
+	 * @return histogram of the latencies
+	 */
+	public LatencyHistogram getConnectLatency() {
+		return connectLatency;
+	}
+	
+	/**
+	 * Returns the latencies of writing requests, in nanoseconds.
+	 * 
+	 * @return histogram of the latencies
+	 */
+	public LatencyHistogram getWriteLatency() {
+		return writeLatency;
+	}
+	
+	/**
+	 * Returns the latencies of waiting for and reading responses, in nanoseconds.
+	 * 
+	 * @return histogram of the latencies
+	 */
+	public LatencyHistogram getResponseLatency() {
+		return responseLatency;
+	}
+	
+	/**
+	 * Returns the latencies of whole pushes, repetitions included, in nanoseconds.
+	 * 
+	 * @return histogram of the latencies
+	 */
+	public LatencyHistogram getPushLatency() {
+		return pushLatency;
+	}
+	
+	/**
+	 * Returns the number of pushes of the given type that ended with the given result.
+	 * 
+	 * @param requestType
+	 *           type of the request
+	 * @param result
+	 *           result of the push
+	 * @return number of pushes
+	 */
+	public long getCount(Push.RequestType requestType, Result result) {
+		return counts[requestType.ordinal() * RESULTS + result.ordinal()].sum();
+	}
+	
+	/**
+	 * Returns the number of pushes of any type that ended with the given result.
+	 * 
+	 * @param result
+	 *           result of the push
+	 * @return number of pushes
+	 */
+	public long getCount(Result result) {
+		long count = 0;
+		for (int i = result.ordinal(); i < counts.length; i += RESULTS)
+			count += counts[i].sum();
+		return count;
+	}
+	
+	@Override
+	public long getCount(String requestType, String result) {
+		return getCount(Push.RequestType.valueOf(requestType), Result.valueOf(result));
+	}
+	
+	@Override
+	public long getInFlight() {
+		return inFlight.sum();
+	}
+	
+	@Override
+	public int getQueueDepth() {
+		PushQueue localQueue = queue;
+		return localQueue == null ? 0 : localQueue.size();
+	}
+	
+	@Override
+	public long getPushes() {
+		long count = 0;
+		for (LongAdder adder : counts)
+			count += adder.sum();
+		return count;
+	}
+	
+	@Override
+	public long getAccepted() {
+		return getCount(Result.ACCEPTED);
+	}
+	
+	@Override
+	public long getRefused() {
+		return getCount(Result.REFUSED);
+	}
+	
+	@Override
+	public long getFailed() {
+		return getPushes() - getAccepted() - getRefused();
+	}
+	
+	@Override
+	public long getReusedConnections() {
+		return reused.sum();
+	}
+	
+	@Override
+	public double getConnectMeanMicros() {
+		return connectLatency.getMean() / 1000;
+	}
+	
+	@Override
+	public long getConnect99Micros() {
+		return connectLatency.getPercentile(0.99) / 1000;
+	}
+	
+	@Override
+	public double getWriteMeanMicros() {
+		return writeLatency.getMean() / 1000;
+	}
+	
+	@Override
+	public long getWrite99Micros() {
+		return writeLatency.getPercentile(0.99) / 1000;
+	}
+	
+	@Override
+	public double getResponseMeanMicros() {
+		return responseLatency.getMean() / 1000;
+	}
+	
+	@Override
+	public long getResponse99Micros() {
+		return responseLatency.getPercentile(0.99) / 1000;
+	}
+	
+	@Override
+	public double getPushMeanMicros() {
+		return pushLatency.getMean() / 1000;
+	}
+	
+	@Override
+	public long getPush99Micros() {
+		return pushLatency.getPercentile(0.99) / 1000;
+	}
+	
+}
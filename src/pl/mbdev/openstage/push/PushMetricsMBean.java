@@ -0,0 +1,144 @@
+package pl.mbdev.openstage.push;
+
+/**
+ * Management interface of {@link PushMetrics}, through which the metrics are visible in
+ * JMX consoles. Latencies are given in microseconds.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public interface PushMetricsMBean {
+	
+	/**
+	 * Returns the number of pushes being sent right now.
+	 * 
+	 * @return number of pushes in flight
+	 */
+	long getInFlight();
+	
+	/**
+	 * Returns the number of pushes waiting in the monitored queue.
+	 * 
+	 * @return depth of the queue, or 0 if no queue is monitored
+	 */
+	int getQueueDepth();
+	
+	/**
+	 * Returns the number of finished pushes.
+	 * 
+	 * @return number of pushes, whatever their result
+	 */
+	long getPushes();
+	
+	/**
+	 * Returns the number of pushes accepted by the phones.
+	 * 
+	 * @return number of accepted pushes
+	 */
+	long getAccepted();
+	
+	/**
+	 * Returns the number of pushes to which the phones responded without accepting them.
+	 * 
+	 * @return number of refused pushes
+	 */
+	long getRefused();
+	
+	/**
+	 * Returns the number of pushes that failed or were not sent.
+	 * 
+	 * @return number of failed pushes
+	 */
+	long getFailed();
+	
+	/**
+	 * Returns the number of exchanges that reused an open connection.
+	 * 
+	 * @return number of reused connections
+	 */
+	long getReusedConnections();
+	
+	/**
+	 * Returns the number of pushes of the given type that ended with the given result.
+	 * 
+	 * @param requestType
+	 *           name of the type of the request, see {@link Push.RequestType}
+	 * @param result
+	 *           name of the result, see {@link PushMetrics.Result}
+	 * @return number of pushes
+	 */
+	long getCount(String requestType, String result);
+	
+	/**
+	 * Returns the average time of establishing a connection.
+	 * 
+	 * @return average latency, in microseconds
+	 */
+	double getConnectMeanMicros();
+	
+	/**
+	 * Returns the 99th percentile of the time of establishing a connection.
+	 * 
+	 * @return 99th percentile of the latency, in microseconds
+	 */
+	long getConnect99Micros();
+	
+	/**
+	 * Returns the average time of writing a request.
+	 * 
+	 * @return average latency, in microseconds
+	 */
+	double getWriteMeanMicros();
+	
+	/**
+	 * Returns the 99th percentile of the time of writing a request.
+	 * 
+	 * @return 99th percentile of the latency, in microseconds
+	 */
+	long getWrite99Micros();
+	
+	/**
+	 * Returns the average time of waiting for and reading a response.
+	 * 
+	 * @return average latency, in microseconds
+	 */
+	double getResponseMeanMicros();
+	
+	/**
+	 * Returns the 99th percentile of the time of waiting for and reading a response.
+	 * 
+	 * @return 99th percentile of the latency, in microseconds
+	 */
+	long getResponse99Micros();
+	
+	/**
+	 * Returns the average time of a whole push, repetitions included.
+	 * 
+	 * @return average latency, in microseconds
+	 */
+	double getPushMeanMicros();
+	
+	/**
+	 * Returns the 99th percentile of the time of a whole push, repetitions included.
+	 * 
+	 * @return 99th percentile of the latency, in microseconds
+	 */
+	long getPush99Micros();
+	
+}
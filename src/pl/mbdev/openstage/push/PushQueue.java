@@ -0,0 +1,618 @@
+package pl.mbdev.openstage.push;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Queue that decides which push is sent next, according to the type of the request:
+ * FORCE pushes go first, then ACTIVE, INDICATE and QUEUE ones. To prevent starvation,
+ * a push gains one level of priority for every aging interval it waits, so low priority
+ * pushes are delayed, but never stopped, by a stream of urgent ones. A push queued for a
+ * phone is therefore sent before the waiting pushes of lower priority to the same phone.
+ * Only the waiting pushes of the same application with lower priority are dropped, since
+ * the new push launches that application anyway.<br />
+ * <br />
+ * Priorities matter only when pushes have to wait, so the queue limits the number of
+ * pushes it gives at the same time to the underlying {@link KeyedExecutor}; this limit
+ * should be about the number of threads of the executor. There is no lock shared by all
+ * phones: the waiting pushes of each phone are guarded by a lock of their own, each
+ * priority level is a lock-free queue, and pushes are given to the executor by one thread
+ * at a time, whichever thread asks for it first.<br />
+ * <br />
+ * Optionally, pushes can be coalesced: each push is then held in the queue for a short
+ * window, and a push of the same application to the same phone that arrives while the
+ * first one still waits is merged into it instead of being sent again, see
+ * {@link #setCoalescing(long, TimeUnit, ScheduledExecutorService)}.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public class PushQueue {
+	
+	/**
+	 * Job that was dropped from the queue, and has to be notified about it once the lock
+	 * of its phone is released.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private static class Notice {
+		
+		/**
+		 * Job that was dropped.
+		 */
+		final PushJob job;
+		
+		/**
+		 * Job that caused the drop.
+		 */
+		final PushJob by;
+		
+		/**
+		 * True if the job was coalesced, false if it was superseded.
+		 */
+		final boolean coalesced;
+		
+		/**
+		 * Creates new notice.
+		 * 
+		 * @param job
+		 *           job that was dropped
+		 * @param by
+		 *           job that caused the drop
+		 * @param coalesced
+		 *           true if the job was coalesced, false if it was superseded
+		 */
+		Notice(PushJob job, PushJob by, boolean coalesced) {
+			this.job = job;
+			this.by = by;
+			this.coalesced = coalesced;
+		}
+		
+	}
+	
+	/**
+	 * Jobs waiting for a single phone. The jobs, and the fields of the jobs that describe
+	 * their place in the queue, are guarded by this object.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private static class Waiting {
+		
+		/**
+		 * Waiting jobs, oldest first.
+		 */
+		final ArrayList<PushJob> jobs = new ArrayList<PushJob>(2);
+		
+		/**
+		 * True when this object is removed from the queue, because it has no jobs, and must
+		 * not be used any more.
+		 */
+		boolean retired = false;
+		
+	}
+	
+	/**
+	 * Default time after which a waiting push gains one level of priority, in
+	 * milliseconds.
+	 */
+	public static final long DEFAULT_AGING_INTERVAL = 2000;
+	
+	/**
+	 * Number of priority levels.
+	 */
+	private static final int LEVELS = 4;
+	
+	/**
+	 * Executor that sends the pushes, one at a time for each phone.
+	 */
+	private final KeyedExecutor<String> executor;
+	
+	/**
+	 * Maximum number of pushes given to the executor at the same time.
+	 */
+	private final int maxInFlight;
+	
+	/**
+	 * Time after which a waiting push gains one level of priority, in nanoseconds.
+	 */
+	private final long agingInterval;
+	
+	/**
+	 * Waiting jobs, separately for each priority level, oldest first. Jobs that left the
+	 * queue or moved to another level are removed only when they reach the head, and only
+	 * by the thread that drains the queue.
+	 */
+	private final ConcurrentLinkedQueue<PushJob>[] levels;
+	
+	/**
+	 * Waiting jobs, by the address of the phone.
+	 */
+	private final ConcurrentHashMap<String, Waiting> byPhone;
+	
+	/**
+	 * Number of waiting jobs.
+	 */
+	private final AtomicInteger size = new AtomicInteger();
+	
+	/**
+	 * Number of jobs given to the executor and not finished yet.
+	 */
+	private final AtomicInteger inFlight = new AtomicInteger();
+	
+	/**
+	 * Number of requests to drain the queue that were not yet seen by the thread which
+	 * drains it, 0 if no thread drains it now.
+	 */
+	private final AtomicInteger drainRequests = new AtomicInteger();
+	
+	/**
+	 * Time for which each job is held in the queue before it can be sent, in nanoseconds,
+	 * or 0 if jobs are not coalesced.
+	 */
+	private volatile long coalescingWindow = 0;
+	
+	/**
+	 * Wakes the queue up when a held job can be sent, null if jobs are not coalesced.
+	 */
+	private volatile ScheduledExecutorService scheduler = null;
+	
+	/**
+	 * Log to which the jobs are recorded, may be null.
+	 */
+	private volatile PushJournal journal = null;
+	
+	/**
+	 * Number of finished jobs that could not be marked as finished in the journal.
+	 */
+	private final LongAdder journalFailures = new LongAdder();
+	
+	/**
+	 * True if the queue was ever set to be woken up. Used only by the thread that drains
+	 * the queue.
+	 */
+	private boolean wakeUpScheduled = false;
+	
+	/**
+	 * Time at which the queue is going to be woken up, as given by
+	 * {@link System#nanoTime()}, the queue is not going to be woken up if it is already
+	 * past. Used only by the thread that drains the queue.
+	 */
+	private long wakeUpAt;
+	
+	/**
+	 * Creates new queue that gives all pushes to the executor immediately, so the order is
+	 * decided only by the executor.
+	 * 
+	 * @param executor
+	 *           executor that sends the pushes
+	 */
+	public PushQueue(KeyedExecutor<String> executor) {
+		this(executor, Integer.MAX_VALUE, DEFAULT_AGING_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Creates new queue.
+	 * 
+	 * @param executor
+	 *           executor that sends the pushes
+	 * @param maxInFlight
+	 *           maximum number of pushes given to the executor at the same time
+	 * @param agingInterval
+	 *           time after which a waiting push gains one level of priority
+	 * @param unit
+	 *           unit of the aging interval
+	 */
+	public PushQueue(KeyedExecutor<String> executor, int maxInFlight, long agingInterval,
+			TimeUnit unit) {
+		if (executor == null)
+			throw new NullPointerException("executor cannot be null");
+		if (maxInFlight < 1)
+			throw new IllegalArgumentException("at least one push must be allowed at a time");
+		if (agingInterval <= 0)
+			throw new IllegalArgumentException("aging interval must be positive");
+		this.executor = executor;
+		this.maxInFlight = maxInFlight;
+		this.agingInterval = unit.toNanos(agingInterval);
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		ConcurrentLinkedQueue<PushJob>[] created = new ConcurrentLinkedQueue[LEVELS];
+		for (int i = 0; i < LEVELS; i++)
+			created[i] = new ConcurrentLinkedQueue<PushJob>();
+		this.levels = created;
+		this.byPhone = new ConcurrentHashMap<String, Waiting>();
+	}
+	
+	/**
+	 * Enables or disables coalescing of pushes. When enabled, every push is held in the
+	 * queue for the given window before it can be sent. A push that launches the same
+	 * application on the same phone as a push that still waits is merged into the waiting
+	 * one, which keeps its place in the queue, but is sent with the server context of the
+	 * later push and with the more important type of request of the two.
+	 * 
+	 * @param window
+	 *           time for which each push is held, or 0 to disable coalescing
+	 * @param unit
+	 *           unit of the window
+	 * @param scheduler
+	 *           scheduler that wakes the queue up when held pushes can be sent, may be
+	 *           null only when coalescing is disabled
+	 */
+	public void setCoalescing(long window, TimeUnit unit, ScheduledExecutorService scheduler) {
+		if (window < 0)
+			throw new IllegalArgumentException("coalescing window cannot be negative");
+		if (window > 0 && scheduler == null)
+			throw new NullPointerException("scheduler is required for coalescing");
+		this.scheduler = window > 0 ? scheduler : null;
+		this.coalescingWindow = unit.toNanos(window);
+		drain();
+	}
+	
+	/**
+	 * Sets the log to which all submitted jobs are recorded, so that the jobs that were
+	 * not finished can be queued again after a restart. The jobs of a batch given to
+	 * {@link #submitAll(Collection)} are recorded together.
+	 * 
+	 * @param journal
+	 *           push journal, or null if jobs should not be recorded
+	 */
+	public void setJournal(PushJournal journal) {
+		this.journal = journal;
+	}
+	
+	/**
+	 * Returns the priority level of the given type of request.
+	 * 
+	 * @param requestType
+	 *           type of the request
+	 * @return priority level, higher is more important
+	 */
+	public static int priorityOf(Push.RequestType requestType) {
+		switch (requestType) {
+			case FORCE:
+				return 3;
+			case ACTIVE:
+				return 2;
+			case INDICATE:
+				return 1;
+			default:
+				return 0;
+		}
+	}
+	
+	/**
+	 * Adds a job to the queue, dropping the waiting jobs of the same application with
+	 * lower priority to the same phone. If coalescing is enabled and a job of the same
+	 * application to the same phone is already waiting, the new job is merged into it.
+	 * 
+	 * @param job
+	 *           push to a single phone
+	 */
+	public void submit(PushJob job) {
+		submitAll(Collections.singletonList(job));
+	}
+	
+	/**
+	 * Adds many jobs to the queue at once, as if they were submitted one after another,
+	 * but recording them to the journal together and draining the queue only once.
+	 * 
+	 * @param jobs
+	 *           pushes to single phones
+	 * @throws RuntimeException
+	 *            when the jobs cannot be recorded to the journal
+	 */
+	public void submitAll(Collection<? extends PushJob> jobs) {
+		PushJournal localJournal = journal;
+		if (localJournal != null) {
+			try {
+				localJournal.appendAll(jobs);
+			} catch (IOException e) {
+				throw new RuntimeException("cannot record pushes to the journal", e);
+			}
+		}
+		ArrayList<Notice> notices = new ArrayList<Notice>();
+		for (PushJob job : jobs)
+			enqueue(job, notices);
+		for (Notice notice : notices) {
+			if (notice.coalesced)
+				notice.job.coalesced(notice.by);
+			else
+				notice.job.superseded(notice.by);
+			complete(notice.job);
+		}
+		drain();
+	}
+	
+	/**
+	 * Adds a job to the queue, under the lock of its phone.
+	 * 
+	 * @param job
+	 *           push to a single phone
+	 * @param notices
+	 *           list to which the jobs that have to be notified are added
+	 */
+	private void enqueue(PushJob job, ArrayList<Notice> notices) {
+		long window = coalescingWindow;
+		for (;;) {
+			Waiting waiting = byPhone.get(job.getPhoneIP());
+			if (waiting == null) {
+				Waiting created = new Waiting();
+				waiting = byPhone.putIfAbsent(job.getPhoneIP(), created);
+				if (waiting == null)
+					waiting = created;
+			}
+			synchronized (waiting) {
+				if (waiting.retired)
+					continue;
+				PushJob survivor = job;
+				if (window > 0)
+					for (PushJob other : waiting.jobs)
+						if (other.getPush().isSameApplication(job.getPush())) {
+							Push merged = job.getPush();
+							Push.RequestType otherType = other.getPush().getRequestType();
+							if (priorityOf(otherType) > priorityOf(merged.getRequestType()))
+								merged = merged.withRequestType(otherType);
+							other.setPush(merged);
+							survivor = other;
+							notices.add(new Notice(job, other, true));
+							break;
+						}
+				int priority = priorityOf(survivor.getPush().getRequestType());
+				for (int i = waiting.jobs.size() - 1; i >= 0; i--) {
+					PushJob other = waiting.jobs.get(i);
+					if (other != survivor
+							&& other.getPush().isSameApplication(survivor.getPush())
+							&& priorityOf(other.getPush().getRequestType()) < priority) {
+						notices.add(new Notice(other, survivor, false));
+						other.removed = true;
+						waiting.jobs.remove(i);
+						size.decrementAndGet();
+					}
+				}
+				if (survivor == job) {
+					job.enqueuedAt = System.nanoTime();
+					job.level = priority;
+					waiting.jobs.add(job);
+					size.incrementAndGet();
+					levels[priority].add(job);
+				} else if (survivor.level != priority) {
+					// the entry at the old level is skipped when it reaches the head
+					survivor.level = priority;
+					levels[priority].add(survivor);
+				}
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Removes from the queue the job that should be sent next. Jobs that are still held
+	 * are not taken into account, and if there are only such jobs, the queue is woken up
+	 * when the first of them can be sent. Must be called only by the thread that drains
+	 * the queue.
+	 * 
+	 * @return the next job, or null if there is no job that can be sent now
+	 */
+	private PushJob poll() {
+		long window = coalescingWindow;
+		for (;;) {
+			long now = System.nanoTime();
+			int best = -1;
+			long bestPriority = Long.MIN_VALUE;
+			long held = Long.MAX_VALUE;
+			for (int level = LEVELS - 1; level >= 0; level--) {
+				ConcurrentLinkedQueue<PushJob> queue = levels[level];
+				PushJob head;
+				while ((head = queue.peek()) != null && (head.removed || head.level != level))
+					queue.poll();
+				if (head == null)
+					continue;
+				long waited = now - head.enqueuedAt - window;
+				if (waited < 0) {
+					held = Math.min(held, -waited);
+					continue;
+				}
+				long effective = level + waited / agingInterval;
+				if (effective > bestPriority) {
+					best = level;
+					bestPriority = effective;
+				}
+			}
+			if (best < 0) {
+				if (held != Long.MAX_VALUE)
+					wakeUpAfter(now, held);
+				return null;
+			}
+			PushJob job = levels[best].poll();
+			if (take(job, best))
+				return job;
+			// the job was dropped or moved meanwhile, look again
+		}
+	}
+	
+	/**
+	 * Removes the job from the jobs waiting for its phone, unless it was dropped or moved
+	 * to another priority level meanwhile.
+	 * 
+	 * @param job
+	 *           job at the head of a priority level
+	 * @param level
+	 *           priority level at which the job was found
+	 * @return true if the job was removed and can be sent
+	 */
+	private boolean take(PushJob job, int level) {
+		Waiting waiting = byPhone.get(job.getPhoneIP());
+		if (waiting == null)
+			return false;
+		synchronized (waiting) {
+			if (job.removed || job.level != level)
+				return false;
+			job.removed = true;
+			waiting.jobs.remove(job);
+			if (waiting.jobs.isEmpty()) {
+				waiting.retired = true;
+				byPhone.remove(job.getPhoneIP(), waiting);
+			}
+		}
+		size.decrementAndGet();
+		return true;
+	}
+	
+	/**
+	 * Makes sure that the queue is woken up after the given time. Must be called only by
+	 * the thread that drains the queue.
+	 * 
+	 * @param now
+	 *           current time, as given by {@link System#nanoTime()}
+	 * @param delay
+	 *           time after which the queue is woken up, in nanoseconds
+	 */
+	private void wakeUpAfter(long now, long delay) {
+		ScheduledExecutorService localScheduler = scheduler;
+		if (localScheduler == null)
+			return;
+		long at = now + delay;
+		if (wakeUpScheduled && wakeUpAt - now > 0 && wakeUpAt - at <= 0)
+			return;
+		wakeUpScheduled = true;
+		wakeUpAt = at;
+		localScheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, delay, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Gives waiting jobs to the executor, as many as the limit allows. Only one thread
+	 * drains the queue at a time; when another thread already does it, it is only asked
+	 * to look at the queue once more.
+	 */
+	private void drain() {
+		if (drainRequests.getAndIncrement() != 0)
+			return;
+		int requests = 1;
+		do {
+			try {
+				dispatch();
+			} catch (RuntimeException e) {
+				drainRequests.set(0);
+				throw e;
+			}
+			requests = drainRequests.addAndGet(-requests);
+		} while (requests != 0);
+	}
+	
+	/**
+	 * Gives waiting jobs to the executor, as many as the limit allows. Must be called only
+	 * by the thread that drains the queue.
+	 */
+	private void dispatch() {
+		while (inFlight.get() < maxInFlight) {
+			final PushJob job = poll();
+			if (job == null)
+				return;
+			inFlight.incrementAndGet();
+			try {
+				executor.execute(job.getPhoneIP(), new Runnable() {
+					@Override
+					public void run() {
+						try {
+							job.run();
+						} finally {
+							complete(job);
+							inFlight.decrementAndGet();
+							drain();
+						}
+					}
+				});
+			} catch (RuntimeException e) {
+				inFlight.decrementAndGet();
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * Marks the job as finished in the journal in which it was recorded, if any.
+	 * 
+	 * @param job
+	 *           job that was sent or dropped
+	 */
+	private void complete(PushJob job) {
+		PushJournal localJournal = journal;
+		if (job.journalId == 0 || localJournal == null)
+			return;
+		try {
+			localJournal.complete(job.journalId);
+		} catch (IOException e) {
+			journalFailures.increment();
+			journalFailed(job, e);
+		}
+	}
+	
+	/**
+	 * Called when a finished job could not be marked as finished in the journal, so it
+	 * will be sent again after a restart. The default implementation does nothing, the
+	 * failures are only counted, see {@link #getJournalFailures()}.
+	 * 
+	 * @param job
+	 *           job that was sent or dropped
+	 * @param e
+	 *           reason of the failure
+	 */
+	protected void journalFailed(PushJob job, IOException e) {
+	}
+	
+	/**
+	 * Returns the number of finished jobs that could not be marked as finished in the
+	 * journal.
+	 * 
+	 * @return number of failures of the journal
+	 */
+	public long getJournalFailures() {
+		return journalFailures.sum();
+	}
+	
+	/**
+	 * Returns the number of waiting jobs.
+	 * 
+	 * @return number of jobs not yet given to the executor
+	 */
+	public int size() {
+		return size.get();
+	}
+	
+	/**
+	 * Returns the number of jobs given to the executor and not finished yet.
+	 * 
+	 * @return number of jobs being sent
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+	
+}
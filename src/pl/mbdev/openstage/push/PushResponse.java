@@ -0,0 +1,432 @@
+package pl.mbdev.openstage.push;
+
+import java.util.Arrays;
+
+/**
+ * Response of the phone to a push request: HTTP status, whether the phone accepted the
+ * push, and the reason if it did not. The body of the response is classified directly
+ * from bytes, by looking for known words, and is not kept. Only whole words count, so
+ * "unlocked" does not mean that the phone is locked; a word after "not" is ignored,
+ * except for "not allowed", and so is a word followed by '=', which names a value, like
+ * "rejected=0". Common responses are represented by shared instances, so that a
+ * broadcast to many phones does not create an object for each of them.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public final class PushResponse {
+	
+	/**
+	 * Reasons for which the phone does not accept a push.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	public enum Reason {
+		/**
+		 * Push was accepted.
+		 */
+		NONE,
+		/**
+		 * Phone is busy, for example with a call.
+		 */
+		BUSY,
+		/**
+		 * Phone is locked.
+		 */
+		LOCKED,
+		/**
+		 * Phone refused the push for another reason, for example because the application
+		 * is not allowed to push.
+		 */
+		DENIED,
+		/**
+		 * HTTP status of the response is not successful.
+		 */
+		HTTP_ERROR;
+	}
+	
+	/**
+	 * Words looked for in the body of the response, in lower case and already encoded.
+	 */
+	private static final byte[][] WORDS = { bytes("busy"), bytes("locked"),
+			bytes("reject"), bytes("rejected"), bytes("denied"), bytes("refused"),
+			bytes("allowed") };
+	
+	/**
+	 * Reasons indicated by the words, at the same indices.
+	 */
+	private static final Reason[] REASONS = { Reason.BUSY, Reason.LOCKED, Reason.DENIED,
+			Reason.DENIED, Reason.DENIED, Reason.DENIED, Reason.DENIED };
+	
+	/**
+	 * Index of the only word that indicates its reason after "not", and only then.
+	 */
+	private static final int ALLOWED = 6;
+	
+	/**
+	 * Word that negates the next word.
+	 */
+	private static final byte[] NOT = bytes("not");
+	
+	/**
+	 * Length of the longest word.
+	 */
+	private static final int MAX_WORD_LENGTH = 8;
+	
+	/**
+	 * Shared responses with status 200, one for each reason.
+	 */
+	private static final PushResponse[] OK = new PushResponse[Reason.values().length];
+	
+	static {
+		for (Reason reason : Reason.values())
+			OK[reason.ordinal()] = new PushResponse(200, reason);
+	}
+	
+	/**
+	 * HTTP status of the response.
+	 */
+	private final int status;
+	
+	/**
+	 * Reason why the push was not accepted.
+	 */
+	private final Reason reason;
+	
+	/**
+	 * Creates new response.
+	 * 
+	 * @param status
+	 *           HTTP status of the response
+	 * @param reason
+	 *           reason why the push was not accepted
+	 */
+	private PushResponse(int status, Reason reason) {
+		this.status = status;
+		this.reason = reason;
+	}
+	
+	/**
+	 * Returns the response with the given status and reason, reusing a shared instance if
+	 * there is one.
+	 * 
+	 * @param status
+	 *           HTTP status of the response
+	 * @param reason
+	 *           reason why the push was not accepted
+	 * @return the response
+	 */
+	public static PushResponse of(int status, Reason reason) {
+		if (reason == null)
+			throw new NullPointerException("reason cannot be null");
+		if (status == 200)
+			return OK[reason.ordinal()];
+		return new PushResponse(status, reason);
+	}
+	
+	/**
+	 * Encodes the given ASCII text.
+	 * 
+	 * @param text
+	 *           the text
+	 * @return bytes of the text
+	 */
+	private static byte[] bytes(String text) {
+		byte[] bytes = new byte[text.length()];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) text.charAt(i);
+		return bytes;
+	}
+	
+	/**
+	 * Returns the HTTP status of the response.
+	 * 
+	 * @return HTTP status
+	 */
+	public int getStatus() {
+		return status;
+	}
+	
+	/**
+	 * Checks if the phone accepted the push.
+	 * 
+	 * @return true if the status is successful and the phone did not indicate any reason
+	 *         for not accepting the push
+	 */
+	public boolean isAccepted() {
+		return reason == Reason.NONE;
+	}
+	
+	/**
+	 * Returns the reason why the phone did not accept the push.
+	 * 
+	 * @return the reason, {@link Reason#NONE} if the push was accepted
+	 */
+	public Reason getReason() {
+		return reason;
+	}
+	
+	@Override
+	public String toString() {
+		return status + " " + reason;
+	}
+	
+	/**
+	 * Classifies the body of a response as it is being read. One parser is kept for each
+	 * thread and reused for all responses read by that thread, see {@link #get()}. The
+	 * first line of the body is kept only for the callers that still need it as text. The
+	 * parser also holds the timings of the exchange, for {@link PushMetrics}.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	static final class Parser {
+		
+		/**
+		 * Maximum number of bytes of the first line that are kept; the rest of a longer
+		 * line is dropped, so that a body without line breaks is not copied to the heap.
+		 */
+		private static final int MAX_LINE_LENGTH = 1024;
+		
+		/**
+		 * Parsers of the threads.
+		 */
+		private static final ThreadLocal<Parser> parsers = new ThreadLocal<Parser>() {
+			
+			@Override
+			protected Parser initialValue() {
+				return new Parser();
+			}
+			
+		};
+		
+		/**
+		 * Buffer for reading, also used for the status line and the headers.
+		 */
+		final byte[] buffer = new byte[512];
+		
+		/**
+		 * Time spent establishing the connection, in nanoseconds, or -1 if an open
+		 * connection was reused.
+		 */
+		long connectNanos;
+		
+		/**
+		 * Time spent writing the request, in nanoseconds.
+		 */
+		long writeNanos;
+		
+		/**
+		 * Time from the end of the request to the end of the response, in nanoseconds.
+		 */
+		long responseNanos;
+		
+		/**
+		 * Letters of the current word, in lower case.
+		 */
+		private final byte[] word = new byte[MAX_WORD_LENGTH];
+		
+		/**
+		 * Number of letters of the current word, or -1 if it is longer than any of the
+		 * known words or is not ASCII.
+		 */
+		private int wordLength;
+		
+		/**
+		 * True if the last byte was a part of a word.
+		 */
+		private boolean inWord;
+		
+		/**
+		 * True if the last word was "not".
+		 */
+		private boolean afterNot;
+		
+		/**
+		 * Reason found in the body, or null.
+		 */
+		private Reason found;
+		
+		/**
+		 * Bytes of the first line of the body, at most {@link #MAX_LINE_LENGTH}.
+		 */
+		private byte[] line = new byte[128];
+		
+		/**
+		 * Number of bytes of the first line.
+		 */
+		private int lineLength;
+		
+		/**
+		 * True if the whole first line was read.
+		 */
+		private boolean lineComplete;
+		
+		/**
+		 * True if there was any byte of the body.
+		 */
+		private boolean any;
+		
+		/**
+		 * Returns the parser of the current thread, ready for a new response.
+		 * 
+		 * @return the parser
+		 */
+		static Parser get() {
+			Parser parser = parsers.get();
+			parser.reset();
+			return parser;
+		}
+		
+		/**
+		 * Prepares this parser for a new response.
+		 */
+		void reset() {
+			wordLength = 0;
+			inWord = false;
+			afterNot = false;
+			found = null;
+			connectNanos = -1;
+			writeNanos = 0;
+			responseNanos = 0;
+			lineLength = 0;
+			lineComplete = false;
+			any = false;
+		}
+		
+		/**
+		 * Consumes the given bytes of the body.
+		 * 
+		 * @param src
+		 *           buffer with the bytes
+		 * @param off
+		 *           offset of the bytes in the buffer
+		 * @param len
+		 *           number of the bytes
+		 */
+		void update(byte[] src, int off, int len) {
+			for (int i = off; i < off + len; i++)
+				update(src[i]);
+		}
+		
+		/**
+		 * Consumes the next byte of the body.
+		 * 
+		 * @param b
+		 *           the byte
+		 */
+		void update(int b) {
+			any = true;
+			if (!lineComplete) {
+				if (b == '\n') {
+					lineComplete = true;
+				} else if (lineLength < MAX_LINE_LENGTH) {
+					if (lineLength == line.length)
+						line = Arrays.copyOf(line, Math.min(lineLength * 2, MAX_LINE_LENGTH));
+					line[lineLength++] = (byte) b;
+				}
+			}
+			if (found != null && found != Reason.DENIED)
+				return;
+			if (b >= 'A' && b <= 'Z')
+				b += 'a' - 'A';
+			if (b >= 'a' && b <= 'z' || (b & 0x80) != 0) {
+				// bytes of other characters are parts of words as well
+				inWord = true;
+				if (wordLength >= 0 && wordLength < MAX_WORD_LENGTH && (b & 0x80) == 0)
+					word[wordLength++] = (byte) b;
+				else
+					wordLength = -1;
+				return;
+			}
+			if (inWord)
+				endWord(b);
+		}
+		
+		/**
+		 * Classifies the word that has just ended.
+		 * 
+		 * @param next
+		 *           byte that ended the word, or -1 at the end of the body
+		 */
+		private void endWord(int next) {
+			boolean not = false;
+			if (wordLength > 0 && next != '=') {
+				not = matches(NOT);
+				for (int w = 0; w < WORDS.length; w++) {
+					if (!matches(WORDS[w]) || (w == ALLOWED) != afterNot)
+						continue;
+					// a specific reason is more useful than a general refusal
+					if (found == null || REASONS[w] != Reason.DENIED)
+						found = REASONS[w];
+					break;
+				}
+			}
+			afterNot = not;
+			inWord = false;
+			wordLength = 0;
+		}
+		
+		/**
+		 * Checks if the current word is the given one.
+		 * 
+		 * @param known
+		 *           one of the known words
+		 * @return true if the words are equal
+		 */
+		private boolean matches(byte[] known) {
+			if (known.length != wordLength)
+				return false;
+			for (int i = 0; i < wordLength; i++)
+				if (word[i] != known[i])
+					return false;
+			return true;
+		}
+		
+		/**
+		 * Returns the classified response, after the whole body was consumed.
+		 * 
+		 * @param status
+		 *           HTTP status of the response
+		 * @return the response
+		 */
+		PushResponse finish(int status) {
+			if (inWord)
+				endWord(-1);
+			if (status < 200 || status > 299)
+				return PushResponse.of(status, Reason.HTTP_ERROR);
+			return PushResponse.of(status, found == null ? Reason.NONE : found);
+		}
+		
+		/**
+		 * Returns the first line of the body as text.
+		 * 
+		 * @return the first line, cut after {@link #MAX_LINE_LENGTH} bytes, or null if the
+		 *         body was empty
+		 */
+		String firstLine() {
+			if (!any)
+				return null;
+			int end = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1
+					: lineLength;
+			return new String(line, 0, end, FormEncoding.UTF8);
+		}
+		
+	}
+	
+}
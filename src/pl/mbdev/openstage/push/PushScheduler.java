@@ -0,0 +1,528 @@
+package pl.mbdev.openstage.push;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends pushes at given times, once or repeatedly, for example reminders about meetings
+ * or shift changes. Scheduled pushes are kept in a hierarchical timing wheel: four wheels
+ * of 256 slots, each slot of a wheel covering a whole turn of the previous wheel. A push
+ * is put into a slot according to its time, and moved to the lower wheels as the time
+ * comes, so that scheduling, cancelling and rescheduling take constant time, no matter
+ * how many pushes are scheduled.<br />
+ * <br />
+ * Time is measured in ticks of a fixed length, which is also the precision of the
+ * scheduler. Every tick, all pushes that became due are given to the {@link PushQueue}
+ * together, as one batch. If the queue does not accept the batch, its pushes are not sent
+ * at this time, and are reported to {@link #submitFailed(List, RuntimeException)}; a
+ * periodic push is still sent at its next repetition.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public class PushScheduler {
+	
+	/**
+	 * Number of bits of the tick number that select the slot of a wheel.
+	 */
+	private static final int SLOT_BITS = 8;
+	
+	/**
+	 * Number of slots of each wheel.
+	 */
+	private static final int SLOTS = 1 << SLOT_BITS;
+	
+	/**
+	 * Mask that selects the slot of a wheel.
+	 */
+	private static final long SLOT_MASK = SLOTS - 1;
+	
+	/**
+	 * Number of wheels.
+	 */
+	private static final int WHEELS = 4;
+	
+	/**
+	 * Longest delay that fits into the wheels, in ticks. Pushes scheduled later are put
+	 * into the last wheel as if they were due at this delay, and are moved further when
+	 * their slot comes.
+	 */
+	private static final long MAX_DELAY = (1L << (SLOT_BITS * WHEELS)) - 1;
+	
+	/**
+	 * Push of a scheduled push that became due, given to the queue.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private class Release extends PushJob {
+		
+		/**
+		 * Scheduled push that became due.
+		 */
+		private final ScheduledPush scheduled;
+		
+		/**
+		 * Creates new job for the given scheduled push.
+		 * 
+		 * @param scheduled
+		 *           scheduled push that became due
+		 */
+		Release(ScheduledPush scheduled) {
+			super(scheduled.getPush(), scheduled.getPhoneIP());
+			this.scheduled = scheduled;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				getPush().send(getPhoneIP(), retryPolicy, circuitBreaker);
+				scheduled.setLastError(null);
+			} catch (IOException e) {
+				scheduled.setLastError(e);
+			}
+		}
+		
+		@Override
+		protected void superseded(PushJob by) {
+		}
+		
+		@Override
+		protected void coalesced(PushJob into) {
+		}
+		
+	}
+	
+	/**
+	 * Queue to which pushes are given when they become due.
+	 */
+	private final PushQueue queue;
+	
+	/**
+	 * Length of a tick, in nanoseconds.
+	 */
+	private final long tick;
+	
+	/**
+	 * Time of the tick number 0, as given by {@link System#nanoTime()}.
+	 */
+	private final long origin;
+	
+	/**
+	 * Heads of the lists of pushes in the slots of the wheels.
+	 */
+	private final ScheduledPush[][] wheels;
+	
+	/**
+	 * Number of the next tick to process.
+	 */
+	private long currentTick = 0;
+	
+	/**
+	 * Number of scheduled pushes.
+	 */
+	private int size = 0;
+	
+	/**
+	 * Thread that processes the ticks, or null if the scheduler is stopped.
+	 */
+	private Thread worker = null;
+	
+	/**
+	 * Defines when and how often failed pushes are repeated.
+	 */
+	private volatile RetryPolicy retryPolicy = RetryPolicy.NONE;
+	
+	/**
+	 * Rejects pushes to phones that keep failing, may be null.
+	 */
+	private volatile CircuitBreaker circuitBreaker = null;
+	
+	/**
+	 * Number of due pushes that were not accepted by the queue.
+	 */
+	private final LongAdder submitFailures = new LongAdder();
+	
+	/**
+	 * Creates new scheduler. It does not send anything until it is started.
+	 * 
+	 * @param queue
+	 *           queue to which pushes are given when they become due
+	 * @param tickDuration
+	 *           length of a tick, i.e. precision of the scheduler
+	 * @param unit
+	 *           unit of the tick length
+	 */
+	public PushScheduler(PushQueue queue, long tickDuration, TimeUnit unit) {
+		if (queue == null)
+			throw new NullPointerException("queue cannot be null");
+		if (tickDuration <= 0)
+			throw new IllegalArgumentException("tick duration must be positive");
+		this.queue = queue;
+		this.tick = unit.toNanos(tickDuration);
+		this.origin = System.nanoTime();
+		this.wheels = new ScheduledPush[WHEELS][SLOTS];
+		for (int wheel = 0; wheel < WHEELS; wheel++)
+			for (int slot = 0; slot < SLOTS; slot++)
+				wheels[wheel][slot] = new ScheduledPush(this, null, null, 0);
+	}
+	
+	/**
+	 * Sets the policy that defines when and how often failed pushes are repeated.
+	 * 
+	 * @param retryPolicy
+	 *           retry policy, {@link RetryPolicy#NONE} by default
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		if (retryPolicy == null)
+			throw new NullPointerException("retry policy cannot be null");
+		this.retryPolicy = retryPolicy;
+	}
+	
+	/**
+	 * Sets the circuit breaker that rejects pushes to phones that keep failing.
+	 * 
+	 * @param circuitBreaker
+	 *           circuit breaker, or null if all pushes should be attempted
+	 */
+	public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+		this.circuitBreaker = circuitBreaker;
+	}
+	
+	/**
+	 * Schedules the push to be sent once, after the given delay.
+	 * 
+	 * @param push
+	 *           push that will be sent
+	 * @param phoneIP
+	 *           address of the target phone
+	 * @param delay
+	 *           time from now after which the push is sent
+	 * @param unit
+	 *           unit of the delay
+	 * @return scheduled push, which can be cancelled or rescheduled
+	 */
+	public ScheduledPush schedule(Push push, String phoneIP, long delay, TimeUnit unit) {
+		ScheduledPush scheduled = create(push, phoneIP, 0);
+		reschedule(scheduled, delay, unit);
+		return scheduled;
+	}
+	
+	/**
+	 * Schedules the push to be sent repeatedly, first after the given delay, and then
+	 * every period. If the scheduler falls behind, missed repetitions are skipped.
+	 * 
+	 * @param push
+	 *           push that will be sent
+	 * @param phoneIP
+	 *           address of the target phone
+	 * @param initialDelay
+	 *           time from now after which the push is sent for the first time
+	 * @param period
+	 *           time between repetitions, at least one tick
+	 * @param unit
+	 *           unit of the delay and the period
+	 * @return scheduled push, which can be cancelled or rescheduled
+	 */
+	public ScheduledPush scheduleAtFixedRate(Push push, String phoneIP, long initialDelay,
+			long period, TimeUnit unit) {
+		if (period <= 0)
+			throw new IllegalArgumentException("period must be positive");
+		ScheduledPush scheduled = create(push, phoneIP, Math.max(1, toTicks(period, unit)));
+		reschedule(scheduled, initialDelay, unit);
+		return scheduled;
+	}
+	
+	/**
+	 * Creates new scheduled push, which is not put into the wheels yet.
+	 * 
+	 * @param push
+	 *           push that will be sent
+	 * @param phoneIP
+	 *           address of the target phone
+	 * @param period
+	 *           period between repetitions, in ticks, or 0
+	 * @return scheduled push
+	 */
+	private ScheduledPush create(Push push, String phoneIP, long period) {
+		if (push == null)
+			throw new NullPointerException("push cannot be null");
+		if (phoneIP == null)
+			throw new NullPointerException("phone address cannot be null");
+		return new ScheduledPush(this, push, phoneIP, period);
+	}
+	
+	/**
+	 * Converts the given time to ticks, rounding up.
+	 * 
+	 * @param time
+	 *           time to convert
+	 * @param unit
+	 *           unit of the time
+	 * @return number of ticks
+	 */
+	private long toTicks(long time, TimeUnit unit) {
+		long nanos = unit.toNanos(Math.max(0, time));
+		return nanos / tick + (nanos % tick == 0 ? 0 : 1);
+	}
+	
+	/**
+	 * Moves the push to another time, see {@link ScheduledPush#reschedule(long, TimeUnit)}.
+	 * 
+	 * @param scheduled
+	 *           scheduled push
+	 * @param delay
+	 *           time from now after which the push is sent
+	 * @param unit
+	 *           unit of the delay
+	 */
+	synchronized void reschedule(ScheduledPush scheduled, long delay, TimeUnit unit) {
+		if (scheduled.next != scheduled)
+			unlink(scheduled);
+		else
+			size++;
+		scheduled.cancelled = false;
+		scheduled.deadline = (System.nanoTime() - origin) / tick + toTicks(delay, unit);
+		insert(scheduled);
+	}
+	
+	/**
+	 * Cancels the push, see {@link ScheduledPush#cancel()}.
+	 * 
+	 * @param scheduled
+	 *           scheduled push
+	 * @return true if the push was cancelled
+	 */
+	synchronized boolean cancel(ScheduledPush scheduled) {
+		if (scheduled.cancelled || scheduled.next == scheduled)
+			return false;
+		unlink(scheduled);
+		size--;
+		scheduled.cancelled = true;
+		return true;
+	}
+	
+	/**
+	 * Checks if the push was cancelled.
+	 * 
+	 * @param scheduled
+	 *           scheduled push
+	 * @return true if the push was cancelled
+	 */
+	synchronized boolean isCancelled(ScheduledPush scheduled) {
+		return scheduled.cancelled;
+	}
+	
+	/**
+	 * Puts the push into the slot of the wheel that covers its time. Must be called with
+	 * the lock of this scheduler held.
+	 * 
+	 * @param scheduled
+	 *           push that is not in any slot
+	 */
+	private void insert(ScheduledPush scheduled) {
+		long delay = scheduled.deadline - currentTick;
+		ScheduledPush head;
+		if (delay < 0) {
+			head = wheels[0][(int) (currentTick & SLOT_MASK)];
+		} else {
+			long at = delay > MAX_DELAY ? currentTick + MAX_DELAY : scheduled.deadline;
+			int wheel = 0;
+			while (wheel < WHEELS - 1 && delay >= 1L << (SLOT_BITS * (wheel + 1)))
+				wheel++;
+			head = wheels[wheel][(int) ((at >>> (SLOT_BITS * wheel)) & SLOT_MASK)];
+		}
+		scheduled.prev = head.prev;
+		scheduled.next = head;
+		head.prev.next = scheduled;
+		head.prev = scheduled;
+	}
+	
+	/**
+	 * Removes the push from its slot. Must be called with the lock of this scheduler held.
+	 * 
+	 * @param scheduled
+	 *           push that is in a slot
+	 */
+	private static void unlink(ScheduledPush scheduled) {
+		scheduled.prev.next = scheduled.next;
+		scheduled.next.prev = scheduled.prev;
+		scheduled.prev = scheduled;
+		scheduled.next = scheduled;
+	}
+	
+	/**
+	 * Processes all ticks up to the given one, and collects the pushes that became due.
+	 * 
+	 * @param now
+	 *           number of the last tick to process
+	 * @return pushes that became due, possibly empty
+	 */
+	private synchronized ArrayList<Release> advance(long now) {
+		ArrayList<Release> due = new ArrayList<Release>();
+		for (; currentTick <= now; currentTick++) {
+			int index = (int) (currentTick & SLOT_MASK);
+			// when a wheel completes a turn, the next slot of the wheel above is spread
+			// over the wheels below it
+			for (int wheel = 1; index == 0 && wheel < WHEELS; wheel++) {
+				ScheduledPush head = wheels[wheel][(int) ((currentTick >>> (SLOT_BITS * wheel))
+						& SLOT_MASK)];
+				ScheduledPush scheduled = head.next;
+				head.prev = head;
+				head.next = head;
+				while (scheduled != head) {
+					ScheduledPush next = scheduled.next;
+					insert(scheduled);
+					scheduled = next;
+				}
+				index = (int) ((currentTick >>> (SLOT_BITS * wheel)) & SLOT_MASK);
+			}
+			ScheduledPush head = wheels[0][(int) (currentTick & SLOT_MASK)];
+			while (head.next != head) {
+				ScheduledPush scheduled = head.next;
+				unlink(scheduled);
+				due.add(new Release(scheduled));
+				if (scheduled.period > 0) {
+					scheduled.deadline = Math.max(scheduled.deadline + scheduled.period,
+							currentTick + 1);
+					insert(scheduled);
+				} else {
+					size--;
+				}
+			}
+		}
+		return due;
+	}
+	
+	/**
+	 * Starts the thread that sends the pushes when they become due. Does nothing if the
+	 * scheduler is already started.
+	 */
+	public synchronized void start() {
+		if (worker != null)
+			return;
+		worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				work();
+			}
+		}, "push-scheduler");
+		worker.setDaemon(true);
+		worker.start();
+	}
+	
+	/**
+	 * Stops the thread that sends the pushes. Scheduled pushes are kept, and are sent if
+	 * the scheduler is started again.
+	 */
+	public void stop() {
+		Thread stopped;
+		synchronized (this) {
+			stopped = worker;
+			worker = null;
+		}
+		if (stopped != null)
+			stopped.interrupt();
+	}
+	
+	/**
+	 * Processes the ticks as they pass, until the scheduler is stopped.
+	 */
+	private void work() {
+		while (!Thread.currentThread().isInterrupted()) {
+			long now = (System.nanoTime() - origin) / tick;
+			ArrayList<Release> due = advance(now);
+			if (!due.isEmpty()) {
+				try {
+					queue.submitAll(due);
+				} catch (RuntimeException e) {
+					failed(due, e);
+				}
+			}
+			long sleep = (now + 1) * tick - (System.nanoTime() - origin);
+			if (sleep > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Records that the queue did not accept the given due pushes.
+	 * 
+	 * @param due
+	 *           pushes that became due
+	 * @param e
+	 *           reason of the failure
+	 */
+	private void failed(ArrayList<Release> due, RuntimeException e) {
+		IOException error = new IOException("push was not accepted by the queue", e);
+		ArrayList<ScheduledPush> pushes = new ArrayList<ScheduledPush>(due.size());
+		for (Release release : due) {
+			release.scheduled.setLastError(error);
+			pushes.add(release.scheduled);
+		}
+		submitFailures.add(pushes.size());
+		try {
+			submitFailed(pushes, e);
+		} catch (RuntimeException ex) {
+			// the thread of the scheduler must keep running
+		}
+	}
+	
+	/**
+	 * Called when the queue did not accept the pushes that became due in a tick, so they
+	 * were not sent at this time. Their last error is set, and periodic pushes are still
+	 * sent at their next repetitions. The default implementation does nothing, the
+	 * failures are only counted, see {@link #getSubmitFailures()}; it can be overridden,
+	 * for example to reschedule the pushes after a while.
+	 * 
+	 * @param pushes
+	 *           pushes that were not sent
+	 * @param e
+	 *           exception thrown by the queue
+	 */
+	protected void submitFailed(List<ScheduledPush> pushes, RuntimeException e) {
+	}
+	
+	/**
+	 * Returns the number of due pushes that were not sent because the queue did not
+	 * accept them.
+	 * 
+	 * @return number of pushes not accepted by the queue
+	 */
+	public long getSubmitFailures() {
+		return submitFailures.sum();
+	}
+	
+	/**
+	 * Returns the number of scheduled pushes, periodic pushes included.
+	 * 
+	 * @return number of scheduled pushes
+	 */
+	public synchronized int size() {
+		return size;
+	}
+	
+}
@@ -0,0 +1,63 @@
+package pl.mbdev.openstage.push;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Thrown when the phone responds to a push request with an unsuccessful HTTP status.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public class PushStatusException extends IOException {
+	
+	/**
+	 * Serial version UID.
+	 */
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * Response of the phone.
+	 */
+	private final PushResponse response;
+	
+	/**
+	 * Creates new exception for the given response.
+	 * 
+	 * @param targetAddress
+	 *           URL to which the request was sent
+	 * @param response
+	 *           response of the phone
+	 */
+	public PushStatusException(URL targetAddress, PushResponse response) {
+		super("Server returned HTTP response code: " + response.getStatus() + " for URL: "
+				+ targetAddress);
+		this.response = response;
+	}
+	
+	/**
+	 * Returns the response of the phone.
+	 * 
+	 * @return the response, with the HTTP status
+	 */
+	public PushResponse getResponse() {
+		return response;
+	}
+	
+}
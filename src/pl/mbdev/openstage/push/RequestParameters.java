@@ -1,9 +1,13 @@
 package pl.mbdev.openstage.push;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
 
 /**
- * Parameters for HTTP request.
+ * Parameters for HTTP request. Parameters keep the order in which they were given, and are
+ * converted to the "application/x-www-form-urlencoded" format, in which the phone expects
+ * them.
  * 
  * <pre>
  * Copyright 2011 Mateusz Bysiek,
@@ -27,9 +31,14 @@ import java.util.HashMap;
 public class RequestParameters {
 	
 	/**
-	 * Mapping of the parameters.
+	 * Names of the parameters, in the original order.
 	 */
-	HashMap<Object, Object> parameters;
+	private final String[] names;
+	
+	/**
+	 * Values of the parameters, at the same indices as their names.
+	 */
+	private final String[] values;
 	
 	/**
 	 * Creates new parameters for a HTTP request.
@@ -41,59 +50,213 @@ public class RequestParameters {
 	 */
 	public RequestParameters(Object[] names, Object[] values) {
 		if (names == null)
-			throw new NullPointerException("");
+			throw new NullPointerException("names of the parameters cannot be null");
 		if (values == null)
-			throw new NullPointerException("");
+			throw new NullPointerException("values of the parameters cannot be null");
 		
 		if (names.length != values.length)
-			throw new IllegalArgumentException("");
+			throw new IllegalArgumentException("there must be exactly one value for each name");
 		
-		parameters = new HashMap<Object, Object>();
+		this.names = new String[names.length];
+		this.values = new String[values.length];
 		
+		for (int i = 0; i < names.length; i++) {
+			if (names[i] == null)
+				throw new NullPointerException("name of a parameter cannot be null");
+			this.names[i] = names[i].toString();
+			this.values[i] = String.valueOf(values[i]);
+		}
+	}
+	
+	/**
+	 * Returns number of the parameters.
+	 * 
+	 * @return number of the parameters
+	 */
+	public int size() {
+		return names.length;
+	}
+	
+	/**
+	 * Returns name of the parameter at the given position.
+	 * 
+	 * @param index
+	 *           position of the parameter, from 0 to size() - 1
+	 * @return name of the parameter
+	 */
+	public String getName(int index) {
+		return names[index];
+	}
+	
+	/**
+	 * Returns value of the parameter at the given position.
+	 * 
+	 * @param index
+	 *           position of the parameter, from 0 to size() - 1
+	 * @return value of the parameter
+	 */
+	public String getValue(int index) {
+		return values[index];
+	}
+	
+	/**
+	 * Returns value of the first parameter with the given name.
+	 * 
+	 * @param name
+	 *           name of the parameter
+	 * @return value of the parameter, or null if there is no such parameter
+	 */
+	public String get(String name) {
 		for (int i = 0; i < names.length; i++)
-			parameters.put(names[i], values[i]);
+			if (names[i].equals(name))
+				return values[i];
+		return null;
 	}
 	
 	/**
-	 * Converts parameter data to key-value pair that is usable as a part of request
-	 * string.
+	 * Creates a copy of these parameters, in which the value of the parameter with the
+	 * given name is replaced. If there is no such parameter, it is added at the end.
 	 * 
-	 * @param key
-	 *           key
+	 * @param name
+	 *           name of the parameter
 	 * @param value
-	 *           value
-	 * @param first
-	 *           is this the first created parameter
-	 * @return 'key=value' with character '&' or '?' depending on the circumstances
+	 *           new value of the parameter
+	 * @return new parameters, these parameters are not modified
 	 */
-	private StringBuffer parameterToStringBuffer(String key, Object value, boolean first) {
-		StringBuffer sb = new StringBuffer();
-		if (first)
-			sb.append('?');
-		else
-			sb.append('&');
-		sb.append(key).append("=").append(String.valueOf(value));
-		return sb;
+	public RequestParameters with(String name, Object value) {
+		int index = 0;
+		while (index < names.length && !names[index].equals(name))
+			index++;
+		Object[] newNames = new Object[index < names.length ? names.length : names.length + 1];
+		Object[] newValues = new Object[newNames.length];
+		System.arraycopy(names, 0, newNames, 0, names.length);
+		System.arraycopy(values, 0, newValues, 0, values.length);
+		newNames[index] = name;
+		newValues[index] = value;
+		return new RequestParameters(newNames, newValues);
 	}
 	
 	/**
-	 * Converts all parameters to a string buffer.
+	 * Computes length of these parameters in the encoded form.
 	 * 
-	 * @return parameters in the string form, key-value pairs
+	 * @return exact number of bytes that the encoded parameters will take
 	 */
-	private StringBuffer parametersToStringBuffer() {
-		StringBuffer sb = new StringBuffer();
-		boolean isFirst = true;
-		for (Object key : parameters.keySet()) {
-			sb.append(parameterToStringBuffer(key.toString(), parameters.get(key), isFirst));
-			isFirst = false;
+	public int encodedLength() {
+		int length = names.length > 0 ? names.length * 2 - 1 : 0;
+		for (int i = 0; i < names.length; i++)
+			length += FormEncoding.encodedLength(names[i])
+					+ FormEncoding.encodedLength(values[i]);
+		return length;
+	}
+	
+	/**
+	 * Encodes parameters into the destination buffer, which must have at least
+	 * encodedLength() bytes available from the given position.
+	 * 
+	 * @param dst
+	 *           destination buffer
+	 * @param pos
+	 *           position in the destination buffer at which the writing starts
+	 * @return position right after the written bytes
+	 */
+	public int encode(byte[] dst, int pos) {
+		for (int i = 0; i < names.length; i++) {
+			if (i > 0)
+				dst[pos++] = '&';
+			pos = FormEncoding.encode(names[i], dst, pos);
+			dst[pos++] = '=';
+			pos = FormEncoding.encode(values[i], dst, pos);
 		}
-		return sb;
+		return pos;
+	}
+	
+	/**
+	 * Returns the encoded form of these parameters, as key-value pairs separated by '&'.
+	 * 
+	 * @return encoded parameters
+	 */
+	public byte[] toByteArray() {
+		byte[] bytes = new byte[encodedLength()];
+		encode(bytes, 0);
+		return bytes;
+	}
+	
+	/**
+	 * Writes the encoded form of these parameters to the given stream.
+	 * 
+	 * @param out
+	 *           stream that receives encoded parameters
+	 * @throws IOException
+	 *            when the stream cannot be written
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(toByteArray());
+	}
+	
+	/**
+	 * Parses parameters from the "application/x-www-form-urlencoded" format, for example
+	 * from the body of a request sent by the phone.
+	 * 
+	 * @param src
+	 *           buffer with encoded parameters
+	 * @param off
+	 *           offset of the encoded parameters in the buffer
+	 * @param len
+	 *           length of the encoded parameters
+	 * @return decoded parameters, in their original order
+	 * @throws IllegalArgumentException
+	 *            when the data contains illegal escape sequences
+	 */
+	public static RequestParameters decode(byte[] src, int off, int len) {
+		ArrayList<String> names = new ArrayList<String>();
+		ArrayList<String> values = new ArrayList<String>();
+		int end = off + len;
+		int start = off;
+		while (start < end) {
+			int separator = start;
+			int equals = -1;
+			while (separator < end && src[separator] != '&') {
+				if (equals < 0 && src[separator] == '=')
+					equals = separator;
+				separator++;
+			}
+			if (separator > start) {
+				if (equals < 0) {
+					names.add(FormEncoding.decode(src, start, separator - start));
+					values.add("");
+				} else {
+					names.add(FormEncoding.decode(src, start, equals - start));
+					values.add(FormEncoding.decode(src, equals + 1, separator - equals - 1));
+				}
+			}
+			start = separator + 1;
+		}
+		return new RequestParameters(names.toArray(), values.toArray());
+	}
+	
+	/**
+	 * Parses parameters from the "application/x-www-form-urlencoded" format, for example
+	 * from the query string of a request sent by the phone. A leading '?' is ignored.
+	 * 
+	 * @param encoded
+	 *           encoded parameters
+	 * @return decoded parameters, in their original order
+	 * @throws IllegalArgumentException
+	 *            when the text contains illegal escape sequences
+	 */
+	public static RequestParameters decode(String encoded) {
+		byte[] bytes = encoded.getBytes(FormEncoding.UTF8);
+		if (bytes.length > 0 && bytes[0] == '?')
+			return decode(bytes, 1, bytes.length - 1);
+		return decode(bytes, 0, bytes.length);
 	}
 	
 	@Override
 	public String toString() {
-		return parametersToStringBuffer().toString();
+		byte[] bytes = new byte[encodedLength() + 1];
+		bytes[0] = '?';
+		int length = encode(bytes, 1);
+		return new String(bytes, 0, length, FormEncoding.UTF8);
 	}
 	
 }
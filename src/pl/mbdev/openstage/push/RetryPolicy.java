@@ -0,0 +1,216 @@
+package pl.mbdev.openstage.push;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+
+/**
+ * Defines how many times, and how often, a failed push request is repeated. Delays between
+ * attempts grow exponentially, and a random part (jitter) is added to them so that many
+ * pushes that failed at the same time are not all repeated at the same moment.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public class RetryPolicy {
+	
+	/**
+	 * Policy that never repeats a failed request.
+	 */
+	public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, 1.0, 0.0);
+	
+	/**
+	 * Policy that makes up to 3 attempts, waiting about 0.2s and 0.4s between them, and
+	 * repeats only requests that failed because of network errors or timeouts.
+	 */
+	public static final RetryPolicy DEFAULT = new RetryPolicy(3, 200, 5000, 2.0, 0.5);
+	
+	/**
+	 * Source of randomness for the jitter.
+	 */
+	private static final Random random = new Random();
+	
+	/**
+	 * Maximum number of attempts, including the first one.
+	 */
+	private final int maxAttempts;
+	
+	/**
+	 * Delay before the second attempt, in milliseconds.
+	 */
+	private final long initialBackoff;
+	
+	/**
+	 * Upper limit of the delay between attempts, in milliseconds.
+	 */
+	private final long maxBackoff;
+	
+	/**
+	 * Each next delay is this many times longer than the previous one.
+	 */
+	private final double multiplier;
+	
+	/**
+	 * Fraction of each delay, from 0 to 1, that is randomised.
+	 */
+	private final double jitter;
+	
+	/**
+	 * Exceptions that cause the request to be repeated, subclasses included.
+	 */
+	private final Class<? extends IOException>[] retryable;
+	
+	/**
+	 * Creates new retry policy that repeats requests which failed because of network errors
+	 * or timeouts, i.e. {@link SocketException} and {@link SocketTimeoutException}.
+	 * 
+	 * @param maxAttempts
+	 *           maximum number of attempts, including the first one, at least 1
+	 * @param initialBackoff
+	 *           delay before the second attempt, in milliseconds
+	 * @param maxBackoff
+	 *           upper limit of the delay between attempts, in milliseconds
+	 * @param multiplier
+	 *           each next delay is this many times longer than the previous one, at least
+	 *           1
+	 * @param jitter
+	 *           fraction of each delay, from 0 to 1, that is randomised; 0 means fixed
+	 *           delays, 1 means delays chosen uniformly from zero to the computed value
+	 */
+	public RetryPolicy(int maxAttempts, long initialBackoff, long maxBackoff,
+			double multiplier, double jitter) {
+		this(maxAttempts, initialBackoff, maxBackoff, multiplier, jitter,
+				defaultRetryable());
+	}
+	
+	/**
+	 * Returns the exceptions that are retried by default: connection errors and timeouts.
+	 * 
+	 * @return classes of the exceptions
+	 */
+	private static Class<? extends IOException>[] defaultRetryable() {
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		Class<? extends IOException>[] retryable = new Class[] { SocketException.class,
+				SocketTimeoutException.class };
+		return retryable;
+	}
+	
+	/**
+	 * Creates new retry policy.
+	 * 
+	 * @param maxAttempts
+	 *           maximum number of attempts, including the first one, at least 1
+	 * @param initialBackoff
+	 *           delay before the second attempt, in milliseconds
+	 * @param maxBackoff
+	 *           upper limit of the delay between attempts, in milliseconds
+	 * @param multiplier
+	 *           each next delay is this many times longer than the previous one, at least
+	 *           1
+	 * @param jitter
+	 *           fraction of each delay, from 0 to 1, that is randomised; 0 means fixed
+	 *           delays, 1 means delays chosen uniformly from zero to the computed value
+	 * @param retryable
+	 *           exceptions that cause the request to be repeated, subclasses included
+	 */
+	public RetryPolicy(int maxAttempts, long initialBackoff, long maxBackoff,
+			double multiplier, double jitter, Class<? extends IOException>[] retryable) {
+		if (maxAttempts < 1)
+			throw new IllegalArgumentException("at least one attempt must be allowed");
+		if (initialBackoff < 0 || maxBackoff < 0)
+			throw new IllegalArgumentException("delay cannot be negative");
+		if (multiplier < 1.0)
+			throw new IllegalArgumentException("multiplier cannot be lower than 1");
+		if (jitter < 0.0 || jitter > 1.0)
+			throw new IllegalArgumentException("jitter must be between 0 and 1");
+		if (retryable == null)
+			throw new NullPointerException("retryable exceptions cannot be null");
+		
+		this.maxAttempts = maxAttempts;
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+		this.multiplier = multiplier;
+		this.jitter = jitter;
+		this.retryable = retryable.clone();
+	}
+	
+	/**
+	 * Returns maximum number of attempts, including the first one.
+	 * 
+	 * @return maximum number of attempts
+	 */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+	
+	/**
+	 * Checks if a request that failed with the given exception should be repeated.
+	 * 
+	 * @param e
+	 *           exception thrown by the failed request
+	 * @return true if the exception is one of the retryable exceptions
+	 */
+	public boolean isRetryable(IOException e) {
+		for (Class<? extends IOException> c : retryable)
+			if (c.isInstance(e))
+				return true;
+		return false;
+	}
+	
+	/**
+	 * Computes the delay after the given failed attempt, jitter included.
+	 * 
+	 * @param attempt
+	 *           number of the failed attempt, starting from 1
+	 * @return delay before the next attempt, in milliseconds
+	 */
+	public long getBackoff(int attempt) {
+		double delay = initialBackoff;
+		for (int i = 1; i < attempt && delay < maxBackoff; i++)
+			delay *= multiplier;
+		delay = Math.min(delay, maxBackoff);
+		double r;
+		synchronized (random) {
+			r = random.nextDouble();
+		}
+		return (long) (delay * (1.0 - jitter) + delay * jitter * r);
+	}
+	
+	/**
+	 * Waits for the given delay between attempts.
+	 * 
+	 * @param backoff
+	 *           delay in milliseconds, as returned by {@link #getBackoff(int)}
+	 * @throws InterruptedIOException
+	 *            when the thread was interrupted while waiting
+	 */
+	public static void sleep(long backoff) throws InterruptedIOException {
+		if (backoff <= 0)
+			return;
+		try {
+			Thread.sleep(backoff);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for the next attempt");
+		}
+	}
+	
+}
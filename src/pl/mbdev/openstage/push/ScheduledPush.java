@@ -0,0 +1,181 @@
+package pl.mbdev.openstage.push;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Push to a single phone that was scheduled by a {@link PushScheduler} to be sent later,
+ * once or repeatedly. It can be cancelled or moved to another time at any moment, and
+ * both operations take constant time regardless of the number of scheduled pushes.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public class ScheduledPush {
+	
+	/**
+	 * Scheduler in which this push is scheduled.
+	 */
+	private final PushScheduler scheduler;
+	
+	/**
+	 * Push that will be sent.
+	 */
+	private final Push push;
+	
+	/**
+	 * Address of the target phone.
+	 */
+	private final String phoneIP;
+	
+	/**
+	 * Period between repetitions, in ticks of the scheduler, or 0 if the push is sent
+	 * only once.
+	 */
+	final long period;
+	
+	/**
+	 * Tick at which the push is due, guarded by the scheduler.
+	 */
+	long deadline;
+	
+	/**
+	 * Previous push in the same slot of the timing wheel, guarded by the scheduler.
+	 */
+	ScheduledPush prev;
+	
+	/**
+	 * Next push in the same slot of the timing wheel, guarded by the scheduler.
+	 */
+	ScheduledPush next;
+	
+	/**
+	 * True if the push was cancelled, guarded by the scheduler.
+	 */
+	boolean cancelled = false;
+	
+	/**
+	 * Error of the last attempt to send the push, or null if it was sent successfully or
+	 * not sent yet.
+	 */
+	private volatile IOException lastError = null;
+	
+	/**
+	 * Creates new scheduled push, or the head of a slot of the timing wheel if the push is
+	 * null.
+	 * 
+	 * @param scheduler
+	 *           scheduler in which the push is scheduled
+	 * @param push
+	 *           push that will be sent
+	 * @param phoneIP
+	 *           address of the target phone
+	 * @param period
+	 *           period between repetitions, in ticks, or 0
+	 */
+	ScheduledPush(PushScheduler scheduler, Push push, String phoneIP, long period) {
+		this.scheduler = scheduler;
+		this.push = push;
+		this.phoneIP = phoneIP;
+		this.period = period;
+		this.prev = this;
+		this.next = this;
+	}
+	
+	/**
+	 * Returns the push that will be sent.
+	 * 
+	 * @return the push
+	 */
+	public Push getPush() {
+		return push;
+	}
+	
+	/**
+	 * Returns the address of the target phone.
+	 * 
+	 * @return address of the phone
+	 */
+	public String getPhoneIP() {
+		return phoneIP;
+	}
+	
+	/**
+	 * Checks if the push is sent repeatedly.
+	 * 
+	 * @return true if the push is sent repeatedly
+	 */
+	public boolean isPeriodic() {
+		return period > 0;
+	}
+	
+	/**
+	 * Cancels the push. If it is already waiting to be sent, it will still be sent, but
+	 * it will not be repeated.
+	 * 
+	 * @return true if the push was cancelled, false if it was cancelled before or it was
+	 *         not periodic and has already been released to be sent
+	 */
+	public boolean cancel() {
+		return scheduler.cancel(this);
+	}
+	
+	/**
+	 * Checks if the push was cancelled.
+	 * 
+	 * @return true if the push was cancelled
+	 */
+	public boolean isCancelled() {
+		return scheduler.isCancelled(this);
+	}
+	
+	/**
+	 * Moves the push to another time. Periodic pushes are then repeated from the new
+	 * time. A push that was cancelled, or already released to be sent, is scheduled again.
+	 * 
+	 * @param delay
+	 *           time from now after which the push is sent
+	 * @param unit
+	 *           unit of the delay
+	 */
+	public void reschedule(long delay, TimeUnit unit) {
+		scheduler.reschedule(this, delay, unit);
+	}
+	
+	/**
+	 * Returns the error of the last attempt to send the push.
+	 * 
+	 * @return error of the last attempt, or null if it was sent successfully or not sent
+	 *         yet
+	 */
+	public IOException getLastError() {
+		return lastError;
+	}
+	
+	/**
+	 * Sets the error of the last attempt to send the push.
+	 * 
+	 * @param lastError
+	 *           error of the last attempt, or null
+	 */
+	void setLastError(IOException lastError) {
+		this.lastError = lastError;
+	}
+	
+}
@@ -0,0 +1,108 @@
+package pl.mbdev.openstage.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to the virtual threads of Java 21 and newer, through reflection, so that the SDK
+ * can still be built and used with older versions of Java.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+final class VirtualThreads {
+	
+	/**
+	 * Method that creates a builder of virtual threads, or null if they are not supported.
+	 */
+	private static final Method ofVirtual;
+	
+	/**
+	 * Method that names the threads created by a builder.
+	 */
+	private static final Method name;
+	
+	/**
+	 * Method that turns a builder into a thread factory.
+	 */
+	private static final Method factory;
+	
+	/**
+	 * Method that creates an executor starting a new thread for each task.
+	 */
+	private static final Method newThreadPerTaskExecutor;
+	
+	static {
+		Method[] methods = null;
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			methods = new Method[] { Thread.class.getMethod("ofVirtual"),
+					builder.getMethod("name", String.class, long.class),
+					builder.getMethod("factory"), Executors.class.getMethod(
+							"newThreadPerTaskExecutor", ThreadFactory.class) };
+			// in Java 19 and 20 virtual threads are a preview feature, which may be disabled
+			methods[0].invoke(null);
+		} catch (Exception e) {
+			methods = null;
+		}
+		ofVirtual = methods == null ? null : methods[0];
+		name = methods == null ? null : methods[1];
+		factory = methods == null ? null : methods[2];
+		newThreadPerTaskExecutor = methods == null ? null : methods[3];
+	}
+	
+	/**
+	 * Utility class.
+	 */
+	private VirtualThreads() {
+	}
+	
+	/**
+	 * Checks if virtual threads are supported by the running Java.
+	 * 
+	 * @return true if virtual threads can be created
+	 */
+	static boolean isSupported() {
+		return ofVirtual != null;
+	}
+	
+	/**
+	 * Creates an executor that runs each task in a new virtual thread.
+	 * 
+	 * @param prefix
+	 *           prefix of the names of the threads, followed by their numbers
+	 * @return the executor
+	 * @throws UnsupportedOperationException
+	 *            when virtual threads are not supported
+	 */
+	static ExecutorService newThreadPerTaskExecutor(String prefix) {
+		if (ofVirtual == null)
+			throw new UnsupportedOperationException("virtual threads need Java 21 or newer");
+		try {
+			Object builder = name.invoke(ofVirtual.invoke(null), prefix, 1L);
+			ThreadFactory threads = (ThreadFactory) factory.invoke(builder);
+			return (ExecutorService) newThreadPerTaskExecutor.invoke(null, threads);
+		} catch (Exception e) {
+			throw new UnsupportedOperationException("virtual threads cannot be created", e);
+		}
+	}
+	
+}
@@ -0,0 +1,49 @@
+package pl.mbdev.openstage.server;
+
+import java.io.IOException;
+
+import pl.mbdev.openstage.Xml;
+
+/**
+ * Creates the XML sent to the phone in response to a request of the given path, see
+ * {@link XmlServer#route(String, XmlHandler)}. Handlers are called concurrently by many
+ * threads of the server.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public interface XmlHandler {
+	
+	/**
+	 * Handles a request of the phone.
+	 * 
+	 * @param request
+	 *           request sent by the phone
+	 * @return XML sent back to the phone, in the same way as by
+	 *         {@link Xml#sendTo(java.io.OutputStream)}, or null if there is nothing to send
+	 * @throws IOException
+	 *            when the response cannot be created, the phone receives status 500
+	 * @throws IllegalArgumentException
+	 *            when the request is malformed, the phone receives status 400 if the
+	 *            exception was thrown while the parameters were decoded by the request,
+	 *            and status 500 otherwise
+	 */
+	Xml handle(XmlRequest request) throws IOException, IllegalArgumentException;
+	
+}
@@ -0,0 +1,175 @@
+package pl.mbdev.openstage.server;
+
+import java.net.InetSocketAddress;
+
+import pl.mbdev.openstage.Submission;
+import pl.mbdev.openstage.SubmissionDecoder;
+import pl.mbdev.openstage.push.FormEncoding;
+import pl.mbdev.openstage.push.RequestParameters;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Request sent by the phone to the {@link XmlServer}. Parameters of the request, either
+ * from the query string or from the body of a form submission, are kept encoded and
+ * decoded only when they are read.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public class XmlRequest {
+	
+	/**
+	 * Exchange of the underlying HTTP server.
+	 */
+	private final HttpExchange exchange;
+	
+	/**
+	 * Path of the request, without the query string.
+	 */
+	private final String path;
+	
+	/**
+	 * Encoded parameters of the request.
+	 */
+	private final byte[] parameters;
+	
+	/**
+	 * Length of the encoded parameters.
+	 */
+	private final int length;
+	
+	/**
+	 * True if the parameters could not be decoded.
+	 */
+	private volatile boolean malformed = false;
+	
+	/**
+	 * Creates new request.
+	 * 
+	 * @param exchange
+	 *           exchange of the underlying HTTP server
+	 * @param path
+	 *           path of the request, without the query string
+	 * @param parameters
+	 *           encoded parameters of the request
+	 * @param length
+	 *           length of the encoded parameters
+	 */
+	XmlRequest(HttpExchange exchange, String path, byte[] parameters, int length) {
+		this.exchange = exchange;
+		this.path = path;
+		this.parameters = parameters;
+		this.length = length;
+	}
+	
+	/**
+	 * Returns the HTTP method of the request, usually "GET" or "POST".
+	 * 
+	 * @return the method
+	 */
+	public String getMethod() {
+		return exchange.getRequestMethod();
+	}
+	
+	/**
+	 * Returns the path of the request, without the query string.
+	 * 
+	 * @return the path, starting with '/'
+	 */
+	public String getPath() {
+		return path;
+	}
+	
+	/**
+	 * Returns the IP address of the phone that sent the request.
+	 * 
+	 * @return the address, in textual form
+	 */
+	public String getPhoneIP() {
+		InetSocketAddress address = exchange.getRemoteAddress();
+		return address.getAddress().getHostAddress();
+	}
+	
+	/**
+	 * Returns the value of the given header of the request.
+	 * 
+	 * @param name
+	 *           name of the header, case insensitive
+	 * @return the first value, or null if there is no such header
+	 */
+	public String getHeader(String name) {
+		return exchange.getRequestHeaders().getFirst(name);
+	}
+	
+	/**
+	 * Returns the encoded parameters of the request, for example "key=value&amp;a=b".
+	 * 
+	 * @return the parameters in "application/x-www-form-urlencoded" format
+	 */
+	public String getQuery() {
+		return new String(parameters, 0, length, FormEncoding.UTF8);
+	}
+	
+	/**
+	 * Decodes all parameters of the request.
+	 * 
+	 * @return the parameters, in the order in which they were sent
+	 * @throws IllegalArgumentException
+	 *            when the parameters contain illegal escape sequences
+	 */
+	public RequestParameters getParameters() {
+		try {
+			return RequestParameters.decode(parameters, 0, length);
+		} catch (IllegalArgumentException e) {
+			malformed = true;
+			throw e;
+		}
+	}
+	
+	/**
+	 * Decodes the parameters of the request as a submission of the given form. This is
+	 * faster than {@link #getParameters()} and validates the values.
+	 * 
+	 * @param decoder
+	 *           decoder of the submissions of the form
+	 * @return the submission
+	 * @throws IllegalArgumentException
+	 *            when the submission is malformed or does not match the form
+	 */
+	public Submission getSubmission(SubmissionDecoder decoder) {
+		try {
+			return decoder.decode(parameters, 0, length);
+		} catch (IllegalArgumentException e) {
+			malformed = true;
+			throw e;
+		}
+	}
+	
+	/**
+	 * Checks if the parameters of this request could not be decoded, in which case the
+	 * phone receives status 400.
+	 * 
+	 * @return true if decoding of the parameters failed
+	 */
+	boolean isMalformed() {
+		return malformed;
+	}
+	
+}
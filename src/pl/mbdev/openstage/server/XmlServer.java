@@ -0,0 +1,614 @@
+package pl.mbdev.openstage.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import pl.mbdev.openstage.Xml;
+import pl.mbdev.openstage.push.FormEncoding;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Small HTTP server that serves XML applications to the phones, without a servlet
+ * container. It is based on the HTTP server of the JDK, starts within milliseconds, and
+ * keeps the connections of the phones alive between requests.<br />
+ * <br />
+ * Each path is routed to an {@link XmlHandler}, and the XML it returns is written to the
+ * phone with a known length, so that the connection can be reused. Requests are handled
+ * in one of two modes, see {@link Mode}: by a bounded pool of worker threads, or each in
+ * its own virtual thread, which lets handlers that block on directories, CTI or database
+ * lookups serve thousands of phones at once.<br />
+ * <br />
+ * Responses are written at once, so there is nothing to gain from Nagle's algorithm,
+ * while together with delayed acknowledgements it slows down kept-alive connections. The
+ * HTTP server of the JDK disables it only when the system property
+ * <code>sun.net.httpserver.nodelay</code> is true; the property affects all servers of
+ * the JVM and is read only once, so it is left to the application, for example
+ * <code>-Dsun.net.httpserver.nodelay=true</code> on the command line.
+ * 
+ * <pre>
+ * XmlServer server = new XmlServer(new InetSocketAddress(8080), 16);
+ * server.route("/hello", new XmlHandler() {
+ * 	public Xml handle(XmlRequest request) {
+ * 		return new IppAlert(...);
+ * 	}
+ * });
+ * server.start();
+ * </pre>
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public class XmlServer {
+	
+	/**
+	 * How the requests are executed.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	public enum Mode {
+		/**
+		 * Requests are handled by a bounded pool of platform threads with a bounded queue.
+		 * When both are full, the thread that accepts connections handles the request
+		 * itself, which stops it from accepting more until the load goes down.
+		 */
+		PLATFORM_THREADS,
+		/**
+		 * Each request is handled by a new virtual thread, and the number of requests
+		 * handled at the same time is limited by a semaphore; the other requests wait for
+		 * their turn without holding any platform thread. Needs Java 21 or newer; with older
+		 * versions of Java this mode falls back to {@link #PLATFORM_THREADS}.
+		 */
+		VIRTUAL_THREADS
+	}
+	
+	/**
+	 * Runs tasks through another executor, but lets only a limited number of them run at
+	 * the same time. The tasks wait for their turn in their own threads.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private static class LimitingExecutor implements Executor {
+		
+		/**
+		 * Executor that starts the tasks.
+		 */
+		private final Executor executor;
+		
+		/**
+		 * Permits of the running tasks.
+		 */
+		private final Semaphore permits;
+		
+		/**
+		 * Creates new executor.
+		 * 
+		 * @param executor
+		 *           executor that starts the tasks
+		 * @param limit
+		 *           maximum number of tasks running at the same time
+		 */
+		LimitingExecutor(Executor executor, int limit) {
+			this.executor = executor;
+			this.permits = new Semaphore(limit);
+		}
+		
+		@Override
+		public void execute(final Runnable command) {
+			executor.execute(new Runnable() {
+				
+				@Override
+				public void run() {
+					// the exchange must be handled even if the thread is interrupted
+					permits.acquireUninterruptibly();
+					try {
+						command.run();
+					} finally {
+						permits.release();
+					}
+				}
+				
+			});
+		}
+		
+	}
+	
+	/**
+	 * Default limit of the length of request parameters, in bytes.
+	 */
+	public static final int DEFAULT_MAX_REQUEST_LENGTH = 16384;
+	
+	/**
+	 * Number of requests that may wait for a worker thread, per worker thread.
+	 */
+	private static final int QUEUE_PER_THREAD = 64;
+	
+	/**
+	 * Responses longer than this are not kept in the buffers for reuse.
+	 */
+	private static final int MAX_KEPT_BUFFER = 65536;
+	
+	/**
+	 * Buffer into which responses are serialized.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private static class Buffer extends ByteArrayOutputStream {
+		
+		/**
+		 * Creates new buffer.
+		 */
+		Buffer() {
+			super(4096);
+		}
+		
+		/**
+		 * Returns the internal array of this buffer.
+		 * 
+		 * @return the array, valid up to size()
+		 */
+		byte[] array() {
+			return buf;
+		}
+		
+	}
+	
+	/**
+	 * Creates daemon worker threads, so that a running server does not keep the JVM alive
+	 * on its own.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private static class WorkerFactory implements ThreadFactory {
+		
+		/**
+		 * Number of the last created thread.
+		 */
+		private final AtomicInteger number = new AtomicInteger();
+		
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "XmlServer-" + number.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+		
+	}
+	
+	/**
+	 * Buffers that are not in use. There are never more of them than requests that were
+	 * handled at the same time, so their number is bounded by the number of threads or by
+	 * the limit of concurrent requests.
+	 */
+	private final ConcurrentLinkedQueue<Buffer> buffers = new ConcurrentLinkedQueue<Buffer>();
+	
+	/**
+	 * Underlying HTTP server.
+	 */
+	private final HttpServer server;
+	
+	/**
+	 * Workers that handle requests.
+	 */
+	private final ExecutorService workers;
+	
+	/**
+	 * Mode in which the requests are actually executed.
+	 */
+	private final Mode mode;
+	
+	/**
+	 * Handlers of the routed paths; paths ending with '/' also match all paths below them.
+	 */
+	private final ConcurrentHashMap<String, XmlHandler> routes;
+	
+	/**
+	 * Limit of the length of request parameters, in bytes.
+	 */
+	private volatile int maxRequestLength = DEFAULT_MAX_REQUEST_LENGTH;
+	
+	/**
+	 * Number of requests for which the handler threw an exception.
+	 */
+	private final LongAdder handlerFailures = new LongAdder();
+	
+	/**
+	 * Creates new server that handles requests with a pool of platform threads. The server
+	 * does not accept connections until it is started.
+	 * 
+	 * @param address
+	 *           address and port on which the server listens
+	 * @param threads
+	 *           maximum number of requests handled at the same time, at least 1
+	 * @throws IOException
+	 *            when the server cannot listen on the given address
+	 */
+	public XmlServer(InetSocketAddress address, int threads) throws IOException {
+		this(address, Mode.PLATFORM_THREADS, threads);
+	}
+	
+	/**
+	 * Creates new server. The server does not accept connections until it is started.
+	 * 
+	 * @param address
+	 *           address and port on which the server listens
+	 * @param mode
+	 *           how the requests are executed
+	 * @param concurrency
+	 *           maximum number of requests handled at the same time, at least 1; in
+	 *           {@link Mode#PLATFORM_THREADS} mode this is the number of threads
+	 * @throws IOException
+	 *            when the server cannot listen on the given address
+	 */
+	public XmlServer(InetSocketAddress address, Mode mode, int concurrency)
+			throws IOException {
+		if (address == null)
+			throw new NullPointerException("address of the server cannot be null");
+		if (mode == null)
+			throw new NullPointerException("mode cannot be null");
+		if (concurrency < 1)
+			throw new IllegalArgumentException("at least one request must be allowed");
+		
+		this.routes = new ConcurrentHashMap<String, XmlHandler>();
+		this.server = HttpServer.create(address, 0);
+		if (mode == Mode.VIRTUAL_THREADS && VirtualThreads.isSupported()) {
+			this.mode = Mode.VIRTUAL_THREADS;
+			this.workers = VirtualThreads.newThreadPerTaskExecutor("XmlServer-");
+			this.server.setExecutor(new LimitingExecutor(workers, concurrency));
+		} else {
+			this.mode = Mode.PLATFORM_THREADS;
+			this.workers = createWorkers(concurrency);
+			this.server.setExecutor(workers);
+		}
+		this.server.createContext("/", new HttpHandler() {
+			
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				XmlServer.this.handle(exchange);
+			}
+			
+		});
+	}
+	
+	/**
+	 * Creates the pool of worker threads, which stop when they are idle for a minute.
+	 * 
+	 * @param threads
+	 *           maximum number of threads
+	 * @return the pool
+	 */
+	private static ExecutorService createWorkers(int threads) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60,
+				TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(threads * QUEUE_PER_THREAD),
+				new WorkerFactory(), new ThreadPoolExecutor.CallerRunsPolicy());
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+	
+	/**
+	 * Returns the mode in which the requests are actually executed, which is
+	 * {@link Mode#PLATFORM_THREADS} if virtual threads were requested, but are not
+	 * supported.
+	 * 
+	 * @return the mode
+	 */
+	public Mode getMode() {
+		return mode;
+	}
+	
+	/**
+	 * Checks if the running Java supports {@link Mode#VIRTUAL_THREADS}.
+	 * 
+	 * @return true if virtual threads are supported
+	 */
+	public static boolean isVirtualThreadsSupported() {
+		return VirtualThreads.isSupported();
+	}
+	
+	/**
+	 * Routes requests of the given path to the given handler. A path that ends with '/'
+	 * also matches all paths below it that have no more specific route, for example "/"
+	 * matches all requests. Routes can be changed while the server is running.
+	 * 
+	 * @param path
+	 *           path, starting with '/'
+	 * @param handler
+	 *           handler of the requests, or null to remove the route
+	 * @return this server
+	 */
+	public XmlServer route(String path, XmlHandler handler) {
+		if (path == null)
+			throw new NullPointerException("path cannot be null");
+		if (!path.startsWith("/"))
+			throw new IllegalArgumentException("path must start with '/'");
+		if (handler == null)
+			routes.remove(path);
+		else
+			routes.put(path, handler);
+		return this;
+	}
+	
+	/**
+	 * Finds the handler of the given path.
+	 * 
+	 * @param path
+	 *           path of the request
+	 * @return handler of the most specific route, or null if there is none
+	 */
+	private XmlHandler findHandler(String path) {
+		XmlHandler handler = routes.get(path);
+		int i = path.length() - 1;
+		while (handler == null && i > 0) {
+			i = path.lastIndexOf('/', i - 1);
+			handler = routes.get(path.substring(0, i + 1));
+		}
+		return handler;
+	}
+	
+	/**
+	 * Sets the limit of the length of request parameters. Longer requests are rejected
+	 * with status 413, before they are read.
+	 * 
+	 * @param maxRequestLength
+	 *           the limit, in bytes
+	 */
+	public void setMaxRequestLength(int maxRequestLength) {
+		if (maxRequestLength < 0)
+			throw new IllegalArgumentException("limit cannot be negative");
+		this.maxRequestLength = maxRequestLength;
+	}
+	
+	/**
+	 * Starts accepting connections.
+	 */
+	public void start() {
+		server.start();
+	}
+	
+	/**
+	 * Stops the server, letting the requests that are in progress finish.
+	 * 
+	 * @param delay
+	 *           maximum time to wait for the requests in progress, in seconds
+	 */
+	public void stop(int delay) {
+		server.stop(delay);
+		workers.shutdown();
+	}
+	
+	/**
+	 * Returns the address on which the server listens, with the actual port if the server
+	 * was created with port 0.
+	 * 
+	 * @return the address
+	 */
+	public InetSocketAddress getAddress() {
+		return server.getAddress();
+	}
+	
+	/**
+	 * Handles a single exchange: reads the parameters, calls the handler, and writes the
+	 * response. The exchange is always closed, so that the connection can be reused.
+	 * 
+	 * @param exchange
+	 *           exchange of the underlying HTTP server
+	 * @throws IOException
+	 *            when the exchange fails
+	 */
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			String path = exchange.getRequestURI().getRawPath();
+			XmlHandler handler = findHandler(path);
+			if (handler == null) {
+				exchange.sendResponseHeaders(404, -1);
+				return;
+			}
+			
+			byte[] parameters = readParameters(exchange);
+			if (parameters == null) {
+				exchange.getResponseHeaders().set("Connection", "close");
+				exchange.sendResponseHeaders(413, -1);
+				return;
+			}
+			
+			XmlRequest request = new XmlRequest(exchange, path, parameters, parameters.length);
+			Xml xml;
+			try {
+				xml = handler.handle(request);
+			} catch (IOException e) {
+				exchange.sendResponseHeaders(500, -1);
+				failed(request, e);
+				return;
+			} catch (RuntimeException e) {
+				if (request.isMalformed()) {
+					exchange.sendResponseHeaders(400, -1);
+				} else {
+					exchange.sendResponseHeaders(500, -1);
+					failed(request, e);
+				}
+				return;
+			}
+			
+			if (xml == null) {
+				exchange.sendResponseHeaders(204, -1);
+				return;
+			}
+			writeResponse(exchange, xml);
+		} finally {
+			exchange.close();
+		}
+	}
+	
+	/**
+	 * Counts and reports a failure of a handler.
+	 * 
+	 * @param request
+	 *           request that was handled
+	 * @param e
+	 *           exception thrown by the handler
+	 */
+	private void failed(XmlRequest request, Exception e) {
+		handlerFailures.increment();
+		handlerFailed(request, e);
+	}
+	
+	/**
+	 * Called when a handler throws an exception, after the phone received status 500.
+	 * Exceptions thrown while the parameters of the request were decoded are not reported,
+	 * the phone receives status 400 instead. The default implementation does nothing, the
+	 * failures are only counted, see {@link #getHandlerFailures()}.
+	 * 
+	 * @param request
+	 *           request that was handled
+	 * @param e
+	 *           exception thrown by the handler
+	 */
+	protected void handlerFailed(XmlRequest request, Exception e) {
+	}
+	
+	/**
+	 * Returns the number of requests for which the handler threw an exception, not
+	 * counting requests whose parameters could not be decoded.
+	 * 
+	 * @return number of failures of the handlers
+	 */
+	public long getHandlerFailures() {
+		return handlerFailures.sum();
+	}
+	
+	/**
+	 * Reads the parameters of the request: the query string, followed by the body of a
+	 * form submission, if there is one.
+	 * 
+	 * @param exchange
+	 *           exchange of the underlying HTTP server
+	 * @return encoded parameters, or null if they are too long
+	 * @throws IOException
+	 *            when the body cannot be read
+	 */
+	private byte[] readParameters(HttpExchange exchange) throws IOException {
+		int limit = maxRequestLength;
+		String query = exchange.getRequestURI().getRawQuery();
+		byte[] queryBytes = query == null ? new byte[0] : query.getBytes(FormEncoding.UTF8);
+		if (queryBytes.length > limit)
+			return null;
+		String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+		if (contentLength != null) {
+			try {
+				long length = Long.parseLong(contentLength.trim());
+				if (length == 0)
+					return queryBytes;
+				if (length > limit)
+					return null;
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		} else if (exchange.getRequestHeaders().getFirst("Transfer-Encoding") == null)
+			return queryBytes;
+		
+		// the body is appended to the query string, after a separating '&'
+		int start = queryBytes.length + 1;
+		byte[] buffer = new byte[Math.min(start + 1024, limit + 2)];
+		System.arraycopy(queryBytes, 0, buffer, 0, queryBytes.length);
+		buffer[queryBytes.length] = '&';
+		int pos = start;
+		InputStream in = exchange.getRequestBody();
+		for (int n; (n = in.read(buffer, pos, buffer.length - pos)) >= 0;) {
+			pos += n;
+			if (pos == buffer.length) {
+				if (pos > limit)
+					return null;
+				buffer = Arrays.copyOf(buffer, Math.min(pos * 2, limit + 2));
+			}
+		}
+		if (pos == start)
+			return queryBytes;
+		if (queryBytes.length == 0)
+			return Arrays.copyOfRange(buffer, 1, pos);
+		return pos > limit ? null : Arrays.copyOf(buffer, pos);
+	}
+	
+	/**
+	 * Serializes the XML into a reused buffer, and sends it with its length, which keeps
+	 * the connection reusable.
+	 * 
+	 * @param exchange
+	 *           exchange of the underlying HTTP server
+	 * @param xml
+	 *           XML returned by the handler
+	 * @throws IOException
+	 *            when the response cannot be sent
+	 */
+	private void writeResponse(HttpExchange exchange, Xml xml) throws IOException {
+		Buffer buffer = buffers.poll();
+		if (buffer == null)
+			buffer = new Buffer();
+		try {
+			buffer.reset();
+			writeResponse(exchange, xml, buffer);
+		} finally {
+			if (buffer.size() <= MAX_KEPT_BUFFER)
+				buffers.offer(buffer);
+		}
+	}
+	
+	/**
+	 * Serializes the XML into the given buffer, and sends it with its length.
+	 * 
+	 * @param exchange
+	 *           exchange of the underlying HTTP server
+	 * @param xml
+	 *           XML returned by the handler
+	 * @param buffer
+	 *           empty buffer
+	 * @throws IOException
+	 *            when the response cannot be sent
+	 */
+	private void writeResponse(HttpExchange exchange, Xml xml, Buffer buffer)
+			throws IOException {
+		try {
+			xml.sendTo(buffer);
+		} catch (IllegalArgumentException e) {
+			exchange.sendResponseHeaders(500, -1);
+			return;
+		}
+		exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=UTF-8");
+		exchange.sendResponseHeaders(200, buffer.size());
+		OutputStream out = exchange.getResponseBody();
+		out.write(buffer.array(), 0, buffer.size());
+	}
+	
+}
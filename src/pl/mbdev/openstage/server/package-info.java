@@ -0,0 +1,6 @@
+/**
+ * XML applications can be served to OpenStage phones without a servlet container, by a
+ * small embedded server, see {@link pl.mbdev.openstage.server.XmlServer}.
+ */
+
+package pl.mbdev.openstage.server;
@@ -0,0 +1,152 @@
+package pl.mbdev.openstage.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+import pl.mbdev.openstage.push.KeyedExecutor;
+import pl.mbdev.openstage.push.Push;
+import pl.mbdev.openstage.push.PushJob;
+import pl.mbdev.openstage.push.PushJournal;
+import pl.mbdev.openstage.push.PushQueue;
+
+/**
+ * Tests recovery of unfinished pushes from a push journal. Many pushes are recorded, so
+ * that the journal rolls over several segments, and all but the first one are finished.
+ * The journal is then opened again, and exactly one push should be read back. Nothing
+ * is sent to the phones.
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public class JournalTest extends OpenStageSDK_Test {
+	
+	/**
+	 * Number of recorded pushes.
+	 */
+	private static final int PUSHES = 200;
+	
+	/**
+	 * Size of the segments of the journal, small so that the journal rolls over often.
+	 */
+	private static final int SEGMENT_SIZE = 1024;
+	
+	/**
+	 * Executor that only collects the tasks, which are run later by the test.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private static class Collector implements Executor {
+		
+		/**
+		 * Collected tasks.
+		 */
+		final ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+		
+		@Override
+		public void execute(Runnable command) {
+			tasks.add(command);
+		}
+		
+	}
+	
+	/**
+	 * Push that is not sent anywhere.
+	 * 
+	 * @author Mateusz Bysiek
+	 */
+	private static class Job extends PushJob {
+		
+		/**
+		 * Creates new job.
+		 * 
+		 * @param push
+		 *           push that is recorded
+		 * @param phoneIP
+		 *           address of the phone
+		 */
+		Job(Push push, String phoneIP) {
+			super(push, phoneIP);
+		}
+		
+		@Override
+		public void run() {
+		}
+		
+		@Override
+		protected void superseded(PushJob by) {
+		}
+		
+		@Override
+		protected void coalesced(PushJob into) {
+		}
+		
+	}
+	
+	public static void main(String[] args) {
+		new JournalTest();
+	}
+	
+	@Override
+	protected void writeXml(PrintWriter out) {
+		File directory = null;
+		try {
+			directory = File.createTempFile("journal", "");
+			if (!directory.delete() || !directory.mkdir())
+				throw new IOException("cannot create directory " + directory);
+			
+			Push push = new Push("http://172.27.75.98:8080/OpenIM/Inbox", "OpenIM",
+					Push.RequestType.FORCE, "pushed", "yes");
+			Collector sent = new Collector();
+			PushQueue queue = new PushQueue(new KeyedExecutor<String>(sent));
+			queue.setJournal(new PushJournal(directory, SEGMENT_SIZE));
+			ArrayList<PushJob> jobs = new ArrayList<PushJob>();
+			for (int i = 0; i < PUSHES; i++)
+				jobs.add(new Job(push, "172.27.75." + i));
+			queue.submitAll(jobs);
+			out.println("recorded: " + PUSHES + " pushes in " + directory.list().length
+					+ " segments");
+			for (int i = 1; i < sent.tasks.size(); i++)
+				sent.tasks.get(i).run();
+			out.println("finished all but the first, segments left: "
+					+ directory.list().length);
+			
+			Collector resent = new Collector();
+			PushQueue reopened = new PushQueue(new KeyedExecutor<String>(resent));
+			int replayed = new PushJournal(directory, SEGMENT_SIZE).replay(reopened);
+			out.println("replayed after reopening: " + replayed + " (expected 1)");
+		} catch (MalformedURLException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (directory != null) {
+				File[] files = directory.listFiles();
+				if (files != null)
+					for (File file : files)
+						file.delete();
+				directory.delete();
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,190 @@
+package pl.mbdev.openstage.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import pl.mbdev.openstage.Image;
+import pl.mbdev.openstage.IppList;
+import pl.mbdev.openstage.Option;
+import pl.mbdev.openstage.Xml;
+import pl.mbdev.openstage.server.XmlHandler;
+import pl.mbdev.openstage.server.XmlRequest;
+import pl.mbdev.openstage.server.XmlServer;
+
+/**
+ * Compares the modes of {@link XmlServer} when the handler blocks on a slow backend, like
+ * a directory or a database. The backend is simulated locally by a lookup that sleeps for
+ * the given time. Many clients send requests at the same time, and the throughput and the
+ * average latency of each mode are printed. Both modes handle the same number of requests
+ * at the same time, so that only the cost of the threads differs.<br />
+ * <br />
+ * Arguments, all optional: number of clients (default 200), latency of the backend in
+ * milliseconds (default 50), duration of each run in seconds (default 5), number of
+ * requests handled by the server at the same time (default: number of clients).
+ * 
+ * <pre>
+ * Copyright 2011 Mateusz Bysiek,
+ *     mb@mbdev.pl, http://mbdev.pl/
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </pre>
+ * 
+ * @author Mateusz Bysiek
+ */
+public class ServerBenchmark extends OpenStageSDK_Test {
+	
+	/**
+	 * Number of clients sending requests at the same time.
+	 */
+	private static int clients = 200;
+	
+	/**
+	 * Latency of the simulated backend, in milliseconds.
+	 */
+	private static long latency = 50;
+	
+	/**
+	 * Duration of each run, in milliseconds.
+	 */
+	private static long duration = 5000;
+	
+	/**
+	 * Number of requests handled by the server at the same time, in both modes, or 0 if it
+	 * is the number of clients.
+	 */
+	private static int concurrency = 0;
+	
+	public static void main(String[] args) {
+		if (args.length > 0)
+			clients = Integer.parseInt(args[0]);
+		if (args.length > 1)
+			latency = Long.parseLong(args[1]);
+		if (args.length > 2)
+			duration = Long.parseLong(args[2]) * 1000;
+		if (args.length > 3)
+			concurrency = Integer.parseInt(args[3]);
+		// responses on kept-alive connections must not wait for delayed acknowledgements
+		if (System.getProperty("sun.net.httpserver.nodelay") == null)
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		new ServerBenchmark();
+	}
+	
+	@Override
+	protected void writeXml(PrintWriter out) {
+		out.println(clients + " clients, backend latency " + latency + " ms");
+		if (!XmlServer.isVirtualThreadsSupported())
+			out.println("virtual threads are not supported, both runs use platform threads");
+		int limit = concurrency > 0 ? concurrency : clients;
+		try {
+			out.println(run(XmlServer.Mode.PLATFORM_THREADS, limit));
+			out.println(run(XmlServer.Mode.VIRTUAL_THREADS, limit));
+		} catch (Exception e) {
+			e.printStackTrace(out);
+		}
+	}
+	
+	/**
+	 * Simulates a lookup in a slow backend.
+	 * 
+	 * @param name
+	 *           looked up name
+	 * @return found entries
+	 */
+	private static String[] lookup(String name) {
+		try {
+			Thread.sleep(latency);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return new String[] { name + " Smith", name + " Jones", name + " Brown" };
+	}
+	
+	/**
+	 * Starts the server in the given mode, and sends requests to it from all clients.
+	 * 
+	 * @param mode
+	 *           mode of the server
+	 * @param concurrency
+	 *           maximum number of requests handled by the server at the same time
+	 * @return summary of the run
+	 * @throws Exception
+	 *            when the server cannot be started
+	 */
+	private String run(XmlServer.Mode mode, int concurrency) throws Exception {
+		XmlServer server = new XmlServer(new InetSocketAddress("127.0.0.1", 0), mode,
+				concurrency);
+		server.route("/directory", new XmlHandler() {
+			
+			@Override
+			public Xml handle(XmlRequest request) {
+				String[] entries = lookup(request.getParameters().get("name"));
+				IppList list = new IppList("Directory", "", IppList.Type.IMPLICIT, 1);
+				for (String entry : entries)
+					list.add(new Option(entry, new Image("no", ""), false, "entry", entry));
+				return list;
+			}
+			
+		});
+		server.start();
+		
+		final URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort()
+				+ "/directory?name=John");
+		final AtomicLong requests = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		final AtomicLong nanos = new AtomicLong();
+		final long end = System.currentTimeMillis() + duration;
+		final CountDownLatch done = new CountDownLatch(clients);
+		for (int i = 0; i < clients; i++) {
+			Thread client = new Thread(new Runnable() {
+				
+				@Override
+				public void run() {
+					byte[] buffer = new byte[4096];
+					while (System.currentTimeMillis() < end) {
+						long start = System.nanoTime();
+						try {
+							HttpURLConnection c = (HttpURLConnection) url.openConnection();
+							InputStream in = c.getInputStream();
+							while (in.read(buffer) >= 0)
+								;
+							in.close();
+							requests.incrementAndGet();
+							nanos.addAndGet(System.nanoTime() - start);
+						} catch (IOException e) {
+							errors.incrementAndGet();
+						}
+					}
+					done.countDown();
+				}
+				
+			});
+			client.setDaemon(true);
+			client.start();
+		}
+		done.await();
+		server.stop(0);
+		
+		long count = requests.get();
+		return server.getMode() + " (" + concurrency + "): " + count * 1000 / duration
+				+ " requests/s, average latency "
+				+ (count == 0 ? 0 : nanos.get() / count / 1000000) + " ms, " + errors.get()
+				+ " errors";
+	}
+	
+}